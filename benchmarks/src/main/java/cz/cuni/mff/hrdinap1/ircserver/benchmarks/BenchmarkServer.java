@@ -0,0 +1,52 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import cz.cuni.mff.hrdinap1.ircserver.IRCServer;
+import cz.cuni.mff.hrdinap1.ircserver.ServerConfig;
+
+/** Server populated with registered users on sink connections
+ */
+public class BenchmarkServer {
+    private final IRCServer server = new IRCServer("bench.testing.cz", new ServerConfig());
+
+    /** Connect and register a user
+     * @param nickname nickname of the user
+     * @return connection id of the user
+     */
+    public int addUser(String nickname) {
+        SinkConnection connection = server.createConnection(connId -> new SinkConnection(connId, server));
+        int connId = connection.getConnId();
+        server.getDispatcher().processLine("NICK " + nickname, connId);
+        server.getDispatcher().processLine("USER " + nickname + " localhost bench.testing.cz :Benchmark user", connId);
+        return connId;
+    }
+
+    /** Connect and register users named by a prefix and a number, and join them to a channel
+     * @param prefix prefix of the nicknames
+     * @param count number of users
+     * @param channel channel to join
+     * @return connection ids of the users
+     */
+    public int[] addMembers(String prefix, int count, String channel) {
+        int[] connIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            connIds[i] = addUser(prefix + i);
+            join(connIds[i], channel);
+        }
+        return connIds;
+    }
+
+    /** Join a user to a channel
+     * @param connId id of the user's connection
+     * @param channel channel to join
+     */
+    public void join(int connId, String channel) {
+        server.getDispatcher().processLine("JOIN " + channel, connId);
+    }
+
+    /** Get the server
+     * @return server instance
+     */
+    public IRCServer getServer() {
+        return server;
+    }
+}
@@ -0,0 +1,50 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import cz.cuni.mff.hrdinap1.ircserver.IRCServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Joining and listing members of large channels
+ * A join replies with the names of all members and announces the joiner to all of them, the part is needed to keep the
+ * channel size constant and announces the leave to all members as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JoinBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    private IRCServer server;
+    private int member;
+    private int joiner;
+    private final List<String> channel = List.of("#bench");
+
+    @Setup
+    public void setup() {
+        BenchmarkServer benchmarkServer = new BenchmarkServer();
+        member = benchmarkServer.addMembers("user", members, "#bench")[0];
+        joiner = benchmarkServer.addUser("joiner");
+        server = benchmarkServer.getServer();
+    }
+
+    /** Join a channel and leave it again
+     */
+    @Benchmark
+    public void joinPart() {
+        server.cmdJoin(channel, joiner);
+        server.cmdPart(channel, joiner);
+    }
+
+    /** List members of a channel
+     */
+    @Benchmark
+    public void names() {
+        server.cmdNames(channel, member);
+    }
+}
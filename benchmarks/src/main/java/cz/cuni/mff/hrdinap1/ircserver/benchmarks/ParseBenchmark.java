@@ -0,0 +1,67 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import cz.cuni.mff.hrdinap1.ircserver.CommandDispatcher;
+import cz.cuni.mff.hrdinap1.ircserver.IRCMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Parsing of received lines and lookup of their command
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+    /** Typical client lines, each benchmark operation handles all of them */
+    private static final String[] lines = {
+            "NICK alice",
+            "USER alice localhost irc.example.org :Alice Example",
+            "JOIN #general,#random,#help",
+            "PRIVMSG #general :Hello everybody, is anyone around to help me with the build?",
+            ":alice!alice@localhost PRIVMSG bob :hi",
+            "NAMES #general",
+            "KICK #general bob :spamming",
+            "UNKNOWN command with some parameters",
+    };
+
+    private final IRCMessage message = new IRCMessage();
+    private CommandDispatcher dispatcher;
+    /** Number of parameters seen by the handlers, keeps the handlers from being optimized away */
+    private long handled;
+
+    @Setup
+    public void setup() {
+        dispatcher = new CommandDispatcher();
+        for (String command : new String[] {"NICK", "USER", "JOIN", "PRIVMSG", "PART", "NAMES", "LIST", "TOPIC", "KICK"}) {
+            dispatcher.register(command, (parameters, connId) -> handled += parameters.size());
+        }
+    }
+
+    /** Split lines into prefix, command and parameters
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void parse(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(message.parse(line));
+            blackhole.consume(message.getParameters().size());
+        }
+    }
+
+    /** Parse lines and call handlers of their commands
+     * @return number of handled parameters
+     */
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public long dispatch() {
+        for (String line : lines) {
+            dispatcher.processLine(line, message, 0);
+        }
+        return handled;
+    }
+}
@@ -0,0 +1,46 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import cz.cuni.mff.hrdinap1.ircserver.IRCServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Fan-out of a channel message to all members
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrivmsgBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    private IRCServer server;
+    private int sender;
+    private final List<String> toChannel = List.of("#bench", ":Hello everybody, is anyone around?");
+    private final List<String> toUser = List.of("user1", ":Hello, are you around?");
+
+    @Setup
+    public void setup() {
+        BenchmarkServer benchmarkServer = new BenchmarkServer();
+        sender = benchmarkServer.addMembers("user", members, "#bench")[0];
+        server = benchmarkServer.getServer();
+    }
+
+    /** Message to a channel, delivered to every member but the sender
+     */
+    @Benchmark
+    public void privmsgChannel() {
+        server.cmdPrivmsg(toChannel, sender);
+    }
+
+    /** Message to a single user as a baseline
+     */
+    @Benchmark
+    public void privmsgUser() {
+        server.cmdPrivmsg(toUser, sender);
+    }
+}
@@ -0,0 +1,55 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import cz.cuni.mff.hrdinap1.ircserver.ChannelManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Removing a user who is a member of many channels, as done on disconnect
+ * Every channel has one more member, so channels are not destroyed and the cost is leaving them only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RemoveUserBenchmark {
+    @Param({"10", "100", "1000"})
+    public int channels;
+
+    /** Number of channels which the removed user is not a member of */
+    private static final int otherChannels = 10000;
+    private static final int user = 0;
+    private static final int resident = 1;
+
+    private ChannelManager channelManager;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setupChannels() {
+        channelManager = new ChannelManager();
+        names = new String[channels];
+        for (int i = 0; i < channels; i++) {
+            names[i] = "#bench" + i;
+            channelManager.join(resident, names[i], null);
+        }
+        for (int i = 0; i < otherChannels; i++) {
+            channelManager.join(resident, "#other" + i, null);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void joinChannels() {
+        for (String name : names) {
+            channelManager.join(user, name, null);
+        }
+    }
+
+    /** Remove the user from all its channels
+     */
+    @Benchmark
+    public void removeUser() {
+        channelManager.removeUser(user);
+    }
+}
@@ -0,0 +1,52 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import cz.cuni.mff.hrdinap1.ircserver.Connection;
+import cz.cuni.mff.hrdinap1.ircserver.IRCServer;
+
+/** Connection without a socket
+ * Only counts what is sent to it, so benchmarks measure the server logic and not the kernel.
+ */
+public class SinkConnection implements Connection {
+    private final int connId;
+    private long lines;
+    private long bytes;
+
+    /** SinkConnection constructor
+     * @param connId id of the user's connection
+     * @param server server instance
+     */
+    public SinkConnection(int connId, IRCServer server) {
+        this.connId = connId;
+        server.connect(connId);
+    }
+
+    /** Get connection id
+     * @return id of the user's connection
+     */
+    public int getConnId() {
+        return connId;
+    }
+
+    public void send(byte[] line) {
+        lines++;
+        bytes += line.length;
+    }
+
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    /** Get number of lines sent to the connection
+     * @return number of lines
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /** Get number of bytes sent to the connection
+     * @return number of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,200 @@
+package cz.cuni.mff.hrdinap1.ircserver.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of TLS records compared to plaintext for the lines written by one gathering write
+ * A server and a client engine are connected in memory, so only the encryption is measured, not the socket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsBenchmark {
+    /** Number of lines written together, 1 for a quiet connection, 32 for a busy channel */
+    @Param({"1", "32"})
+    public int lines;
+
+    private static final String password = "benchmark";
+    private static final byte[] line = (":alice!alice@localhost PRIVMSG #general "
+            + ":Hello everybody, is anyone around to help me with the build?\r\n").getBytes(StandardCharsets.UTF_8);
+
+    private SSLEngine server;
+    private SSLEngine client;
+    private ByteBuffer[] batch;
+    private ByteBuffer network;
+    private ByteBuffer plaintext;
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException, InterruptedException {
+        Path keystore = Files.createTempFile("benchmark", ".p12");
+        Files.delete(keystore);
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-keystore", keystore.toString(),
+                "-storetype", "PKCS12", "-storepass", password, "-keypass", password, "-alias", "server",
+                "-keyalg", "EC", "-dname", "CN=localhost", "-validity", "1").inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream input = Files.newInputStream(keystore)) {
+            store.load(input, password.toCharArray());
+        }
+        Files.delete(keystore);
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keys.getKeyManagers(), null, null);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trust.getTrustManagers(), null);
+
+        server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        client = clientContext.createSSLEngine("localhost", 6697);
+        client.setUseClientMode(true);
+        network = ByteBuffer.allocate(server.getSession().getPacketBufferSize() * 2);
+        plaintext = ByteBuffer.allocate(server.getSession().getApplicationBufferSize() * 2);
+        handshake();
+
+        batch = new ByteBuffer[lines];
+        for (int i = 0; i < lines; i++) {
+            batch[i] = ByteBuffer.wrap(line);
+        }
+    }
+
+    /** Run the handshake by passing records between the engines
+     * @throws SSLException if the handshake fails
+     */
+    private void handshake() throws SSLException {
+        ByteBuffer toServer = ByteBuffer.allocate(network.capacity());
+        ByteBuffer toClient = ByteBuffer.allocate(network.capacity());
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        client.beginHandshake();
+        server.beginHandshake();
+        while (!finished(client) || !finished(server)) {
+            step(client, toServer, toClient, empty);
+            step(server, toClient, toServer, empty);
+        }
+        // the session ticket of TLS 1.3 follows the handshake
+        receive(client, toClient);
+        receive(server, toServer);
+    }
+
+    /** Pass remaining records to an engine
+     * @param engine receiving engine
+     * @param in records sent to the engine
+     * @throws SSLException if a record is not valid
+     */
+    private void receive(SSLEngine engine, ByteBuffer in) throws SSLException {
+        in.flip();
+        while (in.hasRemaining()) {
+            plaintext.clear();
+            engine.unwrap(in, plaintext);
+        }
+        in.clear();
+    }
+
+    /** Checks if an engine needs no more handshake messages
+     * @param engine engine
+     * @return true if the handshake of the engine is finished
+     */
+    private static boolean finished(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /** Advance the handshake of one engine
+     * @param engine engine
+     * @param out records sent by the engine
+     * @param in records received by the engine
+     * @param empty empty application data
+     * @throws SSLException if the handshake fails
+     */
+    private void step(SSLEngine engine, ByteBuffer out, ByteBuffer in, ByteBuffer empty) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_TASK -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            }
+            case NEED_WRAP -> engine.wrap(empty, out);
+            case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                in.flip();
+                plaintext.clear();
+                engine.unwrap(in, plaintext);
+                in.compact();
+            }
+            default -> { }
+        }
+    }
+
+    /** Copy the lines to the socket buffer as the plaintext transport does
+     * @return buffer with the lines
+     */
+    @Benchmark
+    public ByteBuffer plaintext() {
+        network.clear();
+        for (ByteBuffer buffer : batch) {
+            network.put(buffer.clear());
+        }
+        return network;
+    }
+
+    /** Encrypt the lines into records as the server does before writing them
+     * @return buffer with the records
+     * @throws SSLException if the engine fails
+     */
+    @Benchmark
+    public ByteBuffer wrap() throws SSLException {
+        network.clear();
+        for (ByteBuffer buffer : batch) {
+            buffer.clear();
+        }
+        while (batch[lines - 1].hasRemaining()) {
+            network.clear();
+            server.wrap(batch, network);
+        }
+        return network;
+    }
+
+    /** Encrypt the lines and decrypt them at the client, which is the cost of both directions of a line
+     * @return buffer with the decrypted lines
+     * @throws SSLException if an engine fails
+     */
+    @Benchmark
+    public ByteBuffer roundTrip() throws SSLException {
+        for (ByteBuffer buffer : batch) {
+            buffer.clear();
+        }
+        plaintext.clear();
+        while (batch[lines - 1].hasRemaining()) {
+            network.clear();
+            server.wrap(batch, network);
+            network.flip();
+            while (network.hasRemaining()) {
+                if (plaintext.remaining() < line.length * lines) {
+                    plaintext.clear();
+                }
+                client.unwrap(network, plaintext);
+            }
+        }
+        return plaintext;
+    }
+}
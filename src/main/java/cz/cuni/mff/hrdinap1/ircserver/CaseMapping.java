@@ -0,0 +1,86 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/** Case mapping of nicknames and channel names, advertised by the CASEMAPPING token of RPL_ISUPPORT
+ * Names equal under the mapping denote the same user or channel. Characters are folded one at a time, so names are
+ * hashed and compared without creating their folded copies.
+ */
+public enum CaseMapping implements Comparator<String> {
+    /** Letters A to Z are the upper case of a to z */
+    ASCII('Z'),
+    /** Like ascii, and the characters []\^ are the upper case of {}|~ */
+    RFC1459('^');
+
+    /** Last character folded to lower case, the upper case characters start at A */
+    private final char lastUpper;
+
+    /** CaseMapping constructor
+     * @param lastUpper last character folded to lower case
+     */
+    CaseMapping(char lastUpper) {
+        this.lastUpper = lastUpper;
+    }
+
+    /** Get name of the mapping in RPL_ISUPPORT
+     * @return token value
+     */
+    public String getToken() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /** Fold a character to lower case
+     * @param c character
+     * @return lower case of the character, the character itself if it has none
+     */
+    public char fold(char c) {
+        return c >= 'A' && c <= lastUpper ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /** Hash a name so that names equal under the mapping have the same hash
+     * @param name nickname or channel name
+     * @return hash of the folded name
+     */
+    public int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + fold(name.charAt(i));
+        }
+        return hash;
+    }
+
+    /** Checks if two names are equal under the mapping
+     * @param first name
+     * @param second other name
+     * @return true if the names denote the same user or channel
+     */
+    public boolean equal(String first, String second) {
+        if (first.length() != second.length()) {
+            return false;
+        }
+        for (int i = 0; i < first.length(); i++) {
+            if (fold(first.charAt(i)) != fold(second.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Compare two names by their folded characters
+     * @param first name
+     * @param second other name
+     * @return negative, zero or positive as the first name is before, equal to or after the second
+     */
+    @Override
+    public int compare(String first, String second) {
+        int length = Math.min(first.length(), second.length());
+        for (int i = 0; i < length; i++) {
+            int difference = fold(first.charAt(i)) - fold(second.charAt(i));
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length() - second.length();
+    }
+}
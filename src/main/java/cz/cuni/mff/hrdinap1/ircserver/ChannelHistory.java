@@ -0,0 +1,264 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Ring buffer of recent events of one channel
+ * An event keeps the encoded line which was broadcast to the members, the same array is referenced, so recording an
+ * event copies no bytes and, once the ring has grown to its capacity, allocates nothing. The arrays of the ring grow by
+ * doubling up to the capacity, so quiet channels stay small. When the ring is full the oldest event is overwritten.
+ * Events are ordered by their ids, which the {@link HistoryStore} hands out in increasing order.
+ */
+class ChannelHistory {
+    /** Event copied out of the ring for replay
+     * @param id message id
+     * @param time time of the event in milliseconds since the epoch
+     * @param line encoded line including the line terminator, must not be modified
+     */
+    record Event(long id, long time, byte[] line) {}
+
+    /** Position in the history given by a message id or a time
+     * @param byId true if the value is a message id, else a time in milliseconds since the epoch
+     * @param value message id or time
+     */
+    record Reference(boolean byId, long value) {
+        /** Parse a reference of the CHATHISTORY command
+         * @param text <code>msgid=&lt;id&gt;</code> or <code>timestamp=&lt;time&gt;</code>
+         * @return reference or null if the text is not valid
+         */
+        static Reference parse(String text) {
+            try {
+                if (text.startsWith("msgid=")) {
+                    return new Reference(true, Long.parseLong(text.substring("msgid=".length())));
+                }
+                if (text.startsWith("timestamp=")) {
+                    return new Reference(false, Instant.parse(text.substring("timestamp=".length())).toEpochMilli());
+                }
+            } catch (NumberFormatException | DateTimeParseException ignored) {
+            }
+            return null;
+        }
+    }
+
+    private static final int initialCapacity = 16;
+
+    private final HistoryStore store;
+    private final int capacity;
+    private long[] ids = new long[0];
+    private long[] times = new long[0];
+    private byte[][] lines = new byte[0][];
+    /** Index of the oldest event */
+    private int head;
+    private int size;
+    /** Memory accounted to the store */
+    private long bytes;
+    /** Set when the channel was removed, the history then records nothing */
+    private boolean released;
+    /** Index in the histories of the store, -1 once released, guarded by the monitor of the store */
+    int slot = -1;
+
+    /** ChannelHistory constructor
+     * @param store store accounting the memory
+     * @param capacity maximum number of events
+     */
+    ChannelHistory(HistoryStore store, int capacity) {
+        this.store = store;
+        this.capacity = capacity;
+    }
+
+    /** Get accounted size of an event
+     * @param line encoded line of the event
+     * @return bytes
+     */
+    private static long eventBytes(byte[] line) {
+        return line.length + HistoryStore.eventOverhead;
+    }
+
+    /** Record an event
+     * @param time time of the event in milliseconds since the epoch
+     * @param line encoded line which was broadcast, referenced and not copied
+     */
+    void append(long time, byte[] line) {
+        long change;
+        synchronized (this) {
+            if (capacity == 0 || released) {
+                return;
+            }
+            change = eventBytes(line);
+            if (size == capacity) {
+                change -= eventBytes(lines[head]);
+                head = (head + 1) % capacity;
+                size--;
+            } else if (size == ids.length) {
+                grow();
+            }
+            int slot = (head + size) % ids.length;
+            ids[slot] = store.nextId();
+            // times are searched like ids, so they must not go back when the clock does
+            times[slot] = size > 0 ? Math.max(time, times[(head + size - 1) % ids.length]) : time;
+            lines[slot] = line;
+            size++;
+            bytes += change;
+        }
+        store.account(change);
+    }
+
+    /** Double the arrays of the ring, the oldest event moves to index 0
+     */
+    private void grow() {
+        int length = Math.min(capacity, Math.max(initialCapacity, ids.length * 2));
+        long[] newIds = new long[length];
+        long[] newTimes = new long[length];
+        byte[][] newLines = new byte[length][];
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % ids.length;
+            newIds[i] = ids[slot];
+            newTimes[i] = times[slot];
+            newLines[i] = lines[slot];
+        }
+        ids = newIds;
+        times = newTimes;
+        lines = newLines;
+        head = 0;
+    }
+
+    /** Remove the oldest event
+     * @return bytes freed, 0 if the history is empty
+     */
+    synchronized long evictOldest() {
+        if (size == 0) {
+            return 0;
+        }
+        long freed = eventBytes(lines[head]);
+        lines[head] = null;
+        head = (head + 1) % ids.length;
+        size--;
+        bytes -= freed;
+        return freed;
+    }
+
+    /** Remove all events and stop recording
+     * @return bytes freed
+     */
+    synchronized long clear() {
+        long freed = bytes;
+        released = true;
+        ids = new long[0];
+        times = new long[0];
+        lines = new byte[0][];
+        head = 0;
+        size = 0;
+        bytes = 0;
+        return freed;
+    }
+
+    /** Get number of events
+     * @return number of events
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /** Index of the first event at or after a reference
+     * Events before the index are strictly before the reference.
+     * @param reference message id or time
+     * @return index counted from the oldest event
+     */
+    private int lowerBound(Reference reference) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int slot = (head + middle) % ids.length;
+            long key = reference.byId() ? ids[slot] : times[slot];
+            if (key < reference.value()) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Index of the first event strictly after a reference
+     * @param reference message id or time
+     * @return index counted from the oldest event
+     */
+    private int upperBound(Reference reference) {
+        return lowerBound(new Reference(reference.byId(), reference.value() + 1));
+    }
+
+    /** Copy events in a range of indexes
+     * @param from index of the first event counted from the oldest event
+     * @param to index after the last event
+     * @return events from the oldest
+     */
+    private List<Event> copy(int from, int to) {
+        List<Event> events = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            int slot = (head + i) % ids.length;
+            events.add(new Event(ids[slot], times[slot], lines[slot]));
+        }
+        return events;
+    }
+
+    /** Get the latest events
+     * @param after only events after this reference are returned, null for no bound
+     * @param limit maximum number of events
+     * @return events from the oldest
+     */
+    synchronized List<Event> latest(Reference after, int limit) {
+        int from = after != null ? upperBound(after) : 0;
+        return copy(Math.max(from, size - limit), size);
+    }
+
+    /** Get events before a reference
+     * @param reference reference, which is excluded
+     * @param limit maximum number of events, the closest to the reference are returned
+     * @return events from the oldest
+     */
+    synchronized List<Event> before(Reference reference, int limit) {
+        int to = lowerBound(reference);
+        return copy(Math.max(0, to - limit), to);
+    }
+
+    /** Get events after a reference
+     * @param reference reference, which is excluded
+     * @param limit maximum number of events, the closest to the reference are returned
+     * @return events from the oldest
+     */
+    synchronized List<Event> after(Reference reference, int limit) {
+        int from = upperBound(reference);
+        return copy(from, Math.min(size, from + limit));
+    }
+
+    /** Get events around a reference
+     * @param reference reference in the middle of the returned events
+     * @param limit maximum number of events
+     * @return events from the oldest
+     */
+    synchronized List<Event> around(Reference reference, int limit) {
+        int from = Math.max(0, lowerBound(reference) - limit / 2);
+        int to = Math.min(size, from + limit);
+        return copy(Math.max(0, to - limit), to);
+    }
+
+    /** Get events between two references
+     * If the first reference is the later one, the events closest to it are returned.
+     * @param first reference the events are counted from, which is excluded
+     * @param second other bound, which is excluded
+     * @param limit maximum number of events
+     * @return events from the oldest
+     */
+    synchronized List<Event> between(Reference first, Reference second, int limit) {
+        if (lowerBound(first) <= lowerBound(second)) {
+            int from = upperBound(first);
+            return copy(from, Math.max(from, Math.min(lowerBound(second), from + limit)));
+        }
+        int to = lowerBound(first);
+        int from = upperBound(second);
+        return copy(Math.max(from, to - limit), Math.max(from, to));
+    }
+}
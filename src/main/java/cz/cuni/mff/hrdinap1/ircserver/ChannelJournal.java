@@ -0,0 +1,519 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/** Append-only journal of channel state surviving a restart
+ * Records channel creation, topic changes, operators by nickname and channel removal. Records are appended to a memory
+ * mapped file, so an append is a copy to memory under a short lock and the record survives a crash of the process as
+ * soon as it is written. A background thread forces the file to the disk every few milliseconds, one force commits
+ * every record appended since the last one, so writers never wait for the disk.
+ * <p>
+ * When a journal file fills up or the snapshot interval passes, appends continue in a new generation and the background
+ * thread writes a compacted snapshot of all channels for that generation, then deletes the older files. A snapshot
+ * holds the same records as a journal, one creation with the topic and operators per channel, and ends with a marker so
+ * a torn snapshot is ignored. Records are idempotent assignments, so a snapshot taken while the channels change is
+ * repaired by replaying the journal of its generation. Every record carries a checksum and replay stops at the first
+ * torn record.
+ * <p>
+ * Files in the directory: <code>snapshot-&lt;generation&gt;.bin</code> and <code>journal-&lt;generation&gt;.bin</code>.
+ */
+class ChannelJournal implements AutoCloseable {
+    /** Persistent state of a channel
+     * @param name channel name
+     * @param topic channel topic or null
+     * @param operators nicknames of channel operators
+     */
+    record ChannelState(String name, String topic, Collection<String> operators) {}
+
+    private static final byte created = 1;
+    private static final byte topicSet = 2;
+    private static final byte operatorAdded = 3;
+    private static final byte operatorRemoved = 4;
+    private static final byte removed = 5;
+    private static final byte snapshotEnd = 6;
+    /** Length of a string marking a null topic */
+    private static final int nullString = 0xFFFF;
+    /** Length and checksum before the body of a record */
+    private static final int recordHeader = 8;
+    /** Longest encoded string, channel names and topics are limited by the line length */
+    private static final int maxString = 1024;
+    /** Longest encoded record body */
+    private static final int maxRecord = 1 + 2 * (2 + maxString);
+
+    private final Path directory;
+    private final int fileSize;
+    private final long syncMillis;
+    private final long snapshotNanos;
+    /** State read when the journal was opened, by channel name */
+    private Map<String, ChannelState> restored = new LinkedHashMap<>();
+    /** Generation of the journal being appended to, guarded by this */
+    private long generation;
+    private FileChannel file;
+    private MappedByteBuffer buffer;
+    /** Set when records were appended since the last force, guarded by this */
+    private boolean dirty;
+    /** Set when a new generation waits for its snapshot, guarded by this */
+    private boolean snapshotDue;
+    /** Time the current generation was started, guarded by this */
+    private long generationStart;
+    /** Body of the record being appended, guarded by this */
+    private final ByteBuffer record = ByteBuffer.allocate(maxRecord);
+    private final CRC32C checksum = new CRC32C();
+    private Thread committer;
+    private volatile boolean closed;
+
+    /** ChannelJournal constructor, see {@link #open(Path, int, long, long)}
+     * @param directory directory of the journal files
+     * @param fileSize size of a journal file
+     * @param syncMillis interval of the group commit
+     * @param snapshotMillis interval of snapshots
+     */
+    private ChannelJournal(Path directory, int fileSize, long syncMillis, long snapshotMillis) {
+        this.directory = directory;
+        this.fileSize = fileSize;
+        // wait(0) would wait for a notify only and the records would not be forced until the next rotation
+        this.syncMillis = Math.max(1, syncMillis);
+        this.snapshotNanos = snapshotMillis * 1_000_000;
+    }
+
+    /** Open a journal directory and read the state saved in it
+     * Appending starts in a new generation, so a torn tail of the last journal is never appended to.
+     * @param directory directory of the journal files, created if missing
+     * @param fileSize size of a journal file in bytes
+     * @param syncMillis interval of the group commit in milliseconds, at least 1
+     * @param snapshotMillis interval of snapshots of a changing state in milliseconds
+     * @return opened journal, the saved state is returned by {@link #getRestored()}
+     * @throws IOException if the directory cannot be read or the new journal cannot be created
+     */
+    static ChannelJournal open(Path directory, int fileSize, long syncMillis, long snapshotMillis) throws IOException {
+        Files.createDirectories(directory);
+        ChannelJournal journal = new ChannelJournal(directory, fileSize, syncMillis, snapshotMillis);
+        journal.replay();
+        journal.rotate();
+        return journal;
+    }
+
+    /** Get state read when the journal was opened
+     * @return channels in the order of creation, the state is released after the call
+     */
+    List<ChannelState> getRestored() {
+        List<ChannelState> channels = List.copyOf(restored.values());
+        restored = null;
+        return channels;
+    }
+
+    /** Get generations of files with a prefix
+     * @param prefix file name prefix
+     * @return generations in ascending order
+     * @throws IOException if the directory cannot be read
+     */
+    private List<Long> generations(String prefix) throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(".bin")) {
+                    try {
+                        found.add(Long.parseLong(name.substring(prefix.length(), name.length() - 4)));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /** Get path of a file of a generation
+     * @param prefix file name prefix
+     * @param generation generation
+     * @return path in the journal directory
+     */
+    private Path path(String prefix, long generation) {
+        return directory.resolve(prefix + generation + ".bin");
+    }
+
+    /** Read the latest complete snapshot and the journals following it
+     * @throws IOException if a file cannot be read
+     */
+    private void replay() throws IOException {
+        long start = -1;
+        List<Long> snapshots = generations("snapshot-");
+        for (int i = snapshots.size() - 1; i >= 0 && start < 0; i--) {
+            restored.clear();
+            if (replayFile(path("snapshot-", snapshots.get(i)))) {
+                start = snapshots.get(i);
+            }
+        }
+        if (start < 0) {
+            restored.clear();
+        }
+        for (long journal : generations("journal-")) {
+            if (journal >= start) {
+                replayFile(path("journal-", journal));
+            }
+            generation = Math.max(generation, journal);
+        }
+        if (!snapshots.isEmpty()) {
+            generation = Math.max(generation, snapshots.getLast());
+        }
+    }
+
+    /** Apply records of a file to the restored state
+     * @param path journal or snapshot file
+     * @return true if the file ended with the snapshot marker
+     * @throws IOException if the file cannot be read
+     */
+    private boolean replayFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C crc = new CRC32C();
+            while (data.remaining() >= recordHeader) {
+                int length = data.getInt();
+                int expected = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    return false;
+                }
+                ByteBuffer body = data.slice(data.position(), length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != expected) {
+                    return false;
+                }
+                data.position(data.position() + length);
+                if (apply(body)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Apply one record to the restored state
+     * @param body body of the record
+     * @return true if it is the snapshot marker
+     */
+    private boolean apply(ByteBuffer body) {
+        byte type = body.get();
+        if (type == snapshotEnd) {
+            return true;
+        }
+        String name = decode(body);
+        switch (type) {
+            case created -> restored.put(name, new ChannelState(name, null, new LinkedHashSet<>()));
+            case topicSet -> restored.computeIfPresent(name, (key, state) -> new ChannelState(key, decode(body), state.operators()));
+            case operatorAdded -> {
+                ChannelState state = restored.get(name);
+                if (state != null) {
+                    state.operators().add(decode(body));
+                }
+            }
+            case operatorRemoved -> {
+                ChannelState state = restored.get(name);
+                if (state != null) {
+                    state.operators().remove(decode(body));
+                }
+            }
+            case removed -> restored.remove(name);
+            default -> { }
+        }
+        return false;
+    }
+
+    /** Decode a string of a record
+     * @param body body positioned at the length of the string
+     * @return the string or null
+     */
+    private static String decode(ByteBuffer body) {
+        int length = Short.toUnsignedInt(body.getShort());
+        if (length == nullString) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Encode a string to the record being appended
+     * @param text the string or null
+     */
+    private void encode(String text) {
+        if (text == null) {
+            record.putShort((short) nullString);
+        } else {
+            putString(record, text);
+        }
+    }
+
+    /** Start a new generation of the journal and request its snapshot
+     * @throws IOException if the file cannot be created
+     */
+    private synchronized void rotate() throws IOException {
+        if (file != null) {
+            buffer.force();
+            file.close();
+        }
+        generation++;
+        file = FileChannel.open(path("journal-", generation), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        generationStart = System.nanoTime();
+        snapshotDue = true;
+        notifyAll();
+    }
+
+    /** Append the record built in {@link #record}
+     * Called with the monitor held.
+     */
+    private void append() {
+        if (closed) {
+            return;
+        }
+        record.flip();
+        checksum.reset();
+        checksum.update(record.duplicate());
+        if (buffer.remaining() < recordHeader + record.remaining()) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                Log.error("Error! Could not start a new channel journal, journaling stopped");
+                closed = true;
+                return;
+            }
+        }
+        buffer.putInt(record.remaining());
+        buffer.putInt((int) checksum.getValue());
+        buffer.put(record);
+        dirty = true;
+    }
+
+    /** Record a created channel
+     * @param channel channel name
+     */
+    synchronized void created(String channel) {
+        record.clear();
+        record.put(created);
+        encode(channel);
+        append();
+    }
+
+    /** Record a topic change
+     * @param channel channel name
+     * @param topic new topic or null if it was cleared
+     */
+    synchronized void topic(String channel, String topic) {
+        record.clear();
+        record.put(topicSet);
+        encode(channel);
+        encode(topic);
+        append();
+    }
+
+    /** Record a change of a channel operator
+     * @param channel channel name
+     * @param nickname nickname of the user
+     * @param operator true if the user became an operator, false if the user is no longer one
+     */
+    synchronized void operator(String channel, String nickname, boolean operator) {
+        record.clear();
+        record.put(operator ? operatorAdded : operatorRemoved);
+        encode(channel);
+        encode(nickname);
+        append();
+    }
+
+    /** Record a removed channel
+     * @param channel channel name
+     */
+    synchronized void removed(String channel) {
+        record.clear();
+        record.put(removed);
+        encode(channel);
+        append();
+    }
+
+    /** Start the background thread committing the journal and writing snapshots
+     * @param channels source of the current state of all channels for snapshots
+     */
+    void start(Supplier<Iterator<ChannelState>> channels) {
+        committer = new Thread(() -> commitLoop(channels), "irc-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /** Force appended records to the disk periodically and write snapshots of new generations
+     * The force runs without the monitor, so appends continue while the disk works.
+     * @param channels source of the current state of all channels
+     */
+    private void commitLoop(Supplier<Iterator<ChannelState>> channels) {
+        while (!closed) {
+            MappedByteBuffer toForce = null;
+            long snapshotGeneration = -1;
+            synchronized (this) {
+                try {
+                    if (!snapshotDue) {
+                        wait(syncMillis);
+                    }
+                    if (!closed && buffer.position() > 0 && System.nanoTime() - generationStart > snapshotNanos) {
+                        rotate();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.error("Error! Could not start a new channel journal");
+                }
+                if (dirty && !closed) {
+                    toForce = buffer;
+                    dirty = false;
+                }
+                if (snapshotDue) {
+                    snapshotDue = false;
+                    snapshotGeneration = generation;
+                }
+            }
+            if (toForce != null) {
+                toForce.force();
+            }
+            if (snapshotGeneration >= 0) {
+                try {
+                    writeSnapshot(snapshotGeneration, channels.get());
+                } catch (IOException e) {
+                    Log.error("Error! Could not write a channel snapshot");
+                }
+            }
+        }
+    }
+
+    /** Write a snapshot of a generation and delete the files it replaces
+     * The snapshot is written to a temporary file which is renamed when complete.
+     * @param snapshotGeneration generation whose journal follows the snapshot
+     * @param channels current state of all channels
+     * @throws IOException if the snapshot cannot be written
+     */
+    void writeSnapshot(long snapshotGeneration, Iterator<ChannelState> channels) throws IOException {
+        long start = System.nanoTime();
+        int count = 0;
+        Path temporary = directory.resolve("snapshot-" + snapshotGeneration + ".tmp");
+        ByteBuffer body = ByteBuffer.allocate(maxRecord);
+        ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (channels.hasNext()) {
+                ChannelState state = channels.next();
+                writeRecord(channel, out, body, crc, created, state.name(), null);
+                if (state.topic() != null) {
+                    writeRecord(channel, out, body, crc, topicSet, state.name(), state.topic());
+                }
+                for (String operator : state.operators()) {
+                    writeRecord(channel, out, body, crc, operatorAdded, state.name(), operator);
+                }
+                count++;
+            }
+            writeRecord(channel, out, body, crc, snapshotEnd, null, null);
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path("snapshot-", snapshotGeneration), StandardCopyOption.ATOMIC_MOVE);
+
+        for (long old : generations("snapshot-")) {
+            if (old < snapshotGeneration) {
+                Files.deleteIfExists(path("snapshot-", old));
+            }
+        }
+        for (long old : generations("journal-")) {
+            if (old < snapshotGeneration) {
+                Files.deleteIfExists(path("journal-", old));
+            }
+        }
+        Log.info("Wrote snapshot of " + count + " channels in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /** Write one record of a snapshot
+     * @param channel snapshot file
+     * @param out output buffer, written to the file when full
+     * @param body buffer for the body
+     * @param crc checksum instance
+     * @param type record type
+     * @param name channel name or null for the marker
+     * @param value second string of the record or null if it has none
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeRecord(FileChannel channel, ByteBuffer out, ByteBuffer body, CRC32C crc, byte type,
+                                    String name, String value) throws IOException {
+        body.clear();
+        body.put(type);
+        if (name != null) {
+            putString(body, name);
+        }
+        if (value != null) {
+            putString(body, value);
+        }
+        body.flip();
+        if (out.remaining() < recordHeader + body.remaining()) {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+        crc.reset();
+        crc.update(body.duplicate());
+        out.putInt(body.remaining());
+        out.putInt((int) crc.getValue());
+        out.put(body);
+    }
+
+    /** Put a string to a buffer, strings longer than the limit are cut
+     * @param buffer target buffer
+     * @param text the string
+     */
+    private static void putString(ByteBuffer buffer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, maxString);
+        buffer.putShort((short) length);
+        buffer.put(bytes, 0, length);
+    }
+
+    /** Commit the appended records and stop journaling
+     * Waits for a snapshot being written, so the directory is not changed after the journal is closed.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            thread = committer;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                buffer.force();
+                file.close();
+            } catch (IOException e) {
+                Log.error("Error! Could not close the channel journal");
+            }
+        }
+    }
+}
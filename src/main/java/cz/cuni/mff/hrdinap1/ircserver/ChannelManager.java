@@ -1,52 +1,65 @@
 package cz.cuni.mff.hrdinap1.ircserver;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 
 /** Class responsible for managing channels
+ * Updates of every channel are guarded by the lock of its stripe, see {@link #getLock(String)}. Methods of this class
+ * take the lock themselves, callers hold it across a sequence of calls which has to be atomic. Queries read the last
+ * published state of the channel and take no lock. Channel names are compared under the configured case mapping.
  */
 public class ChannelManager {
-    /** Class representing user in a channel
+    /** State of a channel shown by LIST
+     * @param name channel name
+     * @param users number of users
+     * @param topic channel topic or null
      */
-    private class ChannelUser {
-        public int connId;
-        public boolean isOperator;
+    public record ChannelInfo(String name, int users, String topic) {}
 
-        /**
-         * @param connId id of the user's connection
-         */
-        public ChannelUser(int connId) {
-            this.connId = connId;
-            this.isOperator = false;
-        }
-    }
+    /** Names of a channel rendered for one line budget
+     * @param budget line budget the names were rendered for
+     * @param lines names separated by spaces, one element per line
+     */
+    private record RenderedNames(int budget, List<String> lines) {}
 
     /** Class representing a channel
-     * Includes information about users and topic of the channel.
+     * Includes information about users and topic of the channel. Updates are made under the channel lock, readers do not
+     * lock: the member set is copied on write and every change publishes a new set, so a reader holding a set sees a
+     * stable membership while joins and parts go on.
      */
     private class Channel {
-        private final Map<Integer, ChannelUser> users;
-        String topic;
-
-        /** Channel constructor
-         */
-        public Channel() {
-            this.users = new HashMap<>();
-        }
+        /** ConnIds of joined users, the flag marks channel operators, a published set is never modified */
+        private volatile IntFlagSet users = new IntFlagSet();
+        /** Rendered names of the users, updated together with the users */
+        private final NamesCache names = new NamesCache();
+        /** Names rendered by the last NAMES query, null when the members changed since */
+        private volatile RenderedNames rendered;
+        private volatile String topic;
+        /** Recent events replayed by CHATHISTORY, null if the history is off */
+        private final ChannelHistory history = historyStore.create();
+        /** Nicknames of operators of a channel restored from the journal who have not joined yet, null if none */
+        private Set<String> savedOperators;
 
         /** Checks if user is joined
          * @param connId id of the user's connection
          * @return true if user is joined
          */
         public boolean isJoined(int connId) {
-            return users.containsKey(connId);
+            return users.contains(connId);
         }
 
         /** Add user to channel
          * @param connId id of the user's connection
          */
         public void join(int connId) {
-            if (!users.containsKey(connId)) {
-                users.put(connId, new ChannelUser(connId));
+            IntFlagSet next = new IntFlagSet(users);
+            if (next.add(connId)) {
+                users = next;
+                names.add(connId);
+                rendered = null;
             }
         }
 
@@ -54,7 +67,12 @@ public class ChannelManager {
          * @param connId id of the user's connection
          */
         public void quit(int connId) {
-            users.remove(connId);
+            IntFlagSet next = new IntFlagSet(users);
+            if (next.remove(connId)) {
+                users = next;
+                names.remove(connId);
+                rendered = null;
+            }
         }
 
         /** Check if user is operator
@@ -62,29 +80,36 @@ public class ChannelManager {
          * @return true if user is operator
          */
         public boolean isOperator(int connId) {
-            if (users.containsKey(connId)) {
-                return users.get(connId).isOperator;
-            } else {
-                return false;
-            }
+            return users.getFlag(connId);
         }
 
         /** Give operator status to user
          * @param connId id of the user's connection
          */
         public void setOperator(int connId) {
-            if (users.containsKey(connId)) {
-                users.get(connId).isOperator = true;
-            } else {
-                System.out.println("Error user not in channel.");
+            IntFlagSet next = new IntFlagSet(users);
+            if (!next.setFlag(connId, true)) {
+                Log.error("Error user not in channel.");
+                return;
             }
+            users = next;
+            names.invalidate(connId);
+            rendered = null;
+        }
+
+        /** Mark the rendered name of a user stale
+         * @param connId id of the user's connection
+         */
+        public void rename(int connId) {
+            names.invalidate(connId);
+            rendered = null;
         }
 
         /** Get connection ids of channel users
-         * @return set of connection ids of channel users
+         * @return current set of connection ids of channel users with the operator flag, must not be modified
          */
-        public Set<Integer> getUsers() {
-            return users.keySet();
+        public IntFlagSet getUsers() {
+            return users;
         }
 
         /** Get number of users in channel
@@ -123,11 +148,58 @@ public class ChannelManager {
 
     }
 
-    /** List of channels stored as mapping of names to corresponding channel class for fast look up */
-    private final Map<String, Channel> nameToChann;
-
+    /** Number of lock stripes */
+    private static final int lockStripes = 256;
+
+    /** List of channels stored as mapping of names to corresponding channel class for fast look up, the names are
+     * compared under the case mapping and kept in the case the channel was created with */
+    private final NameMap<Channel> nameToChann;
+    private final CaseMapping caseMapping;
+    /** Reverse index of channels joined by each user, updated together with the membership under the channel lock */
+    private final IntObjectMap<Set<String>> userChannels;
+    /** Locks guarding channels, a channel is created and removed under its lock as well */
+    private final LockStripes locks;
+    /** Memory budget and message ids of the channel histories */
+    private final HistoryStore historyStore;
+    /** Journal of channel state or null if channels are not saved */
+    private volatile ChannelJournal journal;
+    /** Nicknames of users, for the operators recorded in the journal */
+    private IntFunction<String> nicknames;
+
+    /** ChannelManager constructor with the default configuration
+     */
     public ChannelManager() {
-        nameToChann = new HashMap<>();
+        this(new ServerConfig());
+    }
+
+    /** ChannelManager constructor
+     * @param config configuration with the size of the channel histories
+     */
+    public ChannelManager(ServerConfig config) {
+        caseMapping = config.caseMapping;
+        nameToChann = new NameMap<>(caseMapping);
+        userChannels = new IntObjectMap<>();
+        locks = new LockStripes(lockStripes);
+        historyStore = new HistoryStore(config.historyLength, config.historyBudgetBytes);
+    }
+
+    /** Get lock guarding a channel
+     * Operations on channels in different stripes run in parallel. Hold the lock when a check and the following update
+     * or broadcast must not interleave with other commands on the channel.
+     * @param channel channel name in any case
+     * @return lock of the channel's stripe
+     */
+    public ReentrantLock getLock(String channel) {
+        return locks.get(caseMapping.hash(channel));
+    }
+
+    /** Get name of a channel in the case it was created with
+     * @param channel channel name in any case
+     * @return name of the existing channel or the given name if there is no such channel
+     */
+    public String getChannelName(String channel) {
+        String name = nameToChann.getKey(channel);
+        return name != null ? name : channel;
     }
 
     /** Get channel instance by channel name
@@ -135,7 +207,43 @@ public class ChannelManager {
      * @return channel instance or null if the channel does not exist
      */
     private Channel getChannel(String channel) {
-        return nameToChann.getOrDefault(channel, null);
+        return nameToChann.get(channel);
+    }
+
+    /** Record that a user joined a channel
+     * @param connId id of the user's connection
+     * @param channel channel name
+     */
+    private void indexJoin(int connId, String channel) {
+        Set<String> channels = userChannels.get(connId);
+        if (channels == null) {
+            Set<String> created = ConcurrentHashMap.newKeySet(4);
+            channels = userChannels.putIfAbsent(connId, created);
+            if (channels == null) {
+                channels = created;
+            }
+        }
+        channels.add(channel);
+    }
+
+    /** Record that a user left a channel
+     * @param connId id of the user's connection
+     * @param channel channel name
+     */
+    private void indexLeave(int connId, String channel) {
+        Set<String> channels = userChannels.get(connId);
+        if (channels != null) {
+            channels.remove(channel);
+        }
+    }
+
+    /** Get names of channels joined by a user
+     * @param connId id of the user's connection
+     * @return list of channel names
+     */
+    public List<String> getUserChannels(int connId) {
+        Set<String> channels = userChannels.get(connId);
+        return channels != null ? List.copyOf(channels) : List.of();
     }
 
     /** Create a channel and join user
@@ -147,20 +255,180 @@ public class ChannelManager {
         newChannel.join(connId);
         newChannel.setOperator(connId);
         nameToChann.put(channel, newChannel);
+        indexJoin(connId, channel);
+        if (journal != null) {
+            journal.created(channel);
+            journal.operator(channel, nicknames.apply(connId), true);
+        }
+    }
+
+    /** Restore channels saved in a journal and record all further changes of channels in it
+     * Restored channels have no users, their saved operators become operators again when they join. Must be called
+     * before any user connects.
+     * @param journal opened journal
+     * @param nicknames nicknames of users by connId
+     * @return number of restored channels
+     */
+    int attachJournal(ChannelJournal journal, IntFunction<String> nicknames) {
+        List<ChannelJournal.ChannelState> restored = journal.getRestored();
+        for (ChannelJournal.ChannelState state : restored) {
+            Channel channel = new Channel();
+            channel.setTopic(state.topic());
+            channel.savedOperators = new TreeSet<>(caseMapping);
+            channel.savedOperators.addAll(state.operators());
+            nameToChann.put(state.name(), channel);
+        }
+        this.nicknames = nicknames;
+        this.journal = journal;
+        journal.start(this::channelStates);
+        return restored.size();
+    }
+
+    /** Iterate over the persistent state of all channels
+     * Each channel is read under its lock when the iterator reaches it.
+     * @return iterator over the channels
+     */
+    private Iterator<ChannelJournal.ChannelState> channelStates() {
+        Iterator<Map.Entry<String, Channel>> entries = nameToChann.entries();
+        return new Iterator<>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public ChannelJournal.ChannelState next() {
+                Map.Entry<String, Channel> entry = entries.next();
+                ReentrantLock lock = getLock(entry.getKey());
+                lock.lock();
+                try {
+                    Channel ch = entry.getValue();
+                    List<String> operators = new ArrayList<>();
+                    ch.getUsers().forEach((int member, boolean operator) -> {
+                        if (operator) {
+                            operators.add(nicknames.apply(member));
+                        }
+                    });
+                    if (ch.savedOperators != null) {
+                        operators.addAll(ch.savedOperators);
+                    }
+                    return new ChannelJournal.ChannelState(entry.getKey(), ch.getTopic(), operators);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    /** Give operator status to a user who joined a channel restored from the journal
+     * Saved operators get their status back, the first user joining a restored channel without operators becomes one.
+     * Called with the channel lock held.
+     * @param channel channel name
+     * @param ch the channel
+     * @param connId id of the user's connection
+     * @param wasEmpty true if the channel had no users before the join
+     */
+    private void restoreOperator(String channel, Channel ch, int connId, boolean wasEmpty) {
+        String nickname = nicknames.apply(connId);
+        if (ch.savedOperators.remove(nickname)) {
+            ch.setOperator(connId);
+        } else if (wasEmpty && ch.savedOperators.isEmpty()) {
+            ch.setOperator(connId);
+            journal.operator(channel, nickname, true);
+        }
+        if (ch.savedOperators.isEmpty()) {
+            ch.savedOperators = null;
+        }
     }
 
     /** Remove channel
      * @param channel channel name
      */
     private void removeChannel(String channel) {
-        nameToChann.remove(channel);
+        Channel removed = nameToChann.remove(channel);
+        if (removed != null && removed.history != null) {
+            historyStore.release(removed.history);
+        }
     }
 
-    /** Get list of channel names
-     * @return list of channel names
+    /** Get number of channels
+     * @return number of channels
      */
-    public List<String> getChannels() {
-        return nameToChann.keySet().stream().toList();
+    public int getChannelCount() {
+        return nameToChann.size();
+    }
+
+    /** Get number of memberships of all users in all channels
+     * Read without locks, so the result is only approximate while users join and leave.
+     * @return sum of member counts of all channels
+     */
+    public long getMembershipCount() {
+        long[] count = {0};
+        nameToChann.forEach(channel -> count[0] += channel.count());
+        return count[0];
+    }
+
+    /** Iterate over a snapshot of the channels existing at the time of the call
+     * The snapshot copies one reference per bucket of the name map, not the channels, see {@link NameMap#snapshot()}.
+     * The user count and topic of each channel are read without locking when the iterator reaches it, a channel removed
+     * meanwhile is returned with no users.
+     * @return iterator over the channels
+     */
+    public Iterator<ChannelInfo> listChannels() {
+        Iterator<Map.Entry<String, Channel>> entries = nameToChann.snapshot();
+        return new Iterator<>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public ChannelInfo next() {
+                Map.Entry<String, Channel> entry = entries.next();
+                Channel ch = entry.getValue();
+                return new ChannelInfo(entry.getKey(), ch.count(), ch.getTopic());
+            }
+        };
+    }
+
+    /** Get state of a channel shown by LIST
+     * @param channel channel name
+     * @return state of the channel or null if it does not exist
+     */
+    public ChannelInfo getChannelInfo(String channel) {
+        Channel ch = getChannel(channel);
+        return ch != null ? new ChannelInfo(getChannelName(channel), ch.count(), ch.getTopic()) : null;
+    }
+
+    /** Record an event of a channel in its history
+     * Called after the line was broadcast, the line is kept without copying.
+     * @param channel channel name
+     * @param line encoded line which was broadcast
+     */
+    public void recordHistory(String channel, byte[] line) {
+        Channel ch = getChannel(channel);
+        if (ch != null && ch.history != null) {
+            ch.history.append(System.currentTimeMillis(), line);
+        }
+    }
+
+    /** Get history of a channel
+     * @param channel channel name
+     * @return history or null if the channel does not exist or the history is off
+     */
+    ChannelHistory getHistory(String channel) {
+        Channel ch = getChannel(channel);
+        return ch != null ? ch.history : null;
+    }
+
+    /** Get number of events kept per channel
+     * @return capacity of a channel history, 0 if histories are off
+     */
+    public int getHistoryLength() {
+        return historyStore.getHistoryLength();
+    }
+
+    /** Get memory accounted to the histories of all channels
+     * @return bytes
+     */
+    public long getHistoryBytes() {
+        return historyStore.getUsedBytes();
     }
 
     /** Checks if the channel exists
@@ -174,24 +442,100 @@ public class ChannelManager {
      * @param channel channel name
      * @return true if user is channel operator
      */
-    public boolean isChannelOperator(int connId, String channel) { return isUserInChannel(connId, channel) && nameToChann.get(channel).isOperator(connId); }
+    public boolean isChannelOperator(int connId, String channel) {
+        Channel ch = getChannel(channel);
+        return ch != null && ch.isOperator(connId);
+    }
 
     /** Checks if user is in a channel
      * @param connId id of the user's connection
      * @param channel channel name
      * @return true if user is in a channel
      */
-    public boolean isUserInChannel(int connId, String channel) { return nameToChann.containsKey(channel) && nameToChann.get(channel).isJoined(connId); }
+    public boolean isUserInChannel(int connId, String channel) {
+        Channel ch = getChannel(channel);
+        return ch != null && ch.isJoined(connId);
+    }
+
+    /** Call an action for connId of every user in a channel
+     * Visits the members published when the call starts without holding the channel lock, so members joining or leaving
+     * meanwhile are not waiting for the action.
+     * @param channel channel name
+     * @param action action taking the connId
+     */
+    public void forEachChannelUser(String channel, IntConsumer action) {
+        Channel ch = getChannel(channel);
+        if (ch != null) {
+            ch.getUsers().forEach(action);
+        }
+    }
+
+    /** Call a visitor for connId and operator status of every user in a channel
+     * Visits the members published when the call starts without holding the channel lock.
+     * @param channel channel name
+     * @param visitor visitor taking the connId and true if the user is a channel operator
+     */
+    public void forEachChannelUser(String channel, IntFlagSet.Visitor visitor) {
+        Channel ch = getChannel(channel);
+        if (ch != null) {
+            ch.getUsers().forEach(visitor);
+        }
+    }
 
-    /** Get connIds of users in a channel
+    /** Get names of users in a channel split into lines
+     * If the members did not change since the last call with the same budget, the published lines are returned without
+     * locking. Otherwise only names changed since the last call are rendered again under the channel lock.
      * @param channel channel name
-     * @return set of connIds of users in the channel
+     * @param lineBudget maximum length of the names in one line in UTF-8 bytes
+     * @param renderer renders the name of a user
+     * @return names separated by spaces, one element per line, empty if the channel does not exist
      */
-    public Set<Integer> getChannelUsers(String channel) {
-        if (channelExists(channel)) {
-            return getChannel(channel).getUsers();
-        } else {
-            return new HashSet<>();
+    public List<String> getNames(String channel, int lineBudget, NamesCache.Renderer renderer) {
+        Channel ch = getChannel(channel);
+        RenderedNames current = ch != null ? ch.rendered : null;
+        if (current != null && current.budget() == lineBudget) {
+            return current.lines();
+        }
+
+        ReentrantLock lock = getLock(channel);
+        lock.lock();
+        try {
+            ch = getChannel(channel);
+            if (ch == null) {
+                return List.of();
+            }
+            current = ch.rendered;
+            if (current == null || current.budget() != lineBudget) {
+                current = new RenderedNames(lineBudget, ch.names.render(ch.getUsers(), lineBudget, renderer));
+                ch.rendered = current;
+            }
+            return current.lines();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Update channels of a user after a nickname change
+     * Marks the rendered name of the user stale and records the new nickname of an operator in the journal.
+     * @param connId id of the user's connection
+     * @param previous previous nickname of the user
+     */
+    public void renameUser(int connId, String previous) {
+        for (String channel : getUserChannels(connId)) {
+            ReentrantLock lock = getLock(channel);
+            lock.lock();
+            try {
+                Channel ch = getChannel(channel);
+                if (ch != null) {
+                    ch.rename(connId);
+                    if (journal != null && ch.isOperator(connId)) {
+                        journal.operator(channel, previous, false);
+                        journal.operator(channel, nicknames.apply(connId), true);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
@@ -200,11 +544,8 @@ public class ChannelManager {
      * @return number of users in the channel
      */
     public int getCount(String channel) {
-        if (channelExists(channel)) {
-            return getChannel(channel).count();
-        } else {
-            return 0;
-        }
+        Channel ch = getChannel(channel);
+        return ch != null ? ch.count() : 0;
     }
 
     /** Add user to channel or create channel if it does not exist
@@ -213,10 +554,56 @@ public class ChannelManager {
      * @param key not used
      */
     public void join(int connId, String channel, String key) {
-        if (channelExists(channel)) {
-            getChannel(channel).join(connId);
-        } else {
-            addChannel(channel, connId);
+        ReentrantLock lock = getLock(channel);
+        lock.lock();
+        try {
+            channel = getChannelName(channel);
+            Channel ch = getChannel(channel);
+            if (ch != null) {
+                boolean wasEmpty = ch.count() == 0;
+                ch.join(connId);
+                indexJoin(connId, channel);
+                if (ch.savedOperators != null) {
+                    restoreOperator(channel, ch, connId, wasEmpty);
+                }
+            } else {
+                addChannel(channel, connId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Add user to a channel with a given operator status
+     * Used for users of other servers, whose status is decided by their server. A new channel is created without
+     * making the user an operator.
+     * @param connId id of the user's connection
+     * @param channel channel name
+     * @param operator true if the user is an operator of the channel
+     */
+    public void joinMember(int connId, String channel, boolean operator) {
+        ReentrantLock lock = getLock(channel);
+        lock.lock();
+        try {
+            channel = getChannelName(channel);
+            Channel ch = getChannel(channel);
+            if (ch == null) {
+                ch = new Channel();
+                nameToChann.put(channel, ch);
+                if (journal != null) {
+                    journal.created(channel);
+                }
+            }
+            ch.join(connId);
+            indexJoin(connId, channel);
+            if (operator) {
+                ch.setOperator(connId);
+                if (journal != null) {
+                    journal.operator(channel, nicknames.apply(connId), true);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -225,23 +612,38 @@ public class ChannelManager {
      * @param channel channel name
      */
     public void leave(int connId, String channel) {
-        if (channelExists(channel)) {
-            Channel ch = getChannel(channel);
-            ch.quit(connId);
-            if (ch.count() == 0) {
-                removeChannel(channel);
+        ReentrantLock lock = getLock(channel);
+        lock.lock();
+        try {
+            channel = getChannelName(channel);
+            if (channelExists(channel)) {
+                Channel ch = getChannel(channel);
+                boolean wasOperator = ch.isOperator(connId);
+                ch.quit(connId);
+                indexLeave(connId, channel);
+                if (ch.count() == 0) {
+                    removeChannel(channel);
+                    if (journal != null) {
+                        journal.removed(channel);
+                    }
+                } else if (wasOperator && journal != null) {
+                    journal.operator(channel, nicknames.apply(connId), false);
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     /** Removes a user from all channels
-     * should be used for cleanup when user is disconnected
+     * should be used for cleanup when user is disconnected. Only the user's own channels are visited.
      * @param connId id of the user's connection
      */
     public void removeUser(int connId) {
-        for (String channel: nameToChann.keySet()) {
+        for (String channel: getUserChannels(connId)) {
             leave(connId, channel);
         }
+        userChannels.remove(connId);
     }
 
     /** Checks if topic is set
@@ -249,11 +651,8 @@ public class ChannelManager {
      * @return true if topic is set
      */
     public boolean isTopicSet(String channel) {
-        if (channelExists(channel)) {
-            return getChannel(channel).isTopicSet();
-        } else {
-            return false;
-        }
+        Channel ch = getChannel(channel);
+        return ch != null && ch.isTopicSet();
     }
 
     /** Get channel topic
@@ -261,11 +660,8 @@ public class ChannelManager {
      * @return Channel topic string or empty string
      */
     public String getTopic(String channel) {
-        if (channelExists(channel)) {
-            return getChannel(channel).getTopic();
-        } else {
-            return "";
-        }
+        Channel ch = getChannel(channel);
+        return ch != null ? ch.getTopic() : "";
     }
 
     /** Set channel topic
@@ -273,8 +669,18 @@ public class ChannelManager {
      * @param topic topic string
      */
     public void setTopic(String channel, String topic) {
-        if (channelExists(channel)) {
-            getChannel(channel).setTopic(topic);
+        ReentrantLock lock = getLock(channel);
+        lock.lock();
+        try {
+            channel = getChannelName(channel);
+            if (channelExists(channel)) {
+                getChannel(channel).setTopic(topic);
+                if (journal != null) {
+                    journal.topic(channel, topic);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -282,8 +688,18 @@ public class ChannelManager {
      * @param channel channel name
      */
     public void clearTopic(String channel) {
-        if (channelExists(channel)) {
-            getChannel(channel).clearTopic();
+        ReentrantLock lock = getLock(channel);
+        lock.lock();
+        try {
+            channel = getChannelName(channel);
+            if (channelExists(channel)) {
+                getChannel(channel).clearTopic();
+                if (journal != null) {
+                    journal.topic(channel, null);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,240 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.List;
+
+/** Class responsible for turning received lines into server commands
+ * Shared by all transports, so the blocking and the non-blocking connections behave the same. Commands are looked up in
+ * a registry keyed by the command token, new commands are added by {@link #register(String, Handler, long)}. Every
+ * command has a flood penalty, which the connection charges to its {@link FloodControl}.
+ */
+public class CommandDispatcher {
+    /** Handler of one command */
+    @FunctionalInterface
+    public interface Handler {
+        /** Service a command
+         * @param parameters command's parameters, only valid during the call
+         * @param connId id of the user's connection
+         */
+        void handle(List<String> parameters, int connId);
+    }
+
+    /** Registered command
+     * @param handler handler servicing the command
+     * @param penaltyMillis flood penalty of the command, negative for the default penalty
+     */
+    private record Command(Handler handler, long penaltyMillis) {}
+
+    /** Immutable open addressing table of commands
+     * Lookups hash the command directly in the received line ignoring ASCII case, so no string is created for it.
+     */
+    private static class Table {
+        private final String[] names;
+        private final Command[] entries;
+        private final int size;
+
+        /** Table constructor
+         * @param capacity number of slots, must be a power of two
+         */
+        Table(int capacity) {
+            names = new String[capacity];
+            entries = new Command[capacity];
+            size = 0;
+        }
+
+        /** Copy constructor adding one command
+         * @param other table to copy
+         * @param name upper case command name
+         * @param command registered command
+         */
+        private Table(Table other, String name, Command command) {
+            int capacity = other.names.length;
+            if ((other.size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+            names = new String[capacity];
+            entries = new Command[capacity];
+            int count = 0;
+            for (int i = 0; i < other.names.length; i++) {
+                if (other.names[i] != null && !other.names[i].equals(name)) {
+                    insert(other.names[i], other.entries[i]);
+                    count++;
+                }
+            }
+            insert(name, command);
+            size = count + 1;
+        }
+
+        /** Upper case of an ASCII letter
+         * @param c character
+         * @return upper case letter or the character itself
+         */
+        private static char toUpper(char c) {
+            return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+        }
+
+        /** Hash of a region ignoring ASCII case
+         * @param text text containing the region
+         * @param start start index
+         * @param end end index
+         * @return hash of the region
+         */
+        private static int hash(String text, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + toUpper(text.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /** Put a command to a free slot
+         * @param name upper case command name
+         * @param command registered command
+         */
+        private void insert(String name, Command command) {
+            int mask = names.length - 1;
+            int slot = hash(name, 0, name.length()) & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = name;
+            entries[slot] = command;
+        }
+
+        /** Table with one more command
+         * @param name upper case command name
+         * @param command registered command
+         * @return new table
+         */
+        Table with(String name, Command command) {
+            return new Table(this, name, command);
+        }
+
+        /** Find a command
+         * @param text text containing the command
+         * @param start start index of the command
+         * @param end end index of the command
+         * @return command or null if the command is unknown
+         */
+        Command lookup(String text, int start, int end) {
+            int mask = names.length - 1;
+            int slot = hash(text, start, end) & mask;
+            while (names[slot] != null) {
+                if (matches(names[slot], text, start, end)) {
+                    return entries[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        /** Compare command name with a region ignoring ASCII case
+         * @param name upper case command name
+         * @param text text containing the region
+         * @param start start index
+         * @param end end index
+         * @return true if equal
+         */
+        private static boolean matches(String name, String text, int start, int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != toUpper(text.charAt(start + i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Registered commands, replaced as a whole on registration so lookups need no lock */
+    private volatile Table commands = new Table(16);
+    private final Metrics metrics;
+
+    /** CommandDispatcher constructor
+     */
+    public CommandDispatcher() {
+        this(new Metrics());
+    }
+
+    /** CommandDispatcher constructor
+     * @param metrics registry counting and timing the dispatched commands
+     */
+    public CommandDispatcher(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Register a command with the default flood penalty
+     * @param command command name, case does not matter
+     * @param handler handler servicing the command
+     */
+    public void register(String command, Handler handler) {
+        register(command, handler, -1);
+    }
+
+    /** Register a command
+     * Registering a command again replaces its handler. Every call of the handler is counted and timed.
+     * @param command command name, case does not matter
+     * @param handler handler servicing the command
+     * @param penaltyMillis flood penalty of the command, negative for the default penalty of the connection
+     */
+    public synchronized void register(String command, Handler handler, long penaltyMillis) {
+        StringBuilder name = new StringBuilder(command.length());
+        for (int i = 0; i < command.length(); i++) {
+            name.append(Table.toUpper(command.charAt(i)));
+        }
+        Metrics.CommandMetrics commandMetrics = metrics.command(name.toString());
+        commands = commands.with(name.toString(), new Command((parameters, connId) -> {
+            long start = System.nanoTime();
+            handler.handle(parameters, connId);
+            commandMetrics.record(System.nanoTime() - start);
+        }, penaltyMillis));
+    }
+
+    /** Parse line and call command
+     * @param line line to parse
+     * @param message message instance reused for parsing lines of the connection
+     * @param connId id of the user's connection
+     * @return flood penalty of the command in milliseconds, negative for the default penalty
+     */
+    public long processLine(String line, IRCMessage message, int connId) {
+        Log.traffic(connId, line);
+        if (!message.parse(line)) {
+            return -1;
+        }
+        return dispatch(message, connId);
+    }
+
+    /** Call command of a parsed line
+     * @param message parsed line
+     * @param connId id of the user's connection
+     * @return flood penalty of the command in milliseconds, negative for the default penalty
+     */
+    public long dispatch(IRCMessage message, int connId) {
+        Command command = commands.lookup(message.getLine(), message.getCommandStart(), message.getCommandEnd());
+        if (command != null) {
+            command.handler().handle(message.getParameters(), connId);
+            return command.penaltyMillis();
+        }
+        metrics.unknownCommand();
+        return -1;
+    }
+
+    /** Get flood penalty of the command of a parsed line without calling it
+     * @param message parsed line
+     * @return flood penalty of the command in milliseconds, negative for the default penalty
+     */
+    public long getPenalty(IRCMessage message) {
+        Command command = commands.lookup(message.getLine(), message.getCommandStart(), message.getCommandEnd());
+        return command != null ? command.penaltyMillis() : -1;
+    }
+
+    /** Parse line and call command
+     * @param line line to parse
+     * @param connId id of the user's connection
+     * @return flood penalty of the command in milliseconds, negative for the default penalty
+     */
+    public long processLine(String line, int connId) {
+        return processLine(line, new IRCMessage(), connId);
+    }
+}
@@ -0,0 +1,36 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.Arrays;
+
+/** Allocator of connection ids
+ * Released ids are kept on a stack and handed out again before any new id, so ids never exceed the highest number of
+ * connections open at the same time and tables indexed by connId stay dense. Both operations are O(1) and thread safe.
+ */
+class ConnIdAllocator {
+    /** Released ids, the top of the stack is at index freeCount - 1 */
+    private int[] free = new int[64];
+    private int freeCount;
+    /** Lowest id never handed out */
+    private int next;
+
+    /** Get an unused id
+     * @return connection id
+     */
+    synchronized int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        return next++;
+    }
+
+    /** Return an id for reuse
+     * @param connId id which is no longer used
+     */
+    synchronized void release(int connId) {
+        assert connId >= 0 && connId < next;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = connId;
+    }
+}
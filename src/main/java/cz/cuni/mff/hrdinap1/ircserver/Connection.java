@@ -0,0 +1,64 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.nio.charset.StandardCharsets;
+
+/** Outbound side of a user's connection
+ * Implemented by every transport so the server can send messages without knowing how the socket is serviced.
+ * Sending never waits for the socket, messages go to a bounded outbound queue handled according to
+ * {@link ServerConfig.OutboundPolicy} when it is full.
+ */
+public interface Connection {
+    /** Encode a message to the bytes of a protocol line
+     * @param message text of the message without line terminator
+     * @return UTF-8 bytes of the message terminated by CR LF
+     */
+    static byte[] encode(String message) {
+        return (message + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Send message to the connection
+     * @param message text of the message without line terminator
+     */
+    default void sendMessage(String message) {
+        send(encode(message));
+    }
+
+    /** Send an encoded line to the connection
+     * The array may be shared by many connections, so it is never modified.
+     * @param line bytes of the line including the line terminator, see {@link #encode(String)}
+     */
+    void send(byte[] line);
+
+    /** Send an encoded line of a channel broadcast
+     * Connections of users on other servers do not send the line, they return the bit of the server link leading to
+     * the user instead, so the line is forwarded once per link and not once per remote member, see
+     * {@link LinkManager}.
+     * @param line bytes of the line including the line terminator, shared by all members
+     * @return bit of the server link to forward the line to, 0 if the line was sent
+     */
+    default long broadcast(byte[] line) {
+        send(line);
+        return 0;
+    }
+
+    /** Get number of messages waiting to be written to the socket
+     * @return depth of the outbound queue
+     */
+    int getQueueDepth();
+
+    /** Run a task once the outbound queue is empty
+     * Used to stream long replies without overflowing the queue. The task may run on another thread and is dropped if
+     * the connection closes first. The default runs it right away, for connections without a queue.
+     * @param task task to run
+     */
+    default void whenDrained(Runnable task) {
+        task.run();
+    }
+
+    /** Close the connection from the server side
+     * The transport then does the cleanup as if the client disconnected. The default does nothing, for connections
+     * without a socket.
+     */
+    default void close() {
+    }
+}
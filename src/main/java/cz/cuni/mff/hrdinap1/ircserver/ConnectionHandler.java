@@ -2,19 +2,29 @@ package cz.cuni.mff.hrdinap1.ircserver;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** Class responsible for handling the communication on the socket
- * It reads commands on the connection and calls the server methods
+ * It reads commands on the connection and calls the server methods. Messages for the connection are put to a bounded
+ * queue and written by a separate writer thread, so a slow client never stalls the sender. A client flooding the server
+ * is slowed down by sleeping before its next line is read, see {@link FloodControl}.
  */
-public class ConnectionHandler implements Runnable {
+public class ConnectionHandler implements Runnable, Connection {
     private final Socket socket;
     private final int connId;
     private final IRCServer server;
-    private PrintWriter out;
+    /** Parsed message reused for every received line */
+    private final IRCMessage message = new IRCMessage();
+    private final FloodControl floodControl;
+    /** Encoded lines waiting for the writer */
+    private final BlockingQueue<byte[]> outbound;
+    private Thread writer;
+    /** Task waiting for the outbound queue to drain */
+    private final AtomicReference<Runnable> drainTask = new AtomicReference<>();
+    private volatile boolean closed;
 
     /** ConnectionHandler constructor
      * @param connection socket with opened connection
@@ -25,82 +35,181 @@ public class ConnectionHandler implements Runnable {
         this.socket = connection;
         this.connId = connId;
         this.server = server;
+        this.outbound = new ArrayBlockingQueue<>(server.getConfig().outboundQueueSize);
+        this.floodControl = new FloodControl(server.getConfig(), server.getMetrics());
         server.connect(connId);
     }
 
-    /** Calls command on the server instance
-     * @param cmd command to call
-     * @param parameters command's parameters
+    /** Cleanup method
      */
-    private void callCommand(String cmd, List<String> parameters) {
-        if ("NICK".equals(cmd)) {
-            server.cmdNick(parameters, connId);
-        } else if ("USER".equals(cmd)) {
-            server.cmdUser(parameters, connId);
-        } else if ("JOIN".equals(cmd)) {
-            server.cmdJoin(parameters, connId);
-        } else if ("PRIVMSG".equals(cmd)) {
-            server.cmdPrivmsg(parameters, connId);
-        } else if ("PART".equals(cmd)) {
-            server.cmdPart(parameters, connId);
-        } else if ("NAMES".equals(cmd)) {
-            server.cmdNames(parameters, connId);
-        } else if ("LIST".equals(cmd)) {
-            server.cmdList(parameters, connId);
-        } else if ("TOPIC".equals(cmd)) {
-            server.cmdTopic(parameters, connId);
-        } else if ("KICK".equals(cmd)) {
-            server.cmdKick(parameters, connId);
+    private void disconnect() {
+        closed = true;
+        server.disconnect(connId);
+        outbound.clear();
+        drainTask.set(null);
+        if (writer != null) {
+            writer.interrupt();
         }
     }
 
-    /** Parse line and call command
-     * @param line line to parse
+    /** Close the socket, the read loop then ends and does the cleanup
      */
-    private void processLine(String line) {
-        List<String> words = Arrays.stream(line.split("\\s+")).toList();
-        String cmd = words.getFirst().toUpperCase(Locale.ROOT);
+    private void closeSocket() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
 
-        System.out.println(connId + "> " + line);
-        callCommand(cmd, words.subList(1, words.size()));
+    /** Close the connection from the server side, the read loop then ends and does the cleanup
+     */
+    public void close() {
+        closeSocket();
     }
 
-    /** Cleanup method
+    /** Send an encoded line to socket
+     * Queues the line for the writer. When the queue is full the configured outbound policy is applied.
+     * @param line bytes of the line including the line terminator
      */
-    private void disconnect() {
-        server.disconnect(connId);
-        out.close();
-        out = null;
+    public void send(byte[] line) {
+        if (closed || outbound.offer(line)) {
+            return;
+        }
+
+        ServerConfig config = server.getConfig();
+        switch (config.outboundPolicy) {
+            case DROP -> { }
+            case DISCONNECT -> evict();
+            case BLOCK -> {
+                try {
+                    if (!outbound.offer(line, config.outboundBlockMillis, TimeUnit.MILLISECONDS)) {
+                        evict();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
-    /** Send message to socket
-     * @param message text of the message
+    /** Get number of messages waiting to be written to the socket
+     * @return depth of the outbound queue
      */
-    public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /** Run a task once the outbound queue is empty
+     * The task runs on its own virtual thread, so it may send to this connection without waiting for the writer.
+     * @param task task to run
+     */
+    public void whenDrained(Runnable task) {
+        drainTask.accumulateAndGet(task, (previous, next) -> previous == null ? next : () -> {
+            previous.run();
+            next.run();
+        });
+        // the writer may have emptied the queue before the task was set
+        if (outbound.isEmpty()) {
+            runDrainTask();
         }
     }
 
+    /** Start the drain task if there is one
+     */
+    private void runDrainTask() {
+        Runnable task = drainTask.getAndSet(null);
+        if (task != null && !closed) {
+            Thread.ofVirtual().name("irc-drained-" + connId).start(task);
+        }
+    }
+
+    /** Disconnect a client which does not read its messages
+     */
+    private void evict() {
+        Log.warn("Send queue exceeded! Closing a connection", connId);
+        closeSocket();
+    }
+
+    /** Write loop draining the outbound queue to the socket
+     * Every line queued at the time of writing is put to the buffered stream and the stream is flushed once for all of
+     * them, so a burst of lines costs one system call. A line is never held back, the stream is flushed as soon as the
+     * queue is empty.
+     * @param out buffered output stream of the socket
+     */
+    private void writeLoop(OutputStream out) {
+        try {
+            while (!closed) {
+                out.write(outbound.take());
+                byte[] line;
+                while ((line = outbound.poll()) != null) {
+                    out.write(line);
+                }
+                out.flush();
+                if (outbound.isEmpty()) {
+                    runDrainTask();
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            closeSocket();
+        }
+    }
+
+    /** Wrap input of the socket to count received bytes
+     * @param in input stream of the socket
+     * @return stream counting read bytes in the server metrics
+     */
+    private InputStream countingStream(InputStream in) {
+        Metrics metrics = server.getMetrics();
+        return new FilterInputStream(in) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    metrics.addBytesReceived(read);
+                }
+                return read;
+            }
+        };
+    }
+
     /** Read loop on the socket and service commands
-     * Can be called as a task for parallel run
+     * Can be called as a task for parallel run. While the connection is throttled by flood control, the thread sleeps
+     * and its unread lines stay in the socket.
      */
     public void run() {
-        System.out.println("Servicing a connection " + connId);
+        Log.info("Servicing a connection", connId);
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(countingStream(socket.getInputStream())));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream());
         ) {
-            out = writer;
+            writer = Thread.ofVirtual().name("irc-writer-" + connId).start(() -> writeLoop(out));
             String line;
             while ((line = reader.readLine()) != null) {
-                processLine(line);
+                long penalty;
+                try {
+                    penalty = server.processLine(line, message, connId);
+                } catch (RuntimeException e) {
+                    // the writer and the server state are cleaned up as for a closed socket
+                    Log.error("Error! Command failed, closing a connection: " + e, connId);
+                    disconnect();
+                    closeSocket();
+                    return;
+                }
+                long delay = floodControl.charge(penalty);
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
             }
-            System.out.println("Disconnected! closing a connection " + connId);
+            Log.info("Disconnected! closing a connection", connId);
             disconnect();
             socket.close();
         } catch (IOException e) {
-            System.out.println("Error! Closing a connection " + connId);
+            Log.info("Error! Closing a connection", connId);
+            disconnect();
+        } catch (InterruptedException e) {
+            Log.info("Interrupted! Closing a connection", connId);
             disconnect();
         }
     }
@@ -1,15 +1,33 @@
 package cz.cuni.mff.hrdinap1.ircserver;
 
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.IntFunction;
 
 /** Class responsible for managing connections
- * Holds mappings of connection ids to opened connections
+ * Holds mappings of connection ids to opened connections. Sending is lock free, connection ids are allocated in constant
+ * time and reused after the connection is removed.
  */
 public class ConnectionManager {
-    Map<Integer, ConnectionHandler> openedConnections = new HashMap<>();
-    int hintId = 0;
+    IntObjectMap<Connection> openedConnections = new IntObjectMap<>();
+    private final ConnIdAllocator connIds = new ConnIdAllocator();
+
+    /** Registers a connection under a free connection id
+     * @param factory creates the connection for the assigned connection id
+     * @return the created connection
+     * @param <T> type of the connection
+     */
+    public <T extends Connection> T addConnection(IntFunction<T> factory) {
+        int connId = connIds.allocate();
+        T connection;
+        try {
+            connection = factory.apply(connId);
+        } catch (RuntimeException e) {
+            connIds.release(connId);
+            throw e;
+        }
+        openedConnections.put(connId, connection);
+        return connection;
+    }
 
     /** Creates a connection handler
      * Factory method which creates a handler that will call server methods
@@ -18,20 +36,45 @@ public class ConnectionManager {
      * @return
      */
     public ConnectionHandler createHandler(Socket socket, IRCServer server) {
-        int connId = hintId;
-        while(openedConnections.containsKey(connId)) {
-            connId++;
-        }
-        ConnectionHandler connectionHandler = new ConnectionHandler(socket, connId, server);
-        openedConnections.put(connId, connectionHandler);
-        return connectionHandler;
+        return addConnection(connId -> new ConnectionHandler(socket, connId, server));
     }
 
     /** Removes a connection handler
      * @param connId id of the user's connection
      */
     public void removeHandler(int connId) {
-        openedConnections.remove(connId);
+        if (openedConnections.remove(connId) != null) {
+            connIds.release(connId);
+        }
+    }
+
+    /** Sends an encoded line to a user on a connection
+     * @param connId id of the user's connection
+     * @param line bytes of the line including the line terminator
+     */
+    public void send(int connId, byte[] line) {
+        Connection connection = openedConnections.get(connId);
+        if (connection != null) {
+            connection.send(line);
+        }
+    }
+
+    /** Sends an encoded line of a channel broadcast to a user on a connection
+     * @param connId id of the user's connection
+     * @param line bytes of the line including the line terminator
+     * @return bit of the server link to forward the line to, 0 if the line was sent, see {@link Connection#broadcast(byte[])}
+     */
+    public long broadcast(int connId, byte[] line) {
+        Connection connection = openedConnections.get(connId);
+        return connection != null ? connection.broadcast(line) : 0;
+    }
+
+    /** Get an open connection
+     * @param connId id of the connection
+     * @return the connection or null if it is not open
+     */
+    public Connection getConnection(int connId) {
+        return openedConnections.get(connId);
     }
 
     /** Sends a message to a user on a connection
@@ -39,8 +82,34 @@ public class ConnectionManager {
      * @param message text of the message
      */
     public void sendMessage(int connId, String message) {
-        if (openedConnections.containsKey(connId)) {
-            openedConnections.get(connId).sendMessage(message);
+        Connection connection = openedConnections.get(connId);
+        if (connection != null) {
+            connection.sendMessage(message);
         }
     }
+
+    /** Get number of open connections
+     * @return number of connections
+     */
+    public int getConnectionCount() {
+        return openedConnections.size();
+    }
+
+    /** Get number of messages waiting to be written to all connections
+     * @return sum of depths of the outbound queues
+     */
+    public long getTotalQueueDepth() {
+        long[] depth = {0};
+        openedConnections.forEach(connection -> depth[0] += connection.getQueueDepth());
+        return depth[0];
+    }
+
+    /** Get number of messages waiting to be written to a connection
+     * @param connId id of the user's connection
+     * @return depth of the connection's outbound queue or 0 if the connection is not open
+     */
+    public int getQueueDepth(int connId) {
+        Connection connection = openedConnections.get(connId);
+        return connection != null ? connection.getQueueDepth() : 0;
+    }
 }
@@ -0,0 +1,57 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.concurrent.TimeUnit;
+
+/** Flood control of one connection in the style of the ircd fake lag
+ * Every serviced line moves the message timer of the connection forward by the penalty of its command, the timer never
+ * stays behind the clock. While the timer is more than the burst ahead of the clock, the connection reads no further
+ * lines, so a flooding client is slowed down to one line per penalty and its unread input backs up in the socket
+ * instead of being dropped. It is a token bucket holding the burst, which refills in real time, and every command takes
+ * its penalty from it. Not thread safe, used by the reader of the connection.
+ */
+class FloodControl {
+    private final boolean enabled;
+    private final long burstNanos;
+    private final long defaultPenaltyNanos;
+    private final Metrics metrics;
+    /** Time the penalties charged so far are paid off, in {@link System#nanoTime()} */
+    private long timer;
+
+    /** FloodControl constructor
+     * @param config configuration with the burst and the default penalty
+     * @param metrics registry counting the delayed lines
+     */
+    FloodControl(ServerConfig config, Metrics metrics) {
+        this.enabled = config.floodControl;
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(config.floodBurstMillis);
+        this.defaultPenaltyNanos = TimeUnit.MILLISECONDS.toNanos(config.floodPenaltyMillis);
+        this.metrics = metrics;
+        this.timer = System.nanoTime();
+    }
+
+    /** Charge the penalty of a serviced line
+     * @param penaltyMillis penalty of the command, negative for the default penalty
+     * @return nanoseconds to wait before the next line is read, 0 if it can be read right away
+     */
+    long charge(long penaltyMillis) {
+        return enabled ? charge(penaltyMillis, System.nanoTime()) : 0;
+    }
+
+    /** Charge the penalty of a serviced line at a given time
+     * @param penaltyMillis penalty of the command, negative for the default penalty
+     * @param now current {@link System#nanoTime()}
+     * @return nanoseconds to wait before the next line is read, 0 if it can be read right away
+     */
+    long charge(long penaltyMillis, long now) {
+        if (timer - now < 0) {
+            timer = now;
+        }
+        timer += penaltyMillis < 0 ? defaultPenaltyNanos : TimeUnit.MILLISECONDS.toNanos(penaltyMillis);
+        long delay = timer - now - burstNanos;
+        if (delay <= 0) {
+            return 0;
+        }
+        metrics.floodDelay();
+        return delay;
+    }
+}
@@ -0,0 +1,108 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Shared state of the histories of all channels
+ * Hands out message ids and keeps the histories within a global memory budget. When the budget is exceeded, the
+ * histories lose their oldest events in turn, like the hand of a clock going round them, until the budget is met
+ * again. The budget counts the encoded lines plus a fixed overhead per event.
+ */
+class HistoryStore {
+    /** Bytes accounted for an event besides its line, the slots of the ring and the array header of the line */
+    static final int eventOverhead = 40;
+
+    private final int historyLength;
+    private final long budgetBytes;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong usedBytes = new AtomicLong();
+    /** Histories visited by the eviction, guarded by this */
+    private final List<ChannelHistory> histories = new ArrayList<>();
+    /** Index of the history losing the next event, guarded by this */
+    private int hand;
+
+    /** HistoryStore constructor
+     * @param historyLength number of events kept per channel, 0 turns the history off
+     * @param budgetBytes memory budget of all histories
+     */
+    HistoryStore(int historyLength, long budgetBytes) {
+        this.historyLength = historyLength;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /** Get number of events kept per channel
+     * @return capacity of a channel history
+     */
+    int getHistoryLength() {
+        return historyLength;
+    }
+
+    /** Get memory accounted to all histories
+     * @return bytes
+     */
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /** Get id for a new event
+     * @return id greater than the ids of all previous events
+     */
+    long nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    /** Create history of a new channel
+     * @return empty history taking part in the eviction, null if the history is off
+     */
+    synchronized ChannelHistory create() {
+        if (historyLength <= 0) {
+            return null;
+        }
+        ChannelHistory history = new ChannelHistory(this, historyLength);
+        history.slot = histories.size();
+        histories.add(history);
+        return history;
+    }
+
+    /** Release history of a removed channel
+     * The last history moves to the slot of the released one, so a release costs O(1).
+     * @param history history to release
+     */
+    void release(ChannelHistory history) {
+        synchronized (this) {
+            int index = history.slot;
+            if (index >= 0) {
+                ChannelHistory last = histories.removeLast();
+                if (last != history) {
+                    histories.set(index, last);
+                    last.slot = index;
+                }
+                history.slot = -1;
+            }
+        }
+        account(-history.clear());
+    }
+
+    /** Account a change of memory used by a history and evict events when over the budget
+     * Must be called without holding the monitor of a history.
+     * @param bytes change of used memory
+     */
+    void account(long bytes) {
+        if (usedBytes.addAndGet(bytes) > budgetBytes && bytes > 0) {
+            evict();
+        }
+    }
+
+    /** Remove oldest events of the histories in turn until the memory is within the budget
+     */
+    private synchronized void evict() {
+        int idle = 0;
+        while (usedBytes.get() > budgetBytes && idle < histories.size()) {
+            hand = hand < histories.size() - 1 ? hand + 1 : 0;
+            long freed = histories.get(hand).evictOldest();
+            usedBytes.addAndGet(-freed);
+            idle = freed > 0 ? 0 : idle + 1;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/** Parsed IRC message
+ * Message format according to RFC 1459: <code>[':' prefix SPACE] command {SPACE middle} [SPACE ':' trailing]</code>.
+ * An instance is reused for every line of one connection. Parsing is a single pass over the line and allocates only the
+ * parameter strings. The trailing parameter keeps its leading colon, so command handlers can tell it apart from middle
+ * parameters.
+ */
+public class IRCMessage {
+    /** Maximum number of parameters, the last one takes the rest of the line */
+    public static final int maxParameters = 15;
+
+    /** Read only view of the parameters of the last parsed line */
+    private class Parameters extends AbstractList<String> implements RandomAccess {
+        public String get(int index) {
+            if (index < 0 || index >= parameterCount) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return parameters[index];
+        }
+
+        public int size() {
+            return parameterCount;
+        }
+    }
+
+    private final String[] parameters = new String[maxParameters];
+    private final List<String> parameterView = new Parameters();
+    private int parameterCount;
+    private String line;
+    private int prefixStart;
+    private int prefixEnd;
+    private int commandStart;
+    private int commandEnd;
+
+    /** Checks if a character separates tokens
+     * @param c character
+     * @return true for space and tab
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /** Find first character which is not a separator
+     * @param from index to start from
+     * @return index of the character or length of the line
+     */
+    private int skipSpaces(int from) {
+        while (from < line.length() && isSpace(line.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /** Find end of a token
+     * @param from index of the first character of the token
+     * @return index after the last character of the token
+     */
+    private int tokenEnd(int from) {
+        while (from < line.length() && !isSpace(line.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /** Parse a line
+     * The previous content of the message is replaced.
+     * @param line line without the line terminator
+     * @return false if the line contains no command
+     */
+    public boolean parse(String line) {
+        this.line = line;
+        parameterCount = 0;
+        prefixStart = prefixEnd = 0;
+
+        int position = skipSpaces(0);
+        if (position < line.length() && line.charAt(position) == ':') {
+            prefixStart = position + 1;
+            prefixEnd = tokenEnd(prefixStart);
+            position = skipSpaces(prefixEnd);
+        }
+
+        commandStart = position;
+        commandEnd = tokenEnd(position);
+        if (commandStart == commandEnd) {
+            return false;
+        }
+
+        position = skipSpaces(commandEnd);
+        while (position < line.length()) {
+            if (line.charAt(position) == ':' || parameterCount == maxParameters - 1) {
+                parameters[parameterCount++] = line.substring(position);
+                break;
+            }
+            int end = tokenEnd(position);
+            parameters[parameterCount++] = line.substring(position, end);
+            position = skipSpaces(end);
+        }
+        return true;
+    }
+
+    /** Get the parsed line
+     * @return line of the last parse
+     */
+    public String getLine() {
+        return line;
+    }
+
+    /** Checks if the message has a prefix
+     * @return true if the line started with a prefix
+     */
+    public boolean hasPrefix() {
+        return prefixEnd > prefixStart;
+    }
+
+    /** Get the prefix
+     * @return prefix without the colon or null if there is none
+     */
+    public String getPrefix() {
+        return hasPrefix() ? line.substring(prefixStart, prefixEnd) : null;
+    }
+
+    /** Get index of the first character of the command in the line
+     * @return start index of the command
+     */
+    public int getCommandStart() {
+        return commandStart;
+    }
+
+    /** Get index after the last character of the command in the line
+     * @return end index of the command
+     */
+    public int getCommandEnd() {
+        return commandEnd;
+    }
+
+    /** Get the command
+     * Allocates a string, dispatching uses the command bounds instead.
+     * @return command as written in the line
+     */
+    public String getCommand() {
+        return line.substring(commandStart, commandEnd);
+    }
+
+    /** Get parameters of the message
+     * The view is only valid until the next parse.
+     * @return parameters, the trailing parameter keeps its leading colon
+     */
+    public List<String> getParameters() {
+        return parameterView;
+    }
+}
@@ -1,31 +1,96 @@
 package cz.cuni.mff.hrdinap1.ircserver;
 
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import static cz.cuni.mff.hrdinap1.ircserver.Numerics.*;
 
 /** Server servicing commands from users
- * Divides the responsibility to channel, connection and user managers
+ * Divides the responsibility to channel, connection and user managers.
+ * There is no server wide lock. Commands touching a channel hold the channel's lock from {@link ChannelManager} for the
+ * whole check, update and broadcast, so commands on one channel are linearizable while unrelated channels proceed in
+ * parallel. Commands naming several channels handle them one after another and never hold two channel locks at once.
  */
-public class IRCServer {
+public final class IRCServer {
+    /** Shards owning the channels when the server runs sharded, see {@link NioServer}
+     */
+    public interface ChannelRouter {
+        /** Run a command of a connection on the shard owning its channel
+         * Commands of one connection run in the order they were received, so a command without a channel is handed
+         * over too while earlier commands of its connection wait at a shard.
+         * @param connId id of the connection sending the command
+         * @param channel channel name, null if the command does not belong to a shard
+         * @param command command to run, gets a message instance of the running shard for parsing
+         * @return true if the command was handed over, false if the caller runs the command itself right away
+         */
+        boolean route(int connId, String channel, Consumer<IRCMessage> command);
+
+        /** Run a task after all commands of a closed connection handed over so far
+         * @param connId id of the closed connection
+         * @param task task to run, on any shard
+         */
+        void closed(int connId, Runnable task);
+    }
+
     public static final char channelPrefix = '#';
     public static final char publicChannelSymbol = '=';
     public static final char channelOperatorPrefix = '@';
+    /** Maximum length of a line without the line terminator */
+    public static final int maxLineLength = 510;
+    /** Nickname length reserved in NAMES replies, replies to longer nicknames split the names to more lines */
+    private static final int namesReplyNicknameLength = 30;
+    /** Commands run by the shard owning their channel when they target a single channel */
+    private static final String[] routedCommands = {"JOIN", "PART", "PRIVMSG", "TOPIC", "KICK", "NAMES"};
+    /** Format of the time tag of replayed events */
+    private static final DateTimeFormatter tagTime = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
 
     private final ChannelManager channelManager;
     private final ConnectionManager connectionManager;
     private final UserManager userManager;
     private final String serverName;
+    private final CommandDispatcher dispatcher;
+    private final ServerConfig config;
+    private final Metrics metrics;
+    /** Links to other servers sharing the namespace */
+    private final LinkManager links;
+    /** PINGs and timeouts of idle and unregistered connections */
+    private final LivenessMonitor liveness;
+    /** Source of references of CHATHISTORY batches */
+    private final AtomicLong batchIds = new AtomicLong();
+    /** Shards owning the channels, null unless the server runs sharded */
+    private volatile ChannelRouter channelRouter;
 
     /** Server constructor
      *
      * @param serverName name used in server responses
      */
     public IRCServer(String serverName) {
-        this.channelManager = new ChannelManager();
+        this(serverName, new ServerConfig());
+    }
+
+    /** Server constructor
+     * @param serverName name used in server responses
+     * @param config startup configuration
+     */
+    public IRCServer(String serverName, ServerConfig config) {
+        this.channelManager = new ChannelManager(config);
         this.connectionManager = new ConnectionManager();
-        this.userManager = new UserManager();
+        this.userManager = new UserManager(config);
         this.serverName = serverName;
+        this.metrics = new Metrics();
+        this.dispatcher = new CommandDispatcher(metrics);
+        this.config = config;
+        this.links = new LinkManager(this, serverName, config, channelManager, userManager, connectionManager);
+        this.liveness = new LivenessMonitor(serverName, config, userManager, connectionManager, links, metrics);
+        registerCommands();
+        registerGauges();
     }
 
     /** Special server constructor for unit tests
@@ -39,31 +104,234 @@ public class IRCServer {
         this.connectionManager = connectionManager;
         this.userManager = userManager;
         this.serverName = serverName;
+        this.metrics = new Metrics();
+        this.dispatcher = new CommandDispatcher(metrics);
+        this.config = new ServerConfig();
+        this.links = new LinkManager(this, serverName, config, channelManager, userManager, connectionManager);
+        this.liveness = new LivenessMonitor(serverName, config, userManager, connectionManager, links, metrics);
+        registerCommands();
+        registerGauges();
+    }
+
+    /** Restore channels saved in a journal and save all further changes of channels in it
+     * Must be called before any user connects.
+     * @param journal opened journal
+     * @return number of restored channels
+     */
+    int attachJournal(ChannelJournal journal) {
+        return channelManager.attachJournal(journal, userManager::getNickname);
+    }
+
+    /** Start sending PINGs and closing connections which time out, see {@link LivenessMonitor}
+     */
+    public void startLivenessChecks() {
+        liveness.start();
+    }
+
+    /** Get liveness checks of the connections
+     * @return liveness monitor of the server
+     */
+    LivenessMonitor getLiveness() {
+        return liveness;
+    }
+
+    /** Set shards owning the channels
+     * Commands on a single channel are then run by the shard owning it, see {@link #processLine(String, IRCMessage, int)}.
+     * @param router shards owning the channels
+     */
+    public void setChannelRouter(ChannelRouter router) {
+        this.channelRouter = router;
+    }
+
+    /** Register the commands of this server in the dispatcher
+     */
+    private void registerCommands() {
+        registerCommand("NICK", this::cmdNick);
+        registerCommand("USER", this::cmdUser);
+        registerCommand("JOIN", this::cmdJoin);
+        registerCommand("PRIVMSG", this::cmdPrivmsg);
+        registerCommand("PART", this::cmdPart);
+        registerCommand("NAMES", this::cmdNames);
+        registerCommand("LIST", this::cmdList);
+        registerCommand("TOPIC", this::cmdTopic);
+        registerCommand("KICK", this::cmdKick);
+        registerCommand("STATS", this::cmdStats);
+        registerCommand("CHATHISTORY", this::cmdChathistory);
+        registerCommand("PASS", this::cmdPass);
+        registerCommand("SERVER", this::cmdServer);
+        registerCommand("PING", this::cmdPing);
+        registerCommand("PONG", this::cmdPong);
+    }
+
+    /** Register a command with its configured flood penalty
+     * @param command upper case command name
+     * @param handler handler servicing the command
+     */
+    private void registerCommand(String command, CommandDispatcher.Handler handler) {
+        dispatcher.register(command, handler, config.getPenaltyMillis(command));
+    }
+
+    /** Register gauges of the server state in the metrics
+     */
+    private void registerGauges() {
+        metrics.registerGauge("connections", () -> connectionManager.getConnectionCount() - links.getRemoteUserCount());
+        metrics.registerGauge("channels", channelManager::getChannelCount);
+        metrics.registerGauge("memberships", channelManager::getMembershipCount);
+        metrics.registerGauge("outbound_queue_depth", connectionManager::getTotalQueueDepth);
+        metrics.registerGauge("history_bytes", channelManager::getHistoryBytes);
+        metrics.registerGauge("server_links", links::getLinkCount);
+        metrics.registerGauge("remote_users", links::getRemoteUserCount);
+    }
+
+    /** Get runtime metrics
+     * @return metrics registry of the server
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** Get links to other servers
+     * @return link manager of the server
+     */
+    public LinkManager getLinks() {
+        return links;
+    }
+
+    /** Get startup configuration
+     * @return configuration of the server
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /** Get dispatcher translating received lines to commands of this server
+     * @return command dispatcher
+     */
+    public CommandDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /** Connect a link to another server, see {@link LinkManager#connect(String)}
+     * @param address host and port of the other server as <code>host:port</code>
+     */
+    public void connectLink(String address) {
+        links.connect(address);
+    }
+
+    /** Service a line received on a connection
+     * Lines of users go to the command dispatcher, lines of server links to the {@link LinkManager}. Server links are
+     * not subject to flood control. When the server runs sharded, a command on a single channel is handed to the shard
+     * owning the channel, which runs it after the commands handed to it before, and the penalty is charged right away.
+     * Later commands of the connection wait until it ran, so replies keep the order of the commands.
+     * @param line received line without the line terminator
+     * @param message message instance reused for parsing lines of the connection
+     * @param connId id of the connection
+     * @return flood penalty of the line in milliseconds, negative for the default penalty
+     */
+    public long processLine(String line, IRCMessage message, int connId) {
+        liveness.received(connId);
+        if (links.isLink(connId)) {
+            links.processLine(line, message, connId);
+            return 0;
+        }
+        ChannelRouter router = channelRouter;
+        if (router == null) {
+            return dispatcher.processLine(line, message, connId);
+        }
+        Log.traffic(connId, line);
+        if (!message.parse(line)) {
+            return -1;
+        }
+        if (router.route(connId, routedChannel(message), shardMessage -> {
+            if (!shardMessage.parse(line)) {
+                return;
+            }
+            try {
+                dispatcher.dispatch(shardMessage, connId);
+            } catch (RuntimeException e) {
+                // the shard services other connections, only the sender of the failing command is closed
+                Log.error("Error! Command failed, closing a connection: " + e, connId);
+                Connection connection = connectionManager.getConnection(connId);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        })) {
+            return dispatcher.getPenalty(message);
+        }
+        return dispatcher.dispatch(message, connId);
+    }
+
+    /** Get the channel a line is routed by in the sharded mode
+     * @param message parsed line
+     * @return channel if the line is a channel command with a single channel target, else null
+     */
+    private static String routedChannel(IRCMessage message) {
+        String line = message.getLine();
+        int start = message.getCommandStart();
+        int length = message.getCommandEnd() - start;
+        List<String> parameters = message.getParameters();
+        if (parameters.isEmpty()) {
+            return null;
+        }
+        for (String command : routedCommands) {
+            if (command.length() == length && line.regionMatches(true, start, command, 0, length)) {
+                String target = parameters.getFirst();
+                return !target.isEmpty() && target.charAt(0) == channelPrefix && target.indexOf(',') < 0 ? target : null;
+            }
+        }
+        return null;
     }
 
     /** Factory method creating ConnectionHandler
      * @param socket socket with the connected user
      * @return new connection handler servicing the socket and connection
      */
-    public synchronized ConnectionHandler createHandler(Socket socket) {
+    public ConnectionHandler createHandler(Socket socket) {
         return connectionManager.createHandler(socket, this);
     }
 
+    /** Factory method registering a connection of any transport
+     * @param factory creates the connection for the assigned connection id
+     * @return the created connection
+     * @param <T> type of the connection
+     */
+    public <T extends Connection> T createConnection(IntFunction<T> factory) {
+        return connectionManager.addConnection(factory);
+    }
+
     /** Connect a new user to server
      * @param connId id of the user's connection
      */
-    public synchronized void connect(int connId) {
+    public void connect(int connId) {
         userManager.addUser(connId);
+        liveness.connected(connId);
     }
 
     /** Disconnect a user
      * used for cleanup
      * @param connId id of the user's connection
      */
-    public synchronized void disconnect(int connId) {
-        connectionManager.removeHandler(connId);
-        userManager.removeUser(connId);
+    public void disconnect(int connId) {
+        ChannelRouter router = channelRouter;
+        if (router != null) {
+            // commands of the connection still queued at the shards must not run after its channels were left
+            router.closed(connId, () -> removeConnection(connId));
+        } else {
+            removeConnection(connId);
+        }
+    }
+
+    /** Remove a disconnected user from the server state
+     * @param connId id of the user's connection
+     */
+    private void removeConnection(int connId) {
+        links.userQuit(connId);
+        links.connectionClosed(connId);
         channelManager.removeUser(connId);
+        userManager.removeUser(connId);
+        liveness.disconnected(connId);
+        connectionManager.removeHandler(connId);
     }
 
     /** Send a formatted reply to user on a connection
@@ -72,8 +340,19 @@ public class IRCServer {
      * @param message text of the reply
      */
     private void sendReply(int targetConnId, int replyNumber, String message) {
-        String completeMessage = ":" + serverName + " " + replyNumber + " " + userManager.getNickname(targetConnId) + " " + message;
-        connectionManager.sendMessage(targetConnId, completeMessage);
+        send(targetConnId, Connection.encode(formatReply(targetConnId, replyNumber, message)));
+    }
+
+    /** Format a reply to user on a connection
+     * @param targetConnId id of the user's connection
+     * @param replyNumber numeric with the type of reply
+     * @param message text of the reply
+     * @return text of the reply
+     */
+    private String formatReply(int targetConnId, int replyNumber, String message) {
+        // numerics are always three digits, e.g. 005
+        String number = replyNumber < 100 ? String.format("%03d", replyNumber) : Integer.toString(replyNumber);
+        return ":" + serverName + " " + number + " " + userManager.getNickname(targetConnId) + " " + message;
     }
 
     /** Send a formatted command message to user on a connection
@@ -83,17 +362,44 @@ public class IRCServer {
      * @param parameters other parameters of the message
      */
     private void sendMessage(int targetConnId, String source, String command, String parameters) {
-        String completeMessage;
+        send(targetConnId, Connection.encode(formatMessage(source, command, parameters)));
+    }
+
+    /** Send a standard reply reporting a failed command
+     * @param targetConnId id of the user's connection
+     * @param command command which failed
+     * @param parameters code, context and description of the failure
+     */
+    private void sendFail(int targetConnId, String command, String parameters) {
+        sendMessage(targetConnId, serverName, "FAIL", command + " " + parameters);
+    }
+
+    /** Send an encoded line to user on a connection and count the sent bytes
+     * @param targetConnId id of the user's connection
+     * @param line bytes of the line including the line terminator
+     */
+    void send(int targetConnId, byte[] line) {
+        connectionManager.send(targetConnId, line);
+        metrics.addBytesSent(line.length);
+    }
+
+    /** Format a command message
+     * @param source original sender of the message
+     * @param command command to send
+     * @param parameters other parameters of the message
+     * @return text of the message
+     */
+    private String formatMessage(String source, String command, String parameters) {
         if (parameters == null) {
-            completeMessage = ":" + source + " " + command;
+            return ":" + source + " " + command;
         } else {
-            completeMessage = ":" + source + " " + command + " " + parameters;
+            return ":" + source + " " + command + " " + parameters;
         }
-        connectionManager.sendMessage(targetConnId, completeMessage);
     }
 
     /** Send a formatted command message to a nick/channel
-     * If the target is channel, sends the message to all its users
+     * If the target is channel, sends the message to all its users, see {@link #broadcast(String, byte[], int, boolean)},
+     * and forwards it to the linked servers.
      * @param target nickname or name of a channel
      * @param source sender of the message
      * @param command command to send
@@ -102,28 +408,67 @@ public class IRCServer {
      */
     private void sendMessage(String target, String source, String command, String parameters, boolean includeSender) {
         if (target.charAt(0) == channelPrefix) {
-            if (channelManager.channelExists(target)) {
-                if (channelManager.channelExists(target)) {
-                    for (int userConnId : channelManager.getChannelUsers(target)) {
-                        if (includeSender || userConnId != userManager.getConnId(source)) {
-                            sendMessage(userConnId, source, command, parameters);
-                        }
-                    }
+            int sourceConnId = userManager.getConnId(source);
+            byte[] line = Connection.encode(formatMessage(source, command, parameters));
+            long memberLinks = broadcast(target, line, includeSender ? -1 : sourceConnId, isHistoryEvent(command));
+            links.forwardChannelMessage(command, line, memberLinks);
+        } else {
+            int targetConnId = userManager.getConnId(target);
+            if (targetConnId >= 0) {
+                sendMessage(targetConnId, source, command, parameters);
+            }
+        }
+    }
+
+    /** Send an encoded line to the local members of a channel
+     * The same bytes are handed to every member. Members are read from the published member set, so the fan-out takes
+     * no lock and does not hold up joins and parts of the channel. Members on other servers are not sent the line,
+     * their links are collected instead so the line can be forwarded once per link. Events replayed by CHATHISTORY keep
+     * the same bytes in the channel history.
+     * @param channel channel name
+     * @param line bytes of the line including the line terminator
+     * @param exceptConnId member who does not receive the line, -1 for none
+     * @param record true to keep the line in the channel history
+     * @return bits of the server links with members in the channel
+     */
+    long broadcast(String channel, byte[] line, int exceptConnId, boolean record) {
+        int[] recipients = {0};
+        long[] memberLinks = {0};
+        channelManager.forEachChannelUser(channel, (int userConnId) -> {
+            if (userConnId != exceptConnId) {
+                long link = connectionManager.broadcast(userConnId, line);
+                if (link == 0) {
+                    recipients[0]++;
                 }
+                memberLinks[0] |= link;
             }
-        } else {
-            assert userManager.userIsRegistered(target);
-            sendMessage(userManager.getConnId(target), source, command, parameters);
+        });
+        // counted once per broadcast, not once per member
+        metrics.addBytesSent((long) line.length * recipients[0]);
+        if (record) {
+            channelManager.recordHistory(channel, line);
         }
+        return memberLinks[0];
+    }
+
+    /** Checks if a channel message is kept in the channel history
+     * @param command command of the message
+     * @return true for messages replayed by CHATHISTORY
+     */
+    private static boolean isHistoryEvent(String command) {
+        return switch (command) {
+            case "PRIVMSG", "TOPIC", "JOIN", "PART" -> true;
+            default -> false;
+        };
     }
 
     /** Splits a string by delimiter into list
      * @param string String to split
      * @param delimiter Delimiter to split by
-     * @return list of words after splitting
+     * @return list of words after splitting, empty words like in <code>#a,,#b</code> are skipped
      */
     private List<String> splitBy(String string, String delimiter) {
-        return Arrays.stream(string.split(delimiter)).toList();
+        return Arrays.stream(string.split(delimiter)).filter(word -> !word.isEmpty()).toList();
     }
 
     /** Joins a list of words using delimiter
@@ -136,20 +481,27 @@ public class IRCServer {
         return String.join(delimiter, list.subList(from, list.size()));
     }
 
-    /** Get list of users in a channel
-     * @param channel Channel name
-     * @return list of users in channel divided by space
+    /** Send names of users in a channel in RPL_NAMREPLY lines of at most 512 bytes and RPL_ENDOFNAMES
+     * Needs no channel lock, the lines published by {@link ChannelManager#getNames} are read without locking and are
+     * rendered again under the channel lock only when the members changed. JOIN calls it under the lock so the reply
+     * includes the joining user.
+     * @param connId id of the requesting user's connection
+     * @param channel channel name
      */
-    private String getChannelUsers(String channel) {
-        Set<Integer> connIds = channelManager.getChannelUsers(channel);
-        List<String> nicknames = new ArrayList<>();
-        for (int connId: connIds) {
-            boolean isOperator = channelManager.isChannelOperator(connId, channel);
-            String nickname = userManager.getNickname(connId);
-            String fullNickname = isOperator ? channelOperatorPrefix + nickname : nickname;
-            nicknames.add(fullNickname);
+    private void sendNames(int connId, String channel) {
+        String nickname = userManager.getNickname(connId);
+        int nicknameLength = nickname != null ? NamesCache.utf8Length(nickname) : 0;
+        String replyParameters = publicChannelSymbol + " " + channel + " :";
+        int lineBudget = maxLineLength - NamesCache.utf8Length(":" + serverName + " 353  " + replyParameters)
+                - Math.max(namesReplyNicknameLength, nicknameLength);
+        List<String> lines = channelManager.getNames(channel, lineBudget, (member, operator) -> {
+            String name = userManager.getNickname(member);
+            return operator ? channelOperatorPrefix + name : name;
+        });
+        for (String names : lines) {
+            sendReply(connId, RPL_NAMREPLY, replyParameters + names);
         }
-        return joinBy(nicknames, " ", 0);
+        sendReply(connId, RPL_ENDOFNAMES, channel + " :End of /NAMES list");
     }
 
     /** Service NICK command message
@@ -161,7 +513,7 @@ public class IRCServer {
      * @param parameters &lt;nickname&gt;
      * @param connId id of the user's connection
      */
-    public synchronized void cmdNick(List<String> parameters, int connId) {
+    public void cmdNick(List<String> parameters, int connId) {
         if (parameters.isEmpty()) {
             sendReply(connId, ERR_NONICKNAMEGIVEN, ":No nickname given");
             return;
@@ -175,12 +527,38 @@ public class IRCServer {
             return;
         }
 
-        if (userManager.nicknameInUse(nickname)) {
+        String previous = userManager.getNickname(connId);
+        boolean wasRegistered = userManager.userIsRegistered(connId);
+        int owner = userManager.getConnId(nickname);
+        // the user's own nickname may change its case
+        boolean caseChange = owner == connId && !nickname.equals(previous);
+        if ((owner >= 0 && !caseChange) || !userManager.setNickname(connId, nickname)) {
             sendReply(connId, ERR_NICKNAMEINUSE, nickname + ":Nickname is already in use");
             return;
         }
+        channelManager.renameUser(connId, previous);
+        if (wasRegistered) {
+            links.userRenamed(connId, previous);
+        } else if (userManager.userIsRegistered(connId)) {
+            completeRegistration(connId);
+        }
+    }
 
-        userManager.setNickname(connId, nickname);
+    /** Announce a user who completed the registration
+     * Sends the RPL_ISUPPORT tokens to the user and introduces the user to the linked servers.
+     * @param connId id of the user's connection
+     */
+    private void completeRegistration(int connId) {
+        StringBuilder tokens = new StringBuilder();
+        tokens.append("CASEMAPPING=").append(config.caseMapping.getToken())
+                .append(" CHANTYPES=").append(channelPrefix)
+                .append(" PREFIX=(o)").append(channelOperatorPrefix)
+                .append(" ELIST=MNU");
+        if (channelManager.getHistoryLength() > 0) {
+            tokens.append(" CHATHISTORY=").append(channelManager.getHistoryLength());
+        }
+        sendReply(connId, RPL_ISUPPORT, tokens + " :are supported by this server");
+        links.userRegistered(connId);
     }
 
     /** Service USER command message
@@ -192,7 +570,7 @@ public class IRCServer {
      * parameter - multiple words, the first must start with a ':'
      * @param connId id of the user's connection
      */
-    public synchronized void cmdUser(List<String> parameters, int connId) {
+    public void cmdUser(List<String> parameters, int connId) {
         if (parameters.size() < 4) {
             sendReply(connId, ERR_NEEDMOREPARAMS, "USER :Not enough parameters");
             return;
@@ -215,6 +593,9 @@ public class IRCServer {
 
         realname = realname.substring(1);
         userManager.setUserDetails(connId, username, hostname, servername, realname);
+        if (userManager.userIsRegistered(connId)) {
+            completeRegistration(connId);
+        }
     }
 
     /** Service JOIN command message
@@ -230,7 +611,7 @@ public class IRCServer {
      * @param parameters &lt;channel&gt;{,&lt;channel&gt;} [&lt;key&gt;{,&lt;key&gt;}] - list of channels to join and their keys - keys are not used in this implementation
      * @param connId id of the user's connection
      */
-    public synchronized void cmdJoin(List<String> parameters, int connId) {
+    public void cmdJoin(List<String> parameters, int connId) {
         if (!userManager.userIsRegistered(connId)) {
             sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
             return;
@@ -253,12 +634,18 @@ public class IRCServer {
                 sendReply(connId, ERR_BADCHANMASK, ":Bad Channel Mask");
                 continue;
             }
-            channelManager.join(connId, channel, null);
-            sendMessage(channel, userManager.getNickname(connId), "JOIN", channel, false);
-            if (channelManager.isTopicSet(channel))
-                sendReply(connId, RPL_TOPIC, channel + " :" + channelManager.getTopic(channel));
-            sendReply(connId, RPL_NAMREPLY, publicChannelSymbol + " " + channel + " :" + getChannelUsers(channel));
-            sendReply(connId, RPL_ENDOFNAMES, channel + " :End of /NAMES list");
+            ReentrantLock lock = channelManager.getLock(channel);
+            lock.lock();
+            try {
+                channelManager.join(connId, channel, null);
+                channel = channelManager.getChannelName(channel);
+                sendMessage(channel, userManager.getNickname(connId), "JOIN", channel, false);
+                if (channelManager.isTopicSet(channel))
+                    sendReply(connId, RPL_TOPIC, channel + " :" + channelManager.getTopic(channel));
+                sendNames(connId, channel);
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
@@ -271,7 +658,7 @@ public class IRCServer {
      * @param parameters &lt;target&gt;{,&lt;target&gt;} &lt;text to be sent&gt;
      * @param connId id of the user's connection
      */
-    public synchronized void cmdPrivmsg(List<String> parameters, int connId) {
+    public void cmdPrivmsg(List<String> parameters, int connId) {
         if (!userManager.userIsRegistered(connId)) {
             sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
             return;
@@ -287,6 +674,9 @@ public class IRCServer {
         String nickname = userManager.getNickname(connId);
 
         for (String target: targets) {
+            if (target.charAt(0) == channelPrefix) {
+                target = channelManager.getChannelName(target);
+            }
             if (target.charAt(0) == channelPrefix && !channelManager.channelExists(target)) {
                 sendReply(connId, ERR_NOSUCHNICK, target + " :No such nick/channel");
             } else if (target.charAt(0) != channelPrefix && !userManager.userIsRegistered(target)) {
@@ -308,7 +698,7 @@ public class IRCServer {
      * @param parameters &lt;channel&gt;{,&lt;channel&gt;} [&lt;reason&gt;]
      * @param connId id of the user's connection
      */
-    public synchronized void cmdPart(List<String> parameters, int connId) {
+    public void cmdPart(List<String> parameters, int connId) {
         if (!userManager.userIsRegistered(connId)) {
             sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
             return;
@@ -326,19 +716,26 @@ public class IRCServer {
         }
 
         for (String channel: channels) {
-            if (channelManager.channelExists(channel)) {
-                if (channelManager.isUserInChannel(connId, channel)) {
-                    channelManager.leave(connId, channel);
-                    if (reason != null) {
-                        sendMessage(channel, userManager.getNickname(connId), "PART", channel + " " + reason, false);
+            ReentrantLock lock = channelManager.getLock(channel);
+            lock.lock();
+            try {
+                channel = channelManager.getChannelName(channel);
+                if (channelManager.channelExists(channel)) {
+                    if (channelManager.isUserInChannel(connId, channel)) {
+                        channelManager.leave(connId, channel);
+                        if (reason != null) {
+                            sendMessage(channel, userManager.getNickname(connId), "PART", channel + " " + reason, false);
+                        } else {
+                            sendMessage(channel, userManager.getNickname(connId), "PART", channel, false);
+                        }
                     } else {
-                        sendMessage(channel, userManager.getNickname(connId), "PART", channel, false);
+                        sendReply(connId, ERR_NOTONCHANNEL, channel + " :You're not on that channel");
                     }
                 } else {
-                    sendReply(connId, ERR_NOTONCHANNEL, channel + " :You're not on that channel");
+                    sendReply(connId, ERR_NOSUCHCHANNEL, channel + " :No such channel");
                 }
-            } else {
-                sendReply(connId, ERR_NOSUCHCHANNEL, channel + " :No such channel");
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -348,7 +745,7 @@ public class IRCServer {
      * @param parameters &lt;channel&gt;{,&lt;channel&gt;}
      * @param connId id of the user's connection
      */
-    public synchronized void cmdNames(List<String> parameters, int connId) {
+    public void cmdNames(List<String> parameters, int connId) {
         if (parameters.isEmpty()) {
             // list all users, not implemented yet
             return;
@@ -357,32 +754,98 @@ public class IRCServer {
         List<String> channels = splitBy(parameters.getFirst(), ",");
         for (String channel: channels) {
             if (channelManager.channelExists(channel)) {
-                sendReply(connId, RPL_NAMREPLY, publicChannelSymbol + " " + channel + " :" + getChannelUsers(channel));
-                sendReply(connId, RPL_ENDOFNAMES, channel + " :End of /NAMES list");
+                sendNames(connId, channelManager.getChannelName(channel));
             } else {
                 sendReply(connId, RPL_ENDOFNAMES, channel);
             }
         }
     }
 
+    /** LIST reply streamed to the requester as its outbound queue drains
+     * The set of listed channels is a snapshot taken when LIST starts, see {@link ChannelManager#listChannels()}, so
+     * channels created during the stream are not listed and no channel is listed twice. User counts and topics are
+     * read when their line is sent, channels emptied meanwhile are skipped. When the requester's queue is half full,
+     * the stream stops and continues once the queue is empty.
+     */
+    private class ListStream implements Runnable {
+        private final int connId;
+        /** Connection of the requester, held so that a connection reusing its id does not get the rest */
+        private final Connection connection;
+        private final Iterator<ChannelManager.ChannelInfo> channels;
+        private final ListFilter filter;
+
+        /** ListStream constructor
+         * @param connId id of the requesting user's connection
+         * @param filter filter of the listed channels or null to list all
+         */
+        ListStream(int connId, ListFilter filter) {
+            this.connId = connId;
+            this.connection = connectionManager.getConnection(connId);
+            this.channels = channelManager.listChannels();
+            this.filter = filter;
+        }
+
+        /** Send lines until the queue is half full or the channels are exhausted
+         */
+        public void run() {
+            if (connection == null) {
+                return;
+            }
+            int highWater = Math.max(1, config.outboundQueueSize / 2);
+            while (channels.hasNext()) {
+                if (connection.getQueueDepth() >= highWater) {
+                    connection.whenDrained(this);
+                    return;
+                }
+                ChannelManager.ChannelInfo channel = channels.next();
+                if (channel.users() > 0 && (filter == null || filter.accepts(channel.name(), channel.users()))) {
+                    send(RPL_LIST, channel.name() + " " + channel.users() + " :" + channel.topic());
+                }
+            }
+            send(RPL_LISTEND, ":End of /LIST");
+        }
+
+        /** Send a reply to the requester
+         * @param replyNumber numeric with the type of reply
+         * @param message text of the reply
+         */
+        private void send(int replyNumber, String message) {
+            byte[] line = Connection.encode(formatReply(connId, replyNumber, message));
+            connection.send(line);
+            metrics.addBytesSent(line.length);
+        }
+    }
+
     /** Service LIST command message
      * The LIST command is used to get a list of channels along with some information about each channel.
-     * If no parameter is given all server's channels are listed
-     * @param parameters [&lt;channel&gt;{,&lt;channel&gt;}]
+     * If no parameter is given all server's channels are listed. The parameter may also hold ELIST conditions, see
+     * {@link ListFilter}. Listing more than the named channels is streamed, see {@link ListStream}.
+     * Possible errors:
+     * ERR_UNKNOWNERROR - user count in a condition is not a number
+     * @param parameters [&lt;channel&gt;{,&lt;channel&gt;}] or [&lt;condition&gt;{,&lt;condition&gt;}]
      * @param connId id of the user's connection
      */
-    public synchronized void cmdList(List<String> parameters, int connId) {
-        List<String> channels;
-        if (parameters.isEmpty()) {
-            channels = channelManager.getChannels();
-        } else {
-            channels = splitBy(parameters.getFirst(), ",");
+    public void cmdList(List<String> parameters, int connId) {
+        ListFilter filter = null;
+        if (!parameters.isEmpty()) {
+            try {
+                filter = new ListFilter(parameters.getFirst(), config.caseMapping);
+            } catch (NumberFormatException e) {
+                sendReply(connId, ERR_UNKNOWNERROR, "LIST :Invalid user count");
+                return;
+            }
         }
 
         sendReply(connId, RPL_LISTSTART, "Channel :Users  Name");
-        for (String channel: channels) {
-            if (channelManager.channelExists(channel)) {
-                sendReply(connId, RPL_LIST, channel + " " + channelManager.getCount(channel) + " :" + channelManager.getTopic(channel));
+        if (filter == null || !filter.isNamesOnly()) {
+            new ListStream(connId, filter).run();
+            return;
+        }
+
+        for (String channel: filter.getMasks()) {
+            ChannelManager.ChannelInfo info = channelManager.getChannelInfo(channel);
+            if (info != null) {
+                sendReply(connId, RPL_LIST, info.name() + " " + info.users() + " :" + info.topic());
             }
         }
         sendReply(connId, RPL_LISTEND, ":End of /LIST");
@@ -399,7 +862,7 @@ public class IRCServer {
      * @param parameters &lt;channel&gt; [&lt;topic&gt;]
      * @param connId id of the user's connection
      */
-    public synchronized void cmdTopic(List<String> parameters, int connId) {
+    public void cmdTopic(List<String> parameters, int connId) {
         if (!userManager.userIsRegistered(connId)) {
             sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
             return;
@@ -412,30 +875,37 @@ public class IRCServer {
 
         String channel = parameters.getFirst();
 
-        if (parameters.size() == 1) {
-            if (channelManager.isTopicSet(channel)) {
-                sendReply(connId, RPL_TOPIC, channel + " :" + channelManager.getTopic(channel));
+        ReentrantLock lock = channelManager.getLock(channel);
+        lock.lock();
+        try {
+            channel = channelManager.getChannelName(channel);
+            if (parameters.size() == 1) {
+                if (channelManager.isTopicSet(channel)) {
+                    sendReply(connId, RPL_TOPIC, channel + " :" + channelManager.getTopic(channel));
+                } else {
+                    sendReply(connId, RPL_NOTOPIC, channel + " :No topic is set");
+                }
             } else {
-                sendReply(connId, RPL_NOTOPIC, channel + " :No topic is set");
-            }
-        } else {
-            if (!channelManager.isUserInChannel(connId, channel)) {
-                sendReply(connId, ERR_NOTONCHANNEL, channel + " :You're not on that channel");
-                return;
-            }
+                if (!channelManager.isUserInChannel(connId, channel)) {
+                    sendReply(connId, ERR_NOTONCHANNEL, channel + " :You're not on that channel");
+                    return;
+                }
 
-            String topic = joinBy(parameters, " ", 1);
-            if (topic.charAt(0) == ':') {
-                if (topic.length() == 1) {
-                    channelManager.clearTopic(channel);
-                    sendMessage(channel, userManager.getNickname(connId), "TOPIC", null, true);
+                String topic = joinBy(parameters, " ", 1);
+                if (topic.charAt(0) == ':') {
+                    if (topic.length() == 1) {
+                        channelManager.clearTopic(channel);
+                        sendMessage(channel, userManager.getNickname(connId), "TOPIC", channel + " :", true);
+                    } else {
+                        channelManager.setTopic(channel, topic.substring(1));
+                        sendMessage(channel, userManager.getNickname(connId), "TOPIC", channel + " " + topic, true);
+                    }
                 } else {
-                    channelManager.setTopic(channel, topic.substring(1));
-                    sendMessage(channel, userManager.getNickname(connId), "TOPIC", topic, true);
+                    sendReply(connId, ERR_UNKNOWNERROR, "TOPIC :missing colon for trailing parameter");
                 }
-            } else {
-                sendReply(connId, ERR_UNKNOWNERROR, "TOPIC :missing colon for trailing parameter");
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -451,7 +921,7 @@ public class IRCServer {
      * @param parameters &lt;channel&gt; &lt;user&gt; *( "," &lt;user&gt; ) [&lt;comment&gt;]
      * @param connId id of the user's connection
      */
-    public synchronized void cmdKick(List<String> parameters, int connId) {
+    public void cmdKick(List<String> parameters, int connId) {
         if (!userManager.userIsRegistered(connId)) {
             sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
             return;
@@ -470,29 +940,222 @@ public class IRCServer {
             reason = joinBy(parameters, " ", 2);
         }
 
-        if (!channelManager.channelExists(channel)) {
-            sendReply(connId, ERR_NOSUCHCHANNEL, channel + " : No such channel");
+        ReentrantLock lock = channelManager.getLock(channel);
+        lock.lock();
+        try {
+            channel = channelManager.getChannelName(channel);
+            if (!channelManager.channelExists(channel)) {
+                sendReply(connId, ERR_NOSUCHCHANNEL, channel + " : No such channel");
+                return;
+            }
+
+            if (!channelManager.isUserInChannel(connId, channel)) {
+                sendReply(connId, ERR_NOTONCHANNEL, channel + " :You're not on that channel");
+                return;
+            }
+
+            if (!channelManager.isChannelOperator(connId, channel)) {
+                sendReply(connId, ERR_CHANOPRIVSNEEDED, channel + ":You're not channel operator");
+                return;
+            }
+
+            for (String user: users) {
+                if (!userManager.userIsRegistered(user) || !channelManager.isUserInChannel(userManager.getConnId(user), channel)) {
+                    sendReply(connId, ERR_USERNOTINCHANNEL, user + " " + channel + " :They aren't on that channel");
+                    continue;
+                }
+
+                int kicked = userManager.getConnId(user);
+                sendMessage(channel, userManager.getNickname(connId), "KICK", channel + " " + userManager.getNickname(kicked) + " " + reason, true);
+                channelManager.leave(kicked, channel);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Service PASS command message
+     * Gives the password for the registration of a server link, see {@link #cmdServer(List, int)}.
+     * Possible errors:
+     * ERR_NEEDMOREPARAMS - not enough parameters were given
+     * ERR_ALREADYREGISTERED - the user is already registered
+     * @param parameters &lt;password&gt;
+     * @param connId id of the connection
+     */
+    public void cmdPass(List<String> parameters, int connId) {
+        if (parameters.isEmpty()) {
+            sendReply(connId, ERR_NEEDMOREPARAMS, "PASS :Not enough parameters");
             return;
         }
 
-        if (!channelManager.isUserInChannel(connId, channel)) {
-            sendReply(connId, ERR_NOTONCHANNEL, channel + " :You're not on that channel");
+        if (userManager.userIsRegistered(connId)) {
+            sendReply(connId, ERR_ALREADYREGISTERED, ":You may not reregister");
             return;
         }
 
-        if (!channelManager.isChannelOperator(connId, channel)) {
-            sendReply(connId, ERR_CHANOPRIVSNEEDED, channel + ":You're not channel operator");
+        links.pass(connId, parameters.getFirst());
+    }
+
+    /** Service SERVER command message
+     * Registers the connection as a link to another server, which then shares users and channels with this server,
+     * see {@link LinkManager}. The password given by PASS must match the configured link password.
+     * Possible errors:
+     * ERR_NEEDMOREPARAMS - not enough parameters were given
+     * ERR_ALREADYREGISTERED - the connection is registered as a user
+     * @param parameters &lt;servername&gt; &lt;hopcount&gt; &lt;info&gt;
+     * @param connId id of the connection
+     */
+    public void cmdServer(List<String> parameters, int connId) {
+        if (parameters.size() < 3) {
+            sendReply(connId, ERR_NEEDMOREPARAMS, "SERVER :Not enough parameters");
             return;
         }
 
-        for (String user: users) {
-            if (!userManager.userIsRegistered(user) || !channelManager.isUserInChannel(userManager.getConnId(user), channel)) {
-                sendReply(connId, ERR_USERNOTINCHANNEL, user + " " + channel + " :They aren't on that channel");
-                continue;
+        if (userManager.userIsRegistered(connId)) {
+            sendReply(connId, ERR_ALREADYREGISTERED, ":You may not reregister");
+            return;
+        }
+
+        String info = joinBy(parameters, " ", 2);
+        links.accept(connId, parameters.getFirst(), info.charAt(0) == ':' ? info.substring(1) : info);
+    }
+
+    /** Service PING command message
+     * Answered by PONG with the same token, also before the registration.
+     * Possible errors:
+     * ERR_NOORIGIN - no token was given
+     * @param parameters &lt;token&gt;
+     * @param connId id of the connection
+     */
+    public void cmdPing(List<String> parameters, int connId) {
+        if (parameters.isEmpty()) {
+            sendReply(connId, ERR_NOORIGIN, ":No origin specified");
+            return;
+        }
+
+        String token = parameters.getFirst();
+        sendMessage(connId, serverName, "PONG", serverName + " " + (token.startsWith(":") ? token : ":" + token));
+    }
+
+    /** Service PONG command message
+     * Answers a PING of the server. Nothing is sent back, every received line already counts as a sign of life, see
+     * {@link LivenessMonitor}.
+     * @param parameters [&lt;server&gt;] &lt;token&gt;
+     * @param connId id of the connection
+     */
+    public void cmdPong(List<String> parameters, int connId) {
+    }
+
+    /** Service STATS command message
+     * Queries server statistics:
+     * m - number of serviced commands of each type
+     * u - server uptime
+     * z - all runtime metrics in the text exposition format
+     * Possible errors:
+     * ERR_NOTREGISTERED - user is not registered
+     * @param parameters [&lt;query&gt;]
+     * @param connId id of the user's connection
+     */
+    public void cmdStats(List<String> parameters, int connId) {
+        if (!userManager.userIsRegistered(connId)) {
+            sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
+            return;
+        }
+
+        String query = parameters.isEmpty() ? "*" : parameters.getFirst().substring(0, 1);
+        switch (query) {
+            case "m" -> {
+                for (Metrics.CommandMetrics command : metrics.getCommands()) {
+                    sendReply(connId, RPL_STATSCOMMANDS, command.getCommand() + " " + command.getCount());
+                }
+            }
+            case "u" -> {
+                long seconds = metrics.getUptimeMillis() / 1000;
+                sendReply(connId, RPL_STATSUPTIME, String.format(Locale.ROOT, ":Server Up %d days %d:%02d:%02d",
+                        seconds / 86400, seconds / 3600 % 24, seconds / 60 % 60, seconds % 60));
             }
+            case "z" -> {
+                for (String line : metrics.format()) {
+                    sendReply(connId, RPL_STATSDEBUG, "z :" + line);
+                }
+            }
+            default -> { }
+        }
+        sendReply(connId, RPL_ENDOFSTATS, query + " :End of /STATS report");
+    }
+
+    /** Service CHATHISTORY command message
+     * Replays recent events of a channel the user is in as a batch. Every event carries the time and the message id
+     * tags, ids and times are the references for paging:
+     * LATEST &lt;channel&gt; &lt;* | reference&gt; &lt;limit&gt; - latest events, only after the reference if given
+     * BEFORE &lt;channel&gt; &lt;reference&gt; &lt;limit&gt; - events before the reference
+     * AFTER &lt;channel&gt; &lt;reference&gt; &lt;limit&gt; - events after the reference
+     * AROUND &lt;channel&gt; &lt;reference&gt; &lt;limit&gt; - events around the reference
+     * BETWEEN &lt;channel&gt; &lt;reference&gt; &lt;reference&gt; &lt;limit&gt; - events between the references
+     * A reference is msgid=&lt;id&gt; or timestamp=&lt;time&gt;, the limit is capped by the history length.
+     * Possible errors:
+     * ERR_NOTREGISTERED - user is not registered
+     * FAIL INVALID_PARAMS - unknown subcommand, reference or limit
+     * FAIL INVALID_TARGET - the target is not a channel the user is in
+     * @param parameters &lt;subcommand&gt; &lt;channel&gt; &lt;reference&gt; [&lt;reference&gt;] &lt;limit&gt;
+     * @param connId id of the user's connection
+     */
+    public void cmdChathistory(List<String> parameters, int connId) {
+        if (!userManager.userIsRegistered(connId)) {
+            sendReply(connId, ERR_NOTREGISTERED, ":You have not registered");
+            return;
+        }
+
+        String subcommand = parameters.isEmpty() ? "" : parameters.getFirst().toUpperCase(Locale.ROOT);
+        int referenceCount = "BETWEEN".equals(subcommand) ? 2 : 1;
+        if (parameters.size() != referenceCount + 3) {
+            sendFail(connId, "CHATHISTORY", "INVALID_PARAMS " + (subcommand.isEmpty() ? "*" : subcommand) + " :Invalid parameters");
+            return;
+        }
+        String target = channelManager.getChannelName(parameters.get(1));
+        ChannelHistory history = channelManager.getHistory(target);
+        if (history == null || !channelManager.isUserInChannel(connId, target)) {
+            sendFail(connId, "CHATHISTORY", "INVALID_TARGET " + subcommand + " " + target + " :Messages could not be retrieved");
+            return;
+        }
+
+        ChannelHistory.Reference first = ChannelHistory.Reference.parse(parameters.get(2));
+        ChannelHistory.Reference second = referenceCount == 2 ? ChannelHistory.Reference.parse(parameters.get(3)) : null;
+        int limit;
+        try {
+            limit = Math.min(Integer.parseInt(parameters.getLast()), channelManager.getHistoryLength());
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        boolean latestAll = "LATEST".equals(subcommand) && "*".equals(parameters.get(2));
+        if (limit < 0 || (first == null && !latestAll) || (referenceCount == 2 && second == null)) {
+            sendFail(connId, "CHATHISTORY", "INVALID_PARAMS " + subcommand + " :Invalid parameters");
+            return;
+        }
+
+        List<ChannelHistory.Event> events;
+        switch (subcommand) {
+            case "LATEST" -> events = history.latest(first, limit);
+            case "BEFORE" -> events = history.before(first, limit);
+            case "AFTER" -> events = history.after(first, limit);
+            case "AROUND" -> events = history.around(first, limit);
+            case "BETWEEN" -> events = history.between(first, second, limit);
+            default -> {
+                sendFail(connId, "CHATHISTORY", "INVALID_PARAMS " + subcommand + " :Unknown subcommand");
+                return;
+            }
+        }
 
-            sendMessage(channel, userManager.getNickname(connId), "KICK", channel + " " + user + " " + reason, true);
-            channelManager.leave(userManager.getConnId(user), channel);
+        String batch = Long.toString(batchIds.getAndIncrement(), Character.MAX_RADIX);
+        sendMessage(connId, serverName, "BATCH", "+" + batch + " chathistory " + target);
+        for (ChannelHistory.Event event : events) {
+            String tags = "@batch=" + batch + ";time=" + tagTime.format(Instant.ofEpochMilli(event.time()))
+                    + ";msgid=" + event.id() + " ";
+            byte[] prefix = tags.getBytes(StandardCharsets.UTF_8);
+            byte[] line = Arrays.copyOf(prefix, prefix.length + event.line().length);
+            System.arraycopy(event.line(), 0, line, prefix.length, event.line().length);
+            send(connId, line);
         }
+        sendMessage(connId, serverName, "BATCH", "-" + batch);
     }
 }
@@ -0,0 +1,214 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/** Open addressing set of non-negative ints with one flag bit per member
+ * Every slot stores the member shifted left by one with the flag in the lowest bit, so a member costs one int and
+ * there are no boxed keys or entry objects. Linear probing with backward shift deletion, no tombstones.
+ * Not thread safe. A set which is no longer modified may be shared between threads, see {@link #IntFlagSet(IntFlagSet)}.
+ */
+class IntFlagSet {
+    /** Visitor of members and their flags */
+    @FunctionalInterface
+    interface Visitor {
+        /** Visit a member
+         * @param member the member
+         * @param flag flag of the member
+         */
+        void accept(int member, boolean flag);
+    }
+
+    private static final int empty = -1;
+    private static final int minCapacity = 4;
+
+    private int[] slots;
+    private int size;
+
+    /** IntFlagSet constructor
+     */
+    IntFlagSet() {
+        slots = new int[minCapacity];
+        Arrays.fill(slots, empty);
+    }
+
+    /** Copy constructor for copy on write
+     * Copies the slot table, so the copy costs one array copy and the members need not be inserted again.
+     * @param other set to copy
+     */
+    IntFlagSet(IntFlagSet other) {
+        slots = other.slots.clone();
+        size = other.size;
+    }
+
+    /** Get home slot of a member
+     * Takes the top bits of the product, which depend on all bits of the member, as many as the table needs.
+     * @param member the member
+     * @param mask slot count minus one
+     * @return index of the first slot to probe
+     */
+    private static int home(int member, int mask) {
+        return (member * 0x9E3779B9 >>> Integer.numberOfLeadingZeros(mask)) & mask;
+    }
+
+    /** Find slot of a member
+     * @param member the member
+     * @return slot index or -1 if not present
+     */
+    private int find(int member) {
+        int mask = slots.length - 1;
+        for (int slot = home(member, mask); slots[slot] != empty; slot = (slot + 1) & mask) {
+            if (slots[slot] >>> 1 == member) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /** Checks if a member is present
+     * @param member non-negative int
+     * @return true if present
+     */
+    boolean contains(int member) {
+        return find(member) >= 0;
+    }
+
+    /** Add a member with the flag cleared
+     * @param member non-negative int
+     * @return false if the member was already present
+     */
+    boolean add(int member) {
+        assert member >= 0;
+        if (contains(member)) {
+            return false;
+        }
+        if ((size + 1) * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+        insert(member << 1);
+        size++;
+        return true;
+    }
+
+    /** Put a slot value to the first free slot
+     * @param value member and flag
+     */
+    private void insert(int value) {
+        int mask = slots.length - 1;
+        int slot = home(value >>> 1, mask);
+        while (slots[slot] != empty) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+    }
+
+    /** Resize the table
+     * @param capacity new number of slots
+     */
+    private void rehash(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        Arrays.fill(slots, empty);
+        for (int value : old) {
+            if (value != empty) {
+                insert(value);
+            }
+        }
+    }
+
+    /** Remove a member
+     * @param member the member
+     * @return false if the member was not present
+     */
+    boolean remove(int member) {
+        int slot = find(member);
+        if (slot < 0) {
+            return false;
+        }
+        int mask = slots.length - 1;
+        // shift back following entries which would not be found across the hole
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots[next] != empty) {
+            int wanted = home(slots[next] >>> 1, mask);
+            if (((next - wanted) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = empty;
+        size--;
+        if (slots.length > minCapacity && size * 8 < slots.length) {
+            rehash(slots.length / 2);
+        }
+        return true;
+    }
+
+    /** Get flag of a member
+     * @param member the member
+     * @return flag or false if the member is not present
+     */
+    boolean getFlag(int member) {
+        int slot = find(member);
+        return slot >= 0 && (slots[slot] & 1) != 0;
+    }
+
+    /** Set flag of a member
+     * @param member the member
+     * @param flag new flag
+     * @return false if the member is not present
+     */
+    boolean setFlag(int member, boolean flag) {
+        int slot = find(member);
+        if (slot < 0) {
+            return false;
+        }
+        slots[slot] = (member << 1) | (flag ? 1 : 0);
+        return true;
+    }
+
+    /** Get number of members
+     * @return number of members
+     */
+    int size() {
+        return size;
+    }
+
+    /** Get the longest distance of a member from its home slot
+     * Used by tests to check the spread of the members.
+     * @return number of slots probed before the farthest member
+     */
+    int longestProbe() {
+        int mask = slots.length - 1;
+        int longest = 0;
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != empty) {
+                longest = Math.max(longest, (slot - home(slots[slot] >>> 1, mask)) & mask);
+            }
+        }
+        return longest;
+    }
+
+    /** Call an action for every member
+     * @param action action taking the member
+     */
+    void forEach(IntConsumer action) {
+        for (int value : slots) {
+            if (value != empty) {
+                action.accept(value >>> 1);
+            }
+        }
+    }
+
+    /** Call a visitor for every member and its flag
+     * @param visitor visitor
+     */
+    void forEach(Visitor visitor) {
+        for (int value : slots) {
+            if (value != empty) {
+                visitor.accept(value >>> 1, (value & 1) != 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/** Map from non-negative int keys to objects backed by an array indexed by the key
+ * Meant for connection ids, which are allocated densely from zero, so keys are never boxed and there are no entry
+ * objects. Reads are lock free, updates are synchronized.
+ * @param <V> type of the values
+ */
+class IntObjectMap<V> {
+    private volatile AtomicReferenceArray<V> table = new AtomicReferenceArray<>(16);
+    private volatile int size;
+
+    /** Get value of a key
+     * @param key non-negative key
+     * @return value or null if the key is not present
+     */
+    V get(int key) {
+        AtomicReferenceArray<V> current = table;
+        return key >= 0 && key < current.length() ? current.get(key) : null;
+    }
+
+    /** Checks if a key is present
+     * @param key non-negative key
+     * @return true if the key has a value
+     */
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /** Set value of a key
+     * @param key non-negative key
+     * @param value value, must not be null
+     * @return previous value or null
+     */
+    synchronized V put(int key, V value) {
+        assert key >= 0 && value != null;
+        AtomicReferenceArray<V> current = table;
+        if (key >= current.length()) {
+            int length = current.length();
+            while (key >= length) {
+                length *= 2;
+            }
+            AtomicReferenceArray<V> grown = new AtomicReferenceArray<>(length);
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            table = grown;
+            current = grown;
+        }
+        V previous = current.getAndSet(key, value);
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    /** Set value of a key if it is not present
+     * @param key non-negative key
+     * @param value value, must not be null
+     * @return current value or null if the value was set
+     */
+    synchronized V putIfAbsent(int key, V value) {
+        V current = get(key);
+        if (current != null) {
+            return current;
+        }
+        put(key, value);
+        return null;
+    }
+
+    /** Remove a key
+     * @param key non-negative key
+     * @return removed value or null
+     */
+    synchronized V remove(int key) {
+        AtomicReferenceArray<V> current = table;
+        if (key < 0 || key >= current.length()) {
+            return null;
+        }
+        V previous = current.getAndSet(key, null);
+        if (previous != null) {
+            size--;
+        }
+        return previous;
+    }
+
+    /** Visit all values
+     * Lock free, values put or removed concurrently may or may not be visited.
+     * @param action called for every value
+     */
+    void forEach(Consumer<V> action) {
+        AtomicReferenceArray<V> current = table;
+        for (int i = 0; i < current.length(); i++) {
+            V value = current.get(i);
+            if (value != null) {
+                action.accept(value);
+            }
+        }
+    }
+
+    /** Get number of keys
+     * @return number of keys with a value
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,836 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Class responsible for links to other servers
+ * Linked servers form a spanning tree and share the nickname and channel namespace, the protocol is a subset of
+ * RFC 2813. A link is registered by <code>PASS</code> and <code>SERVER</code> sent by both sides, then each side sends
+ * a burst of its servers (<code>SERVER</code>), users (<code>NICK</code>) and channel members (<code>NJOIN</code>).
+ * Afterwards every change of users and channels is forwarded to all links except the one it came from, while messages
+ * to a channel only go to the links with members in the channel, once per link. Users of other servers get a connId
+ * like local users, their {@link RemoteUser} connection forwards private messages to the link leading to them. When a
+ * link closes, all servers and users behind it are removed (netsplit) and the other links are told by
+ * <code>SQUIT</code>. Nickname collisions are resolved by <code>KILL</code> of the introduced user, as both sides do the
+ * same on a netjoin, both users are killed.
+ * Changes of the registry of servers and users are made under the monitor of this object, channel events are forwarded
+ * under the lock of the channel and read the links without a lock.
+ */
+public class LinkManager {
+    /** Maximum number of direct links, each link has a bit in the masks returned by {@link Connection#broadcast(byte[])} */
+    static final int maxLinks = 64;
+    /** Delay between attempts to connect an outgoing link */
+    private static final long reconnectMillis = 5000;
+    /** Size of the chunks a burst is sent in, so a large burst takes only a few places of the outbound queue */
+    private static final int burstChunk = 1 << 16;
+
+    /** Direct link to a neighbouring server */
+    private static class Link {
+        final int connId;
+        final int slot;
+        final String name;
+        final Connection connection;
+        /** Lines forwarded while the burst is sent, null when the burst is over, guarded by this */
+        private List<byte[]> held = new ArrayList<>();
+
+        /** Link constructor
+         * @param connId id of the link's connection
+         * @param slot index of the link's bit
+         * @param name name of the server on the other side
+         * @param connection connection of the link
+         */
+        Link(int connId, int slot, String name, Connection connection) {
+            this.connId = connId;
+            this.slot = slot;
+            this.name = name;
+            this.connection = connection;
+        }
+
+        /** Send an encoded line to the linked server, lines sent during the burst wait until it is over
+         * @param line bytes of the line including the line terminator
+         */
+        synchronized void send(byte[] line) {
+            if (held != null) {
+                held.add(line);
+            } else {
+                connection.send(line);
+            }
+        }
+
+        /** Send a message to the linked server
+         * @param message text of the message without line terminator
+         */
+        void send(String message) {
+            send(Connection.encode(message));
+        }
+
+        /** Send the lines held during the burst and stop holding them
+         */
+        synchronized void endBurst() {
+            for (byte[] line : held) {
+                connection.send(line);
+            }
+            held = null;
+        }
+    }
+
+    /** Server reached through a link
+     * @param name server name
+     * @param hopcount distance from this server
+     * @param info server description
+     * @param uplink name of the server which introduced it
+     * @param link link leading to the server
+     */
+    private record RemoteServer(String name, int hopcount, String info, String uplink, Link link) {}
+
+    /** Connection of a user on another server
+     * Private messages to the user are forwarded to the link leading to its server, channel messages are forwarded by
+     * the sender once per link.
+     */
+    private static class RemoteUser implements Connection {
+        final int connId;
+        final Link link;
+        final String server;
+        final int hopcount;
+
+        /** RemoteUser constructor
+         * @param connId id assigned to the user
+         * @param link link leading to the user's server
+         * @param server name of the user's server
+         * @param hopcount distance of the user's server from this server
+         */
+        RemoteUser(int connId, Link link, String server, int hopcount) {
+            this.connId = connId;
+            this.link = link;
+            this.server = server;
+            this.hopcount = hopcount;
+        }
+
+        public void send(byte[] line) {
+            link.send(line);
+        }
+
+        public long broadcast(byte[] line) {
+            return 1L << link.slot;
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+    }
+
+    private final IRCServer server;
+    private final String serverName;
+    private final ServerConfig config;
+    private final ChannelManager channelManager;
+    private final UserManager userManager;
+    private final ConnectionManager connectionManager;
+    /** Links by their index, replaced as a whole so forwarding needs no lock */
+    private volatile Link[] slots = new Link[maxLinks];
+    /** Links by connId of their connection */
+    private final IntObjectMap<Link> links = new IntObjectMap<>();
+    /** Users of other servers by their connId */
+    private final IntObjectMap<RemoteUser> remoteUsers = new IntObjectMap<>();
+    /** Servers behind the links in the order they were introduced, guarded by this */
+    private final Map<String, RemoteServer> servers = new LinkedHashMap<>();
+    /** Local users announced to the links, guarded by this */
+    private final Set<Integer> localUsers = new HashSet<>();
+    /** Passwords given by connections which did not register as a server yet */
+    private final IntObjectMap<String> passwords = new IntObjectMap<>();
+    /** Connections of outgoing links which sent their registration, guarded by this */
+    private final Set<Integer> initiated = new HashSet<>();
+
+    /** LinkManager constructor
+     * @param server server the links belong to
+     * @param serverName name of this server
+     * @param config configuration with the link password
+     * @param channelManager channel manager of the server
+     * @param userManager user manager of the server
+     * @param connectionManager connection manager of the server
+     */
+    LinkManager(IRCServer server, String serverName, ServerConfig config, ChannelManager channelManager,
+                UserManager userManager, ConnectionManager connectionManager) {
+        this.server = server;
+        this.serverName = serverName;
+        this.config = config;
+        this.channelManager = channelManager;
+        this.userManager = userManager;
+        this.connectionManager = connectionManager;
+    }
+
+    /** Checks if a connection is a registered server link
+     * @param connId id of the connection
+     * @return true for links
+     */
+    public boolean isLink(int connId) {
+        return links.containsKey(connId);
+    }
+
+    /** Get number of direct links
+     * @return number of links
+     */
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    /** Get number of users on other servers
+     * @return number of remote users
+     */
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /** Connect an outgoing link and connect it again whenever it closes
+     * The link is serviced by a blocking connection handler on a virtual thread.
+     * @param address host and port of the other server as <code>host:port</code>
+     */
+    public void connect(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        Thread.ofVirtual().name("irc-link-" + address).start(() -> {
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    ConnectionHandler handler = connectionManager.addConnection(connId -> {
+                        ConnectionHandler connection = new ConnectionHandler(socket, connId, server);
+                        initiate(connId, connection);
+                        return connection;
+                    });
+                    handler.run();
+                } catch (IOException e) {
+                    Log.warn("Error could not connect link to " + address);
+                }
+                try {
+                    Thread.sleep(reconnectMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /** Send the registration of an outgoing link
+     * @param connId id of the link's connection
+     * @param connection connection of the link
+     */
+    synchronized void initiate(int connId, Connection connection) {
+        initiated.add(connId);
+        connection.sendMessage("PASS " + config.linkPassword);
+        connection.sendMessage("SERVER " + serverName + " 1 :" + config.serverInfo);
+    }
+
+    /** Remember the password given by a connection for its registration as a server
+     * @param connId id of the connection
+     * @param password password
+     */
+    public void pass(int connId, String password) {
+        passwords.put(connId, password);
+    }
+
+    /** Close a connection which failed to register or broke the protocol
+     * @param connection the connection
+     * @param reason reason sent to the other side
+     */
+    private void refuse(Connection connection, String reason) {
+        Log.warn("Refused server link: " + reason);
+        connection.sendMessage("ERROR :" + reason);
+        connection.close();
+    }
+
+    /** Register a connection as a link to a neighbouring server and send the burst
+     * The connection stops being a user. An incoming link is answered by the registration of this server.
+     * @param connId id of the connection
+     * @param name name of the other server
+     * @param info description of the other server
+     */
+    public synchronized void accept(int connId, String name, String info) {
+        Connection connection = connectionManager.getConnection(connId);
+        String password = passwords.remove(connId);
+        if (connection == null) {
+            return;
+        }
+        if (config.linkPassword == null || !config.linkPassword.equals(password)) {
+            refuse(connection, "Bad password");
+            return;
+        }
+        if (name.equals(serverName) || servers.containsKey(name)) {
+            refuse(connection, "Server " + name + " already exists");
+            return;
+        }
+        Link[] newSlots = slots.clone();
+        int slot = Arrays.asList(newSlots).indexOf(null);
+        if (slot < 0) {
+            refuse(connection, "Too many links");
+            return;
+        }
+        if (!initiated.remove(connId)) {
+            connection.sendMessage("PASS " + config.linkPassword);
+            connection.sendMessage("SERVER " + serverName + " 1 :" + config.serverInfo);
+        }
+        userManager.removeUser(connId);
+
+        Link link = new Link(connId, slot, name, connection);
+        newSlots[slot] = link;
+        slots = newSlots;
+        links.put(connId, link);
+        servers.put(name, new RemoteServer(name, 1, info, serverName, link));
+        Log.info("Linked server " + name, connId);
+        forward(":" + serverName + " SERVER " + name + " 2 :" + info, link);
+        burst(link);
+    }
+
+    /** Strip the colon of a trailing parameter
+     * @param parameter parameter
+     * @return parameter without the leading colon
+     */
+    private static String info(String parameter) {
+        return parameter.startsWith(":") ? parameter.substring(1) : parameter;
+    }
+
+    /** Send the servers, users and channel members known to this server to a new link
+     * The lines are sent in large chunks. Channel events forwarded to the link meanwhile are held until the burst is
+     * over, so they apply after it. Called with the monitor held.
+     * @param link the new link
+     */
+    private void burst(Link link) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(burstChunk);
+        for (RemoteServer remote : servers.values()) {
+            if (remote.link() != link) {
+                append(out, link, ":" + remote.uplink() + " SERVER " + remote.name() + " " + (remote.hopcount() + 1)
+                        + " :" + remote.info());
+            }
+        }
+        for (int connId : localUsers) {
+            introduction(connId, 1, serverName).ifPresent(line -> append(out, link, line));
+        }
+        remoteUsers.forEach(user -> {
+            if (user.link != link) {
+                introduction(user.connId, user.hopcount + 1, user.server).ifPresent(line -> append(out, link, line));
+            }
+        });
+        Iterator<ChannelManager.ChannelInfo> channels = channelManager.listChannels();
+        while (channels.hasNext()) {
+            String channel = channels.next().name();
+            ReentrantLock lock = channelManager.getLock(channel);
+            lock.lock();
+            try {
+                burstChannel(out, link, channel);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (out.size() > 0) {
+            link.connection.send(out.toByteArray());
+        }
+        link.endBurst();
+    }
+
+    /** Append members and topic of a channel to a burst
+     * Called with the channel lock held.
+     * @param out burst being built
+     * @param link the new link
+     * @param channel channel name
+     */
+    private void burstChannel(ByteArrayOutputStream out, Link link, String channel) {
+        String start = ":" + serverName + " NJOIN " + channel + " :";
+        StringBuilder members = new StringBuilder(start);
+        channelManager.forEachChannelUser(channel, (int member, boolean operator) -> {
+            RemoteUser remote = remoteUsers.get(member);
+            String nickname = userManager.getNickname(member);
+            if ((remote != null && remote.link == link) || nickname == null) {
+                return;
+            }
+            if (members.length() + nickname.length() + 2 > IRCServer.maxLineLength) {
+                append(out, link, members.toString());
+                members.setLength(start.length());
+            }
+            if (members.length() > start.length()) {
+                members.append(',');
+            }
+            members.append(operator ? "@" : "").append(nickname);
+        });
+        if (members.length() > start.length()) {
+            append(out, link, members.toString());
+        }
+        if (channelManager.isTopicSet(channel)) {
+            append(out, link, ":" + serverName + " TOPIC " + channel + " :" + channelManager.getTopic(channel));
+        }
+    }
+
+    /** Append a line to a burst and send the burst when it reached the chunk size
+     * @param out burst being built
+     * @param link the new link
+     * @param message text of the line without line terminator
+     */
+    private static void append(ByteArrayOutputStream out, Link link, String message) {
+        out.writeBytes(Connection.encode(message));
+        if (out.size() >= burstChunk) {
+            link.connection.send(out.toByteArray());
+            out.reset();
+        }
+    }
+
+    /** Format the introduction of a user
+     * @param connId id of the user's connection
+     * @param hopcount distance of the user's server from the receiving server
+     * @param userServer name of the user's server
+     * @return NICK message or nothing if the user is gone
+     */
+    private Optional<String> introduction(int connId, int hopcount, String userServer) {
+        UserManager.UserDetails user = userManager.getUserDetails(connId);
+        if (user == null || user.nickname() == null) {
+            return Optional.empty();
+        }
+        return Optional.of("NICK " + user.nickname() + " " + hopcount + " " + user.username() + " " + user.hostname()
+                + " " + userServer + " + :" + user.realname());
+    }
+
+    /** Send a message to all links except one
+     * @param message text of the message
+     * @param except link the message came from or null
+     */
+    private void forward(String message, Link except) {
+        forward(Connection.encode(message), -1L, except);
+    }
+
+    /** Send an encoded line to links
+     * @param line bytes of the line including the line terminator
+     * @param mask bits of the links to send to
+     * @param except link the line came from or null
+     */
+    private void forward(byte[] line, long mask, Link except) {
+        Link[] current = slots;
+        for (int slot = 0; slot < current.length; slot++) {
+            Link link = current[slot];
+            if (link != null && link != except && (mask & (1L << slot)) != 0) {
+                link.send(line);
+            }
+        }
+    }
+
+    /** Forward a channel message of a local user
+     * Messages to a channel go only to the links with members in it, other events go to all links so every server
+     * knows the members of all channels. Called with the channel lock held.
+     * @param command command of the message
+     * @param line encoded message
+     * @param memberLinks bits of the links with members in the channel
+     */
+    void forwardChannelMessage(String command, byte[] line, long memberLinks) {
+        forward(line, "PRIVMSG".equals(command) ? memberLinks : -1L, null);
+    }
+
+    /** Announce a local user who completed registration
+     * @param connId id of the user's connection
+     */
+    public synchronized void userRegistered(int connId) {
+        if (localUsers.add(connId)) {
+            introduction(connId, 1, serverName).ifPresent(line -> forward(line, null));
+        }
+    }
+
+    /** Announce a nickname change of a local user
+     * @param connId id of the user's connection
+     * @param previous previous nickname
+     */
+    public synchronized void userRenamed(int connId, String previous) {
+        if (localUsers.contains(connId)) {
+            forward(":" + previous + " NICK " + userManager.getNickname(connId), null);
+        }
+    }
+
+    /** Announce a local user who disconnected
+     * @param connId id of the user's connection
+     */
+    public synchronized void userQuit(int connId) {
+        if (localUsers.remove(connId)) {
+            forward(":" + userManager.getNickname(connId) + " QUIT :Connection closed", null);
+        }
+    }
+
+    /** Handle a closed connection, when it was a link all servers and users behind it are removed
+     * @param connId id of the connection
+     */
+    public synchronized void connectionClosed(int connId) {
+        passwords.remove(connId);
+        initiated.remove(connId);
+        Link link = links.remove(connId);
+        if (link == null) {
+            return;
+        }
+        Link[] newSlots = slots.clone();
+        newSlots[link.slot] = null;
+        slots = newSlots;
+        Log.warn("Netsplit! Lost link to " + link.name, connId);
+        removeServers(link.name, link);
+        forward(":" + serverName + " SQUIT " + link.name + " :Link closed", link);
+    }
+
+    /** Remove a server, all servers introduced by it and their users
+     * Called with the monitor held.
+     * @param name name of the server
+     * @param link link leading to the server
+     */
+    private void removeServers(String name, Link link) {
+        Set<String> removed = new HashSet<>(Set.of(name));
+        // servers are ordered after their uplinks, so one pass finds the whole subtree
+        for (RemoteServer remote : servers.values()) {
+            if (removed.contains(remote.uplink())) {
+                removed.add(remote.name());
+            }
+        }
+        servers.keySet().removeAll(removed);
+        List<RemoteUser> users = new ArrayList<>();
+        remoteUsers.forEach(user -> {
+            if (user.link == link && removed.contains(user.server)) {
+                users.add(user);
+            }
+        });
+        for (RemoteUser user : users) {
+            removeUser(user);
+        }
+        Log.info("Removed " + removed.size() + " servers and " + users.size() + " users behind " + name);
+    }
+
+    /** Remove a remote user from channels and registries
+     * @param user the user
+     */
+    private void removeUser(RemoteUser user) {
+        channelManager.removeUser(user.connId);
+        userManager.removeUser(user.connId);
+        remoteUsers.remove(user.connId);
+        connectionManager.removeHandler(user.connId);
+    }
+
+    /** Service a line received on a link
+     * @param line received line
+     * @param message message instance reused for parsing lines of the connection
+     * @param connId id of the link's connection
+     */
+    public void processLine(String line, IRCMessage message, int connId) {
+        Log.traffic(connId, line);
+        Link link = links.get(connId);
+        if (link == null || !message.parse(line)) {
+            return;
+        }
+        String command = message.getCommand().toUpperCase(Locale.ROOT);
+        String prefix = message.getPrefix();
+        List<String> parameters = message.getParameters();
+        try {
+            dispatch(link, command, prefix, parameters, line);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            Log.warn("Malformed line from server " + link.name + ": " + line, connId);
+        }
+    }
+
+    /** Service a parsed line of a link
+     * @param link link the line came from
+     * @param command upper case command
+     * @param prefix prefix of the line or null
+     * @param parameters parameters of the line
+     * @param line received line
+     */
+    private void dispatch(Link link, String command, String prefix, List<String> parameters, String line) {
+        int connId = link.connId;
+        switch (command) {
+            case "PING" -> link.send(":" + serverName + " PONG " + serverName);
+            case "PONG" -> { }
+            case "ERROR" -> {
+                Log.warn("Link error from " + link.name + ": " + line, connId);
+                link.connection.close();
+            }
+            case "SERVER" -> remoteServer(link, prefix, parameters);
+            case "SQUIT" -> squit(link, parameters);
+            case "NICK" -> {
+                if (parameters.size() >= 6) {
+                    introduce(link, parameters);
+                } else {
+                    rename(link, prefix, parameters);
+                }
+            }
+            case "QUIT" -> quit(link, prefix, line);
+            case "KILL" -> kill(link, parameters, line);
+            case "NJOIN" -> njoin(link, parameters, line);
+            case "JOIN", "PART", "TOPIC", "KICK" -> channelEvent(link, command, prefix, parameters, line);
+            case "PRIVMSG" -> privmsg(link, prefix, parameters, line);
+            default -> Log.warn("Unknown command from server " + link.name + ": " + command, connId);
+        }
+    }
+
+    /** Find the user who sent a message on a link
+     * @param link link the message came from
+     * @param prefix prefix of the message
+     * @return the user or null if the prefix is not a user behind the link
+     */
+    private RemoteUser sender(Link link, String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        int connId = userManager.getConnId(prefix);
+        RemoteUser user = connId >= 0 ? remoteUsers.get(connId) : null;
+        return user != null && user.link == link ? user : null;
+    }
+
+    /** Checks if a server is known behind one of the links
+     * @param name name of the server
+     * @return true if the server is behind a link
+     */
+    private synchronized boolean isServer(String name) {
+        return servers.containsKey(name);
+    }
+
+    /** Service SERVER introducing a server behind a link
+     * A server which is already known means a loop in the tree, the link is closed.
+     * @param link link the message came from
+     * @param uplink server which introduced the server
+     * @param parameters &lt;name&gt; &lt;hopcount&gt; &lt;info&gt;
+     */
+    private synchronized void remoteServer(Link link, String uplink, List<String> parameters) {
+        if (parameters.size() < 3) {
+            return;
+        }
+        String name = parameters.getFirst();
+        if (name.equals(serverName) || servers.containsKey(name)) {
+            refuse(link.connection, "Server " + name + " already exists");
+            return;
+        }
+        int hopcount = Integer.parseInt(parameters.get(1));
+        String info = info(parameters.get(2));
+        servers.put(name, new RemoteServer(name, hopcount, info, uplink != null ? uplink : link.name, link));
+        forward(":" + (uplink != null ? uplink : link.name) + " SERVER " + name + " " + (hopcount + 1) + " :" + info, link);
+    }
+
+    /** Service SQUIT removing a server split from the other side of a link
+     * @param link link the message came from
+     * @param parameters &lt;server&gt; &lt;reason&gt;
+     */
+    private synchronized void squit(Link link, List<String> parameters) {
+        if (parameters.isEmpty()) {
+            return;
+        }
+        String name = parameters.getFirst();
+        RemoteServer remote = servers.get(name);
+        if (remote == null || remote.link() != link || name.equals(link.name)) {
+            return;
+        }
+        removeServers(name, link);
+        forward(":" + link.name + " SQUIT " + name + " :" + info(parameters.getLast()), link);
+    }
+
+    /** Service NICK introducing a user behind a link
+     * A nickname in use is a collision, the introduced user is killed.
+     * @param link link the message came from
+     * @param parameters &lt;nickname&gt; &lt;hopcount&gt; &lt;username&gt; &lt;host&gt; &lt;server&gt; &lt;umode&gt; &lt;realname&gt;
+     */
+    private synchronized void introduce(Link link, List<String> parameters) {
+        String nickname = parameters.getFirst();
+        int hopcount = Integer.parseInt(parameters.get(1));
+        String username = parameters.get(2);
+        String hostname = parameters.get(3);
+        String userServer = parameters.get(4);
+        String realname = info(parameters.getLast());
+        if (userManager.nicknameInUse(nickname)) {
+            link.send(":" + serverName + " KILL " + nickname + " :Nick collision");
+            return;
+        }
+        RemoteUser user = connectionManager.addConnection(connId -> new RemoteUser(connId, link, userServer, hopcount));
+        userManager.addUser(user.connId);
+        if (!userManager.setNickname(user.connId, nickname)) {
+            userManager.removeUser(user.connId);
+            connectionManager.removeHandler(user.connId);
+            link.send(":" + serverName + " KILL " + nickname + " :Nick collision");
+            return;
+        }
+        userManager.setUserDetails(user.connId, username, hostname, userServer, realname);
+        remoteUsers.put(user.connId, user);
+        forward("NICK " + nickname + " " + (hopcount + 1) + " " + username + " " + hostname + " " + userServer
+                + " + :" + realname, link);
+    }
+
+    /** Service NICK changing the nickname of a user behind a link
+     * When the new nickname is in use, the user is killed.
+     * @param link link the message came from
+     * @param prefix previous nickname
+     * @param parameters &lt;nickname&gt;
+     */
+    private synchronized void rename(Link link, String prefix, List<String> parameters) {
+        RemoteUser user = sender(link, prefix);
+        if (user == null || parameters.isEmpty()) {
+            return;
+        }
+        String nickname = info(parameters.getFirst());
+        int owner = userManager.getConnId(nickname);
+        if ((owner >= 0 && owner != user.connId) || !userManager.setNickname(user.connId, nickname)) {
+            removeUser(user);
+            link.send(":" + serverName + " KILL " + nickname + " :Nick collision");
+            forward(":" + prefix + " QUIT :Nick collision", link);
+            return;
+        }
+        channelManager.renameUser(user.connId, prefix);
+        forward(":" + prefix + " NICK " + nickname, link);
+    }
+
+    /** Service QUIT of a user behind a link
+     * @param link link the message came from
+     * @param prefix nickname of the user
+     * @param line received line
+     */
+    private synchronized void quit(Link link, String prefix, String line) {
+        RemoteUser user = sender(link, prefix);
+        if (user != null) {
+            removeUser(user);
+            forward(Connection.encode(line), -1L, link);
+        }
+    }
+
+    /** Service KILL of a user
+     * A local user is disconnected, its QUIT then reaches all servers. A kill of a user behind another link is passed
+     * on towards the user.
+     * @param link link the message came from
+     * @param parameters &lt;nickname&gt; &lt;reason&gt;
+     * @param line received line
+     */
+    private void kill(Link link, List<String> parameters, String line) {
+        int connId = parameters.isEmpty() ? -1 : userManager.getConnId(parameters.getFirst());
+        if (connId < 0) {
+            return;
+        }
+        RemoteUser user = remoteUsers.get(connId);
+        if (user == null) {
+            Log.info("Killed by " + link.name + ": " + line, connId);
+            Connection connection = connectionManager.getConnection(connId);
+            if (connection != null) {
+                connection.close();
+            }
+        } else if (user.link != link) {
+            user.link.send(Connection.encode(line));
+        }
+    }
+
+    /** Service NJOIN adding members of a channel behind a link
+     * Members already in the channel are skipped, so a duplicate NJOIN does not harm.
+     * @param link link the message came from
+     * @param parameters &lt;channel&gt; &lt;members&gt; - members separated by commas, operators prefixed by '@'
+     * @param line received line
+     */
+    private void njoin(Link link, List<String> parameters, String line) {
+        if (parameters.size() < 2) {
+            return;
+        }
+        String channel = parameters.getFirst();
+        ReentrantLock lock = channelManager.getLock(channel);
+        lock.lock();
+        try {
+            for (String member : info(parameters.get(1)).split(",")) {
+                boolean operator = member.startsWith("@");
+                String nickname = operator ? member.substring(1) : member;
+                RemoteUser user = sender(link, nickname);
+                if (user == null || channelManager.isUserInChannel(user.connId, channel)) {
+                    continue;
+                }
+                channelManager.joinMember(user.connId, channel, operator);
+                server.broadcast(channel, Connection.encode(":" + nickname + " JOIN " + channel), user.connId, true);
+            }
+            forward(Connection.encode(line), -1L, link);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Service JOIN, PART, TOPIC and KICK of a user behind a link
+     * The change is applied, shown to the local members and forwarded to the other links. A TOPIC of a server is
+     * part of a burst and only sets the topic of a channel without one.
+     * @param link link the message came from
+     * @param command command of the message
+     * @param prefix nickname of the user or name of a server
+     * @param parameters parameters of the message, the first one is the channel
+     * @param line received line
+     */
+    private void channelEvent(Link link, String command, String prefix, List<String> parameters, String line) {
+        RemoteUser user = sender(link, prefix);
+        boolean fromServer = user == null && "TOPIC".equals(command) && (link.name.equals(prefix) || isServer(prefix));
+        if ((user == null && !fromServer) || parameters.isEmpty()) {
+            return;
+        }
+        String channel = parameters.getFirst();
+        byte[] encoded = Connection.encode(line);
+        ReentrantLock lock = channelManager.getLock(channel);
+        lock.lock();
+        try {
+            switch (command) {
+                case "JOIN" -> {
+                    if (channelManager.isUserInChannel(user.connId, channel)) {
+                        return;
+                    }
+                    channelManager.join(user.connId, channel, null);
+                    server.broadcast(channel, encoded, user.connId, true);
+                }
+                case "PART" -> {
+                    if (!channelManager.isUserInChannel(user.connId, channel)) {
+                        return;
+                    }
+                    channelManager.leave(user.connId, channel);
+                    server.broadcast(channel, encoded, user.connId, true);
+                }
+                case "TOPIC" -> {
+                    String topic = parameters.size() > 1 ? info(parameters.get(1)) : "";
+                    if (!channelManager.channelExists(channel) || (fromServer && channelManager.isTopicSet(channel))) {
+                        return;
+                    }
+                    if (topic.isEmpty()) {
+                        channelManager.clearTopic(channel);
+                    } else {
+                        channelManager.setTopic(channel, topic);
+                    }
+                    server.broadcast(channel, encoded, -1, true);
+                }
+                case "KICK" -> {
+                    int kicked = parameters.size() > 1 ? userManager.getConnId(parameters.get(1)) : -1;
+                    if (kicked < 0 || !channelManager.isUserInChannel(kicked, channel)) {
+                        return;
+                    }
+                    server.broadcast(channel, encoded, -1, false);
+                    channelManager.leave(kicked, channel);
+                }
+                default -> {
+                    return;
+                }
+            }
+            forward(encoded, -1L, link);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Service PRIVMSG of a user behind a link
+     * A message to a channel is shown to the local members and forwarded to the other links with members, a private
+     * message is delivered to a local user or passed on towards a remote one.
+     * @param link link the message came from
+     * @param prefix nickname of the sender
+     * @param parameters &lt;target&gt; &lt;text&gt;
+     * @param line received line
+     */
+    private void privmsg(Link link, String prefix, List<String> parameters, String line) {
+        RemoteUser user = sender(link, prefix);
+        if (user == null || parameters.isEmpty()) {
+            return;
+        }
+        String target = parameters.getFirst();
+        byte[] encoded = Connection.encode(line);
+        if (target.charAt(0) == IRCServer.channelPrefix) {
+            if (channelManager.channelExists(target)) {
+                forward(encoded, server.broadcast(target, encoded, user.connId, true), link);
+            }
+            return;
+        }
+        int connId = userManager.getConnId(target);
+        RemoteUser remote = connId >= 0 ? remoteUsers.get(connId) : null;
+        if (remote == null && connId >= 0) {
+            server.send(connId, encoded);
+        } else if (remote != null && remote.link != link) {
+            remote.link.send(encoded);
+        }
+    }
+}
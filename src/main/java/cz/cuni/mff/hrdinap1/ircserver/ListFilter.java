@@ -0,0 +1,126 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Filter of the LIST command with the ELIST extensions
+ * The parameter is a comma separated list of conditions:
+ * <ul>
+ *     <li><code>&gt;n</code> - channels with more than n users</li>
+ *     <li><code>&lt;n</code> - channels with fewer than n users</li>
+ *     <li><code>mask</code> - channels matching the mask, <code>*</code> matches any text and <code>?</code> one
+ *     character, a name without wildcards matches only that channel</li>
+ *     <li><code>!mask</code> - channels not matching the mask</li>
+ * </ul>
+ * A channel is accepted if it satisfies the user count conditions, matches one of the masks if there are any and none
+ * of the negated masks. Masks ignore case under the case mapping of channel names.
+ */
+class ListFilter {
+    private int minUsers = 1;
+    private int maxUsers = Integer.MAX_VALUE;
+    private final List<String> masks = new ArrayList<>();
+    private final List<String> negatedMasks = new ArrayList<>();
+    /** True if every condition is a plain channel name */
+    private boolean namesOnly = true;
+    private final CaseMapping caseMapping;
+
+    /** Parse a filter
+     * @param parameter comma separated conditions
+     * @param caseMapping case mapping of channel names
+     * @throws NumberFormatException if a user count is not a number
+     */
+    ListFilter(String parameter, CaseMapping caseMapping) {
+        this.caseMapping = caseMapping;
+        for (String condition : parameter.split(",")) {
+            if (condition.isEmpty()) {
+                continue;
+            }
+            char first = condition.charAt(0);
+            if (first == '>') {
+                minUsers = Math.max(minUsers, Integer.parseInt(condition.substring(1)) + 1);
+                namesOnly = false;
+            } else if (first == '<') {
+                maxUsers = Math.min(maxUsers, Integer.parseInt(condition.substring(1)) - 1);
+                namesOnly = false;
+            } else if (first == '!') {
+                negatedMasks.add(condition.substring(1));
+                namesOnly = false;
+            } else {
+                masks.add(condition);
+                if (condition.indexOf('*') >= 0 || condition.indexOf('?') >= 0) {
+                    namesOnly = false;
+                }
+            }
+        }
+    }
+
+    /** Checks if the filter only names channels, so they can be looked up directly
+     * @return true if there are no conditions other than plain channel names
+     */
+    boolean isNamesOnly() {
+        return namesOnly;
+    }
+
+    /** Get masks of the filter
+     * @return masks, plain channel names if {@link #isNamesOnly()}
+     */
+    List<String> getMasks() {
+        return masks;
+    }
+
+    /** Checks if a channel passes the filter
+     * @param name channel name
+     * @param users number of users in the channel
+     * @return true if the channel is listed
+     */
+    boolean accepts(String name, int users) {
+        if (users < minUsers || users > maxUsers) {
+            return false;
+        }
+        for (String mask : negatedMasks) {
+            if (matches(mask, name, caseMapping)) {
+                return false;
+            }
+        }
+        if (masks.isEmpty()) {
+            return true;
+        }
+        for (String mask : masks) {
+            if (matches(mask, name, caseMapping)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Match a text against a wildcard mask ignoring case
+     * @param mask mask with <code>*</code> and <code>?</code>
+     * @param text text to match
+     * @param caseMapping case mapping folding the characters
+     * @return true if the whole text matches
+     */
+    static boolean matches(String mask, String text, CaseMapping caseMapping) {
+        int m = 0;
+        int t = 0;
+        int starMask = -1;
+        int starText = 0;
+        while (t < text.length()) {
+            if (m < mask.length() && (mask.charAt(m) == '?' || caseMapping.fold(mask.charAt(m)) == caseMapping.fold(text.charAt(t)))) {
+                m++;
+                t++;
+            } else if (m < mask.length() && mask.charAt(m) == '*') {
+                starMask = m++;
+                starText = t;
+            } else if (starMask >= 0) {
+                m = starMask + 1;
+                t = ++starText;
+            } else {
+                return false;
+            }
+        }
+        while (m < mask.length() && mask.charAt(m) == '*') {
+            m++;
+        }
+        return m == mask.length();
+    }
+}
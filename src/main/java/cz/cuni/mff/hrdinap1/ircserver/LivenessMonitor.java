@@ -0,0 +1,166 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+/** Liveness checks of the connections of users and server links
+ * A connection must register within the registration timeout. A registered connection which sent nothing for the ping
+ * interval gets a PING, and when it sends nothing within the ping timeout either it is closed, so a half-open connection
+ * does not keep its user and channel memberships forever. Any received line counts, not only PONG.
+ * All checks run on one {@link TimingWheel} with one timeout per connection. A received line only stores the current
+ * tick in the state of its connection, the timeout is moved when it fires and finds the connection was active meanwhile.
+ */
+class LivenessMonitor {
+    /** Liveness state of one connection, run by the wheel as its timeout */
+    private final class Peer implements Runnable {
+        final int connId;
+        /** Tick of the last received line */
+        volatile long lastTick;
+        /** Tick the outstanding PING was sent at, negative if there is none, used by the wheel thread */
+        long pingTick = -1;
+        /** Set once the registration was checked, used by the wheel thread */
+        boolean registered;
+
+        /** Peer constructor
+         * @param connId id of the connection
+         * @param tick tick of the connect
+         */
+        Peer(int connId, long tick) {
+            this.connId = connId;
+            this.lastTick = tick;
+        }
+
+        public void run() {
+            check(this);
+        }
+    }
+
+    private final String serverName;
+    private final UserManager userManager;
+    private final ConnectionManager connectionManager;
+    private final LinkManager links;
+    private final Metrics metrics;
+    private final TimingWheel wheel;
+    private final long registrationTicks;
+    private final long pingIntervalTicks;
+    private final long pingTimeoutTicks;
+    /** States of the connections by connection id */
+    private final IntObjectMap<Peer> peers = new IntObjectMap<>();
+
+    /** LivenessMonitor constructor
+     * @param serverName name of this server, the token of its PINGs
+     * @param config configuration with the timeouts
+     * @param userManager user manager telling registered users
+     * @param connectionManager connection manager with the open connections
+     * @param links link manager telling registered server links
+     * @param metrics registry counting the timeouts
+     */
+    LivenessMonitor(String serverName, ServerConfig config, UserManager userManager, ConnectionManager connectionManager,
+                    LinkManager links, Metrics metrics) {
+        this.serverName = serverName;
+        this.userManager = userManager;
+        this.connectionManager = connectionManager;
+        this.links = links;
+        this.metrics = metrics;
+        long tickMillis = Math.max(1, config.livenessTickMillis);
+        long longest = Math.max(config.registrationTimeoutMillis, Math.max(config.pingIntervalMillis, config.pingTimeoutMillis));
+        this.wheel = new TimingWheel(tickMillis, (longest + tickMillis - 1) / tickMillis);
+        this.registrationTicks = wheel.toTicks(config.registrationTimeoutMillis);
+        this.pingIntervalTicks = wheel.toTicks(config.pingIntervalMillis);
+        this.pingTimeoutTicks = wheel.toTicks(config.pingTimeoutMillis);
+    }
+
+    /** Get the wheel running the checks
+     * @return timing wheel
+     */
+    TimingWheel getWheel() {
+        return wheel;
+    }
+
+    /** Start the thread ticking the wheel
+     */
+    void start() {
+        wheel.start();
+    }
+
+    /** Start watching a new connection, it must register within the registration timeout
+     * @param connId id of the connection
+     */
+    void connected(int connId) {
+        Peer peer = new Peer(connId, wheel.getTick());
+        peers.put(connId, peer);
+        wheel.schedule(peer, registrationTicks);
+    }
+
+    /** Record a received line
+     * Called for every line, so it writes the state only in the first line of a tick.
+     * @param connId id of the connection
+     */
+    void received(int connId) {
+        Peer peer = peers.get(connId);
+        if (peer != null) {
+            long tick = wheel.getTick();
+            if (peer.lastTick != tick) {
+                peer.lastTick = tick;
+            }
+        }
+    }
+
+    /** Stop watching a closed connection, its pending timeout then does nothing
+     * @param connId id of the connection
+     */
+    void disconnected(int connId) {
+        peers.remove(connId);
+    }
+
+    /** Check a connection whose timeout fired
+     * Called on the wheel thread
+     * @param peer state of the connection
+     */
+    private void check(Peer peer) {
+        if (peers.get(peer.connId) != peer) {
+            return;
+        }
+        long now = wheel.getTick();
+        if (!peer.registered) {
+            if (!userManager.userIsRegistered(peer.connId) && !links.isLink(peer.connId)) {
+                metrics.registrationTimeout();
+                close(peer, "Registration timed out");
+                return;
+            }
+            peer.registered = true;
+        }
+        long lastTick = peer.lastTick;
+        if (peer.pingTick >= 0) {
+            if (lastTick < peer.pingTick) {
+                metrics.pingTimeout();
+                close(peer, "Ping timeout");
+                return;
+            }
+            peer.pingTick = -1;
+        }
+        long idle = now - lastTick;
+        if (idle < pingIntervalTicks) {
+            wheel.schedule(peer, pingIntervalTicks - idle);
+            return;
+        }
+        Connection connection = connectionManager.getConnection(peer.connId);
+        if (connection != null) {
+            connection.sendMessage("PING :" + serverName);
+        }
+        peer.pingTick = now;
+        wheel.schedule(peer, pingTimeoutTicks);
+    }
+
+    /** Close a connection which timed out, the transport then does the cleanup
+     * The connection is closed once the ERROR is written, or a tick later if the peer does not read it.
+     * @param peer state of the connection
+     * @param reason reason sent to the other side
+     */
+    private void close(Peer peer, String reason) {
+        Log.info("Closing a connection: " + reason, peer.connId);
+        Connection connection = connectionManager.getConnection(peer.connId);
+        if (connection != null) {
+            connection.sendMessage("ERROR :Closing link: " + reason);
+            connection.whenDrained(connection::close);
+            wheel.schedule(connection::close, 1);
+        }
+    }
+}
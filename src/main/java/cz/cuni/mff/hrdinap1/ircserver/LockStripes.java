@@ -0,0 +1,39 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Fixed set of locks shared by all keys hashing to the same stripe
+ * Lock order: a thread that needs several stripes of one instance acquires them in ascending index order. Stripes of
+ * UserManager are always acquired before stripes of ChannelManager.
+ */
+class LockStripes {
+    private final ReentrantLock[] locks;
+
+    /** LockStripes constructor
+     * @param count number of stripes, must be a power of two
+     */
+    LockStripes(int count) {
+        assert Integer.bitCount(count) == 1;
+        locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /** Get index of the stripe guarding a key
+     * @param hash hash of the key
+     * @return stripe index
+     */
+    int indexFor(int hash) {
+        int spread = hash ^ (hash >>> 16);
+        return spread & (locks.length - 1);
+    }
+
+    /** Get lock of the stripe guarding a key
+     * @param hash hash of the key
+     * @return stripe lock
+     */
+    ReentrantLock get(int hash) {
+        return locks[indexFor(hash)];
+    }
+}
@@ -0,0 +1,232 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Server log
+ * Callers only put the parts of an entry to a lock free queue, text is composed and written to standard output by a
+ * background thread. Every method first checks the level, so a disabled entry costs no allocation and no string
+ * concatenation. Traffic logging of received lines is switched separately and off by default.
+ */
+public final class Log {
+    /** Severity of a log entry */
+    public enum Level {
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG
+    }
+
+    /** Entry waiting for the writer
+     * @param time creation time in milliseconds
+     * @param level severity, null for traffic
+     * @param text message text
+     * @param connId id of the related connection or -1
+     */
+    private record Entry(long time, Level level, String text, int connId) {}
+
+    /** Maximum number of entries waiting for the writer, further entries are dropped */
+    private static final int capacity = 65536;
+    private static final int noConnection = -1;
+
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean traffic = false;
+
+    private static final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread writer;
+    private static volatile boolean writerParked;
+
+    static {
+        writer = new Thread(Log::writeLoop, "irc-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    private Log() {
+    }
+
+    /** Set what is logged
+     * @param newLevel most detailed level which is logged
+     * @param logTraffic true to log every received line
+     */
+    public static void configure(Level newLevel, boolean logTraffic) {
+        level = newLevel;
+        traffic = logTraffic;
+    }
+
+    /** Checks if a level is logged
+     * @param entryLevel level of an entry
+     * @return true if entries of the level are logged
+     */
+    public static boolean isEnabled(Level entryLevel) {
+        return entryLevel.compareTo(level) <= 0;
+    }
+
+    /** Checks if received lines are logged
+     * @return true if traffic logging is on
+     */
+    public static boolean isTrafficEnabled() {
+        return traffic;
+    }
+
+    /** Log an error
+     * @param text message text
+     */
+    public static void error(String text) {
+        log(Level.ERROR, text, noConnection);
+    }
+
+    /** Log an error related to a connection
+     * @param text message text, the connId is appended
+     * @param connId id of the user's connection
+     */
+    public static void error(String text, int connId) {
+        log(Level.ERROR, text, connId);
+    }
+
+    /** Log a warning
+     * @param text message text
+     */
+    public static void warn(String text) {
+        log(Level.WARN, text, noConnection);
+    }
+
+    /** Log a warning related to a connection
+     * @param text message text, the connId is appended
+     * @param connId id of the user's connection
+     */
+    public static void warn(String text, int connId) {
+        log(Level.WARN, text, connId);
+    }
+
+    /** Log an information
+     * @param text message text
+     */
+    public static void info(String text) {
+        log(Level.INFO, text, noConnection);
+    }
+
+    /** Log an information related to a connection
+     * @param text message text, the connId is appended
+     * @param connId id of the user's connection
+     */
+    public static void info(String text, int connId) {
+        log(Level.INFO, text, connId);
+    }
+
+    /** Log a debugging message related to a connection
+     * @param text message text, the connId is appended
+     * @param connId id of the user's connection
+     */
+    public static void debug(String text, int connId) {
+        log(Level.DEBUG, text, connId);
+    }
+
+    /** Log a line received on a connection
+     * @param connId id of the user's connection
+     * @param line received line
+     */
+    public static void traffic(int connId, String line) {
+        if (traffic) {
+            enqueue(new Entry(System.currentTimeMillis(), null, line, connId));
+        }
+    }
+
+    /** Log an entry if its level is enabled
+     * @param entryLevel severity
+     * @param text message text
+     * @param connId id of the related connection or -1
+     */
+    private static void log(Level entryLevel, String text, int connId) {
+        if (isEnabled(entryLevel)) {
+            enqueue(new Entry(System.currentTimeMillis(), entryLevel, text, connId));
+        }
+    }
+
+    /** Hand an entry to the writer
+     * @param entry log entry
+     */
+    private static void enqueue(Entry entry) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(entry);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /** Compose text of an entry
+     * @param entry log entry
+     * @return line to write
+     */
+    private static String format(Entry entry) {
+        String time = Instant.ofEpochMilli(entry.time()).toString();
+        if (entry.level() == null) {
+            return time + " " + entry.connId() + "> " + entry.text();
+        }
+        if (entry.connId() == noConnection) {
+            return time + " " + entry.level() + " " + entry.text();
+        }
+        return time + " " + entry.level() + " " + entry.text() + " " + entry.connId();
+    }
+
+    /** Write all queued entries
+     * @param out output to write to
+     * @throws IOException if writing fails
+     */
+    private static void writeQueued(Writer out) throws IOException {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            queued.decrementAndGet();
+            out.write(format(entry));
+            out.write(System.lineSeparator());
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.write("Log queue full, dropped " + lost + " entries" + System.lineSeparator());
+        }
+        out.flush();
+    }
+
+    /** Writer thread loop
+     */
+    private static void writeLoop() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        while (true) {
+            try {
+                writeQueued(out);
+            } catch (IOException e) {
+                return;
+            }
+            writerParked = true;
+            if (queue.isEmpty()) {
+                LockSupport.park();
+            }
+            writerParked = false;
+        }
+    }
+
+    /** Write whatever is left when the JVM exits
+     */
+    private static void drain() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            System.out.println(format(entry));
+        }
+        System.out.flush();
+    }
+}
@@ -3,34 +3,134 @@ package cz.cuni.mff.hrdinap1.ircserver;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import javax.net.ssl.SSLContext;
 
 public class Main {
-    /** Starts an IRC server and listens to connections
-     * @param args port number as optional first argument
-     */
-    public static void main(String[] args) {
-        int serverPort = 6667;
-        if (args.length > 0) {
-            try {
-                serverPort = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid port argument. Defaulting to " + serverPort);
-            }
-        }
-        IRCServer server = new IRCServer("mff.testing.cz");
+    /** Length of the queue of accepted connections waiting for the server */
+    private static final int acceptBacklog = 1024;
 
-        try (ServerSocket s = new ServerSocket(serverPort)) {
-            System.out.println("Started server on port " + serverPort);
-            try (var executor = Executors.newWorkStealingPool()) {
+    /** Listens on a blocking server socket and services every connection by a task of the executor
+     * @param server server instance
+     * @param serverPort port to listen on
+     * @param executor executor running the connection handlers
+     */
+    private static void runBlocking(IRCServer server, int serverPort, ExecutorService executor) {
+        try (ServerSocket s = new ServerSocket(serverPort, acceptBacklog)) {
+            Log.info("Started server on port " + serverPort);
+            try (executor) {
                 while (true) {
                     Socket socket = s.accept();
                     executor.submit(server.createHandler(socket));
                 }
             }
         } catch (IOException e) {
-            System.out.println("Error could not start server on port" + serverPort);
+            Log.error("Error could not start server on port " + serverPort);
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+
+    /** Listens using the non-blocking transport with one event loop per processor
+     * @param server server instance
+     * @param config configuration with the ports
+     * @param sharded true if the event loops own the channels as shards
+     */
+    private static void runNonBlocking(IRCServer server, ServerConfig config, boolean sharded) {
+        int serverPort = config.port;
+        try {
+            NioServer nioServer = new NioServer(server, serverPort, Runtime.getRuntime().availableProcessors(), sharded);
+            if (config.tlsPort >= 0) {
+                SSLContext context = createTlsContext(config);
+                if (context != null) {
+                    nioServer.listenTls(config.tlsPort, context);
+                }
+            }
+            nioServer.run();
+        } catch (IOException e) {
+            Log.error("Error could not start server on port " + serverPort);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Creates the TLS context from the configured keystore, the server runs without TLS if it cannot be loaded
+     * @param config configuration with the keystore
+     * @return context or null
+     */
+    private static SSLContext createTlsContext(ServerConfig config) {
+        if (config.tlsKeystore == null) {
+            Log.error("Error TLS port needs --tls-keystore");
+            return null;
+        }
+        try {
+            return TlsChannel.createContext(Path.of(config.tlsKeystore), config.tlsPassword.toCharArray(),
+                    config.tlsSessionCacheSize, config.tlsSessionTimeoutSeconds);
+        } catch (IOException | GeneralSecurityException e) {
+            Log.error("Error could not load TLS keystore " + config.tlsKeystore);
+            return null;
+        }
+    }
+
+    /** Starts the local metrics endpoint, the server runs without it if the port cannot be bound
+     * @param server server instance
+     * @param port port on the loopback interface
+     */
+    private static void startMetricsEndpoint(IRCServer server, int port) {
+        try {
+            new MetricsEndpoint(server.getMetrics(), port).start();
+        } catch (IOException e) {
+            Log.error("Error could not start metrics endpoint on port " + port);
+        }
+    }
+
+    /** Restores channels from the journal and saves them to it, the server runs without it if it cannot be opened
+     * @param server server instance
+     * @param config configuration with the journal directory
+     */
+    private static void openJournal(IRCServer server, ServerConfig config) {
+        try {
+            long start = System.nanoTime();
+            ChannelJournal journal = ChannelJournal.open(Path.of(config.journalDir), config.journalFileSize,
+                    config.journalSyncMillis, config.journalSnapshotMillis);
+            int restored = server.attachJournal(journal);
+            Log.info("Restored " + restored + " channels from journal in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            Log.error("Error could not open journal in " + config.journalDir);
+        }
+    }
+
+    /** Starts an IRC server and listens to connections
+     * @param args port number and flags as optional arguments, see {@link ServerConfig#fromArgs(String[])}
+     */
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        Log.configure(config.logLevel, config.logTraffic);
+        IRCServer server = new IRCServer(config.serverName, config);
+        if (config.journalDir != null) {
+            openJournal(server, config);
+        }
+        if (config.metricsPort >= 0) {
+            startMetricsEndpoint(server, config.metricsPort);
+        }
+        server.startLivenessChecks();
+
+        for (String link : config.links) {
+            server.connectLink(link);
+        }
+
+        if (config.tlsPort >= 0 && (config.mode == ServerConfig.ExecutionMode.POOL
+                || config.mode == ServerConfig.ExecutionMode.VIRTUAL_THREADS)) {
+            Log.warn("TLS needs --nio or --sharded, listening on plaintext port only");
+        }
+
+        switch (config.mode) {
+            case NIO -> runNonBlocking(server, config, false);
+            case SHARDED -> runNonBlocking(server, config, true);
+            case VIRTUAL_THREADS -> runBlocking(server, config.port, Executors.newVirtualThreadPerTaskExecutor());
+            case POOL -> runBlocking(server, config.port, Executors.newWorkStealingPool());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/** Registry of runtime metrics
+ * Counters are {@link LongAdder}s, which spread concurrent updates over striped cells, so recording takes no lock and
+ * threads servicing different connections do not contend. Gauges are read only when the metrics are queried. The
+ * metrics are exposed in the Prometheus text format by {@link #format()}.
+ */
+public class Metrics {
+    /** Counter and latency histogram of one command
+     * Latencies are counted in buckets, four per power of two nanoseconds, so percentiles are within 25 %.
+     */
+    public static class CommandMetrics {
+        /** Latencies below this are counted exactly, larger ones keep this many significant bits */
+        private static final int subBits = 2;
+        /** Latencies are capped at about 18 minutes */
+        private static final int maxBits = 40;
+        private static final int bucketCount = (maxBits - subBits + 1) << subBits;
+
+        private final String command;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[bucketCount];
+
+        /** CommandMetrics constructor
+         * @param command command name
+         */
+        CommandMetrics(String command) {
+            this.command = command;
+            for (int i = 0; i < bucketCount; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /** Bucket of a latency
+         * @param nanos latency in nanoseconds
+         * @return index of the bucket
+         */
+        static int bucket(long nanos) {
+            long value = Math.min(Math.max(nanos, 0), (1L << maxBits) - 1);
+            if (value < (1L << (subBits + 1))) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - subBits;
+            return (shift << subBits) + (int) (value >>> shift);
+        }
+
+        /** Highest latency of a bucket
+         * @param index index of the bucket
+         * @return highest latency in nanoseconds counted in the bucket
+         */
+        static long bucketLimit(int index) {
+            if (index < (1 << (subBits + 1))) {
+                return index;
+            }
+            int shift = (index >>> subBits) - 1;
+            return ((long) (index - (shift << subBits) + 1) << shift) - 1;
+        }
+
+        /** Count one serviced command
+         * @param nanos time spent servicing it
+         */
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            buckets[bucket(nanos)].increment();
+        }
+
+        /** Get command name
+         * @return command name
+         */
+        public String getCommand() {
+            return command;
+        }
+
+        /** Get number of serviced commands
+         * @return number of commands
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /** Get total time spent servicing the command
+         * @return time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /** Get a latency percentile
+         * @param percentile percentile between 0 and 100
+         * @return upper bound of the latency in nanoseconds, 0 if nothing was recorded
+         */
+        public long percentileNanos(double percentile) {
+            long[] counts = new long[bucketCount];
+            long total = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < bucketCount && total > 0; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bucketLimit(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /** Quantiles exposed for every command */
+    private static final String[] quantiles = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final Map<String, CommandMetrics> commands = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder unknownCommands = new LongAdder();
+    private final LongAdder floodDelays = new LongAdder();
+    private final LongAdder tlsHandshakes = new LongAdder();
+    private final LongAdder tlsResumed = new LongAdder();
+    private final LongAdder pingTimeouts = new LongAdder();
+    private final LongAdder registrationTimeouts = new LongAdder();
+    private final long startMillis = System.currentTimeMillis();
+
+    /** Get metrics of a command, creating them on first use
+     * Meant to be called once when the command is registered, the result is kept by the caller.
+     * @param command upper case command name
+     * @return metrics of the command
+     */
+    public CommandMetrics command(String command) {
+        return commands.computeIfAbsent(command, CommandMetrics::new);
+    }
+
+    /** Get metrics of all commands
+     * @return metrics ordered by command name
+     */
+    public List<CommandMetrics> getCommands() {
+        return List.copyOf(commands.values());
+    }
+
+    /** Register a gauge read when metrics are queried
+     * @param name metric name
+     * @param gauge supplier of the current value
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /** Count received bytes
+     * @param bytes number of bytes
+     */
+    public void addBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /** Count bytes handed to connections for sending
+     * @param bytes number of bytes
+     */
+    public void addBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /** Count a line with an unknown command
+     */
+    public void unknownCommand() {
+        unknownCommands.increment();
+    }
+
+    /** Count a line after which reading of its connection was paused by flood control
+     */
+    public void floodDelay() {
+        floodDelays.increment();
+    }
+
+    /** Count a connection closed because it did not answer a PING
+     */
+    public void pingTimeout() {
+        pingTimeouts.increment();
+    }
+
+    /** Count a connection closed because it did not register in time
+     */
+    public void registrationTimeout() {
+        registrationTimeouts.increment();
+    }
+
+    /** Count a finished TLS handshake
+     * @param resumed true if an earlier session was resumed
+     */
+    public void tlsHandshake(boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumed.increment();
+        }
+    }
+
+    /** Get number of finished TLS handshakes
+     * @return handshakes including the resumed ones
+     */
+    public long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    /** Get number of TLS handshakes which resumed an earlier session
+     * @return resumed handshakes
+     */
+    public long getTlsResumed() {
+        return tlsResumed.sum();
+    }
+
+    /** Get time since the metrics were created
+     * @return uptime in milliseconds
+     */
+    public long getUptimeMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    /** Format all metrics in the Prometheus text format
+     * @return lines of the exposition without line terminators
+     */
+    public List<String> format() {
+        List<String> lines = new ArrayList<>();
+        lines.add("# TYPE irc_uptime_seconds gauge");
+        lines.add("irc_uptime_seconds " + getUptimeMillis() / 1000);
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            lines.add("# TYPE irc_" + gauge.getKey() + " gauge");
+            lines.add("irc_" + gauge.getKey() + " " + gauge.getValue().getAsLong());
+        }
+        lines.add("# TYPE irc_received_bytes_total counter");
+        lines.add("irc_received_bytes_total " + bytesReceived.sum());
+        lines.add("# TYPE irc_sent_bytes_total counter");
+        lines.add("irc_sent_bytes_total " + bytesSent.sum());
+        lines.add("# TYPE irc_unknown_commands_total counter");
+        lines.add("irc_unknown_commands_total " + unknownCommands.sum());
+        lines.add("# TYPE irc_flood_delays_total counter");
+        lines.add("irc_flood_delays_total " + floodDelays.sum());
+        lines.add("# TYPE irc_tls_handshakes_total counter");
+        lines.add("irc_tls_handshakes_total " + tlsHandshakes.sum());
+        lines.add("# TYPE irc_tls_resumed_total counter");
+        lines.add("irc_tls_resumed_total " + tlsResumed.sum());
+        lines.add("# TYPE irc_ping_timeouts_total counter");
+        lines.add("irc_ping_timeouts_total " + pingTimeouts.sum());
+        lines.add("# TYPE irc_registration_timeouts_total counter");
+        lines.add("irc_registration_timeouts_total " + registrationTimeouts.sum());
+
+        lines.add("# TYPE irc_command_seconds summary");
+        for (CommandMetrics metrics : commands.values()) {
+            String label = "command=\"" + metrics.getCommand() + "\"";
+            for (String quantile : quantiles) {
+                long nanos = metrics.percentileNanos(Double.parseDouble(quantile) * 100);
+                lines.add(String.format(Locale.ROOT, "irc_command_seconds{%s,quantile=\"%s\"} %.9f", label, quantile, nanos / 1e9));
+            }
+            lines.add(String.format(Locale.ROOT, "irc_command_seconds_sum{%s} %.9f", label, metrics.getTotalNanos() / 1e9));
+            lines.add("irc_command_seconds_count{" + label + "} " + metrics.getCount());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,61 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/** HTTP endpoint exposing the metrics in the text format for scraping
+ * Listens on the loopback interface only, metrics are served on <code>/metrics</code>.
+ */
+public class MetricsEndpoint {
+    private final HttpServer httpServer;
+
+    /** MetricsEndpoint constructor
+     * @param metrics metrics to expose
+     * @param port port on the loopback interface, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsEndpoint(Metrics metrics, int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> respond(exchange, metrics));
+    }
+
+    /** Send the current metrics
+     * @param exchange HTTP request and response
+     * @param metrics metrics to send
+     * @throws IOException if the response cannot be written
+     */
+    private static void respond(HttpExchange exchange, Metrics metrics) throws IOException {
+        byte[] body = (String.join("\n", metrics.format()) + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /** Start serving requests on a background thread
+     */
+    public void start() {
+        httpServer.start();
+        Log.info("Metrics available on http://localhost:" + getPort() + "/metrics");
+    }
+
+    /** Get the port the endpoint listens on
+     * @return port number
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /** Stop serving requests
+     */
+    public void stop() {
+        httpServer.stop(0);
+    }
+}
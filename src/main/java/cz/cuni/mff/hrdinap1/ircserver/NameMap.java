@@ -0,0 +1,291 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/** Map from nicknames or channel names to objects, names equal under a case mapping are the same key
+ * Keys are hashed and compared by the {@link CaseMapping} character by character, so lookups allocate nothing, and
+ * every key keeps the case it was put with for display. Buckets are chains of immutable entries, so reads are lock
+ * free. Updates are synchronized and replace the entries of the chain up to the changed one.
+ * @param <V> type of the values
+ */
+class NameMap<V> {
+    /** Immutable entry of a bucket chain */
+    private static final class Entry<V> implements Map.Entry<String, V> {
+        final String key;
+        final int hash;
+        final V value;
+        final Entry<V> next;
+
+        Entry(String key, int hash, V value, Entry<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final int initialCapacity = 16;
+
+    private final CaseMapping mapping;
+    private volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<>(initialCapacity);
+    private volatile int size;
+
+    /** NameMap constructor
+     * @param mapping case mapping of the keys
+     */
+    NameMap(CaseMapping mapping) {
+        this.mapping = mapping;
+    }
+
+    /** Spread a hash so that the low bits used for the bucket depend on all bits
+     * @param name key
+     * @return spread hash
+     */
+    private int hash(String name) {
+        int hash = mapping.hash(name);
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Find the entry of a key
+     * @param current table to search
+     * @param key key
+     * @param hash spread hash of the key
+     * @return entry or null if the key is not present
+     */
+    private Entry<V> find(AtomicReferenceArray<Entry<V>> current, String key, int hash) {
+        for (Entry<V> entry = current.get(hash & (current.length() - 1)); entry != null; entry = entry.next) {
+            if (entry.hash == hash && mapping.equal(entry.key, key)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Get value of a key
+     * @param key name in any case
+     * @return value or null if the key is not present
+     */
+    V get(String key) {
+        Entry<V> entry = find(table, key, hash(key));
+        return entry != null ? entry.value : null;
+    }
+
+    /** Get a key in the case it was put with
+     * @param key name in any case
+     * @return stored key or null if the key is not present
+     */
+    String getKey(String key) {
+        Entry<V> entry = find(table, key, hash(key));
+        return entry != null ? entry.key : null;
+    }
+
+    /** Checks if a key is present
+     * @param key name in any case
+     * @return true if the key has a value
+     */
+    boolean containsKey(String key) {
+        return find(table, key, hash(key)) != null;
+    }
+
+    /** Set value of a key, the key is stored in the given case
+     * @param key name
+     * @param value value, must not be null
+     * @return previous value or null
+     */
+    synchronized V put(String key, V value) {
+        assert value != null;
+        AtomicReferenceArray<Entry<V>> current = table;
+        int hash = hash(key);
+        int index = hash & (current.length() - 1);
+        Entry<V> head = current.get(index);
+        Entry<V> previous = find(current, key, hash);
+        if (previous != null) {
+            replace(current, index, previous, new Entry<>(key, hash, value, previous.next));
+            return previous.value;
+        }
+        current.set(index, new Entry<>(key, hash, value, head));
+        size++;
+        if (size > current.length() / 4 * 3) {
+            grow(current);
+        }
+        return null;
+    }
+
+    /** Set value of a key if it is not present
+     * @param key name
+     * @param value value, must not be null
+     * @return current value or null if the value was set
+     */
+    synchronized V putIfAbsent(String key, V value) {
+        V current = get(key);
+        if (current != null) {
+            return current;
+        }
+        put(key, value);
+        return null;
+    }
+
+    /** Remove a key
+     * @param key name in any case
+     * @return removed value or null
+     */
+    synchronized V remove(String key) {
+        return remove(key, null);
+    }
+
+    /** Remove a key if it has a value
+     * @param key name in any case
+     * @param value expected value, null for any value
+     * @return removed value or null if the key was not present or had another value
+     */
+    synchronized V remove(String key, V value) {
+        AtomicReferenceArray<Entry<V>> current = table;
+        int hash = hash(key);
+        Entry<V> removed = find(current, key, hash);
+        if (removed == null || value != null && removed.value != value) {
+            return null;
+        }
+        replace(current, hash & (current.length() - 1), removed, removed.next);
+        size--;
+        return removed.value;
+    }
+
+    /** Replace an entry of a chain, called with the monitor held
+     * The entries before it are copied, so readers inside the chain keep a consistent view.
+     * @param current table
+     * @param index bucket of the entry
+     * @param target entry to replace
+     * @param tail chain replacing the entry and the entries after it
+     */
+    private void replace(AtomicReferenceArray<Entry<V>> current, int index, Entry<V> target, Entry<V> tail) {
+        Entry<V> chain = tail;
+        for (Entry<V> entry = current.get(index); entry != target; entry = entry.next) {
+            chain = new Entry<>(entry.key, entry.hash, entry.value, chain);
+        }
+        current.set(index, chain);
+    }
+
+    /** Double the table, called with the monitor held
+     * @param current full table
+     */
+    private void grow(AtomicReferenceArray<Entry<V>> current) {
+        AtomicReferenceArray<Entry<V>> grown = new AtomicReferenceArray<>(current.length() * 2);
+        for (int i = 0; i < current.length(); i++) {
+            for (Entry<V> entry = current.get(i); entry != null; entry = entry.next) {
+                int index = entry.hash & (grown.length() - 1);
+                grown.set(index, new Entry<>(entry.key, entry.hash, entry.value, grown.get(index)));
+            }
+        }
+        table = grown;
+    }
+
+    /** Visit all values
+     * Lock free, values put or removed concurrently may or may not be visited.
+     * @param action called for every value
+     */
+    void forEach(Consumer<V> action) {
+        AtomicReferenceArray<Entry<V>> current = table;
+        for (int i = 0; i < current.length(); i++) {
+            for (Entry<V> entry = current.get(i); entry != null; entry = entry.next) {
+                action.accept(entry.value);
+            }
+        }
+    }
+
+    /** Iterate over all keys with their values
+     * Lock free, keys put or removed concurrently may or may not be returned.
+     * @return iterator over the entries, which cannot be changed
+     */
+    Iterator<Map.Entry<String, V>> entries() {
+        AtomicReferenceArray<Entry<V>> current = table;
+        return iterator(current.length(), current::get);
+    }
+
+    /** Iterate over the keys present at the time of the call
+     * The heads of the bucket chains are copied with the monitor held, so no update is half seen. The chains are
+     * immutable, so updates after the call do not change what is returned. The copy costs a reference per bucket.
+     * @return iterator over the entries, which cannot be changed
+     */
+    Iterator<Map.Entry<String, V>> snapshot() {
+        List<Entry<V>> heads;
+        synchronized (this) {
+            AtomicReferenceArray<Entry<V>> current = table;
+            heads = new ArrayList<>(size);
+            for (int i = 0; i < current.length(); i++) {
+                Entry<V> head = current.get(i);
+                if (head != null) {
+                    heads.add(head);
+                }
+            }
+        }
+        return iterator(heads.size(), heads::get);
+    }
+
+    /** Iterate over the entries of bucket chains
+     * @param buckets number of buckets
+     * @param bucket gets the head of a bucket chain by its index
+     * @return iterator over the entries, which cannot be changed
+     */
+    private Iterator<Map.Entry<String, V>> iterator(int buckets, IntFunction<Entry<V>> bucket) {
+        return new Iterator<>() {
+            private int index;
+            private Entry<V> next = advance(null);
+
+            /** Find the entry after another one
+             * @param entry last returned entry or null at the start
+             * @return next entry or null at the end
+             */
+            private Entry<V> advance(Entry<V> entry) {
+                if (entry != null && entry.next != null) {
+                    return entry.next;
+                }
+                while (index < buckets) {
+                    Entry<V> head = bucket.apply(index++);
+                    if (head != null) {
+                        return head;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, V> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry<V> entry = next;
+                next = advance(entry);
+                return entry;
+            }
+        };
+    }
+
+    /** Get number of keys
+     * @return number of keys with a value
+     */
+    int size() {
+        return size;
+    }
+}
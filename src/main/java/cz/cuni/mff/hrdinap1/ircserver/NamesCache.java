@@ -0,0 +1,209 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Pre-rendered names of the members of one channel, split into chunks which fit one RPL_NAMREPLY line
+ * Members are kept in join order. A join appends to the last chunk, a part, nickname change or operator change only marks
+ * the chunk of the member stale, and only stale chunks are rendered again on the next query. A join to a large channel
+ * therefore renders a few names instead of the whole member list. Not thread safe, guarded by the channel lock.
+ * Flags of the members are read from the member set passed to {@link #render(IntFlagSet, int, Renderer)}, so the cache
+ * works with copy on write member sets.
+ */
+class NamesCache {
+    /** Renders the name of a member */
+    @FunctionalInterface
+    public interface Renderer {
+        /** Render a member
+         * @param member connId of the member
+         * @param operator true if the member is a channel operator
+         * @return name shown in the NAMES reply
+         */
+        String render(int member, boolean operator);
+    }
+
+    /** Members rendered into one line */
+    private static class Chunk {
+        int[] members = new int[16];
+        int size;
+        /** Rendered names separated by spaces, null when stale */
+        String text;
+        /** Length of the text in UTF-8 */
+        int bytes;
+
+        /** Find a member
+         * @param member connId of the member
+         * @return index of the member or -1
+         */
+        int indexOf(int member) {
+            for (int i = 0; i < size; i++) {
+                if (members[i] == member) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Append a member
+         * @param member connId of the member
+         */
+        void add(int member) {
+            if (size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+            }
+            members[size++] = member;
+        }
+
+        /** Remove the member at an index keeping the order of the others
+         * @param index index of the member
+         */
+        void removeAt(int index) {
+            System.arraycopy(members, index + 1, members, index, size - index - 1);
+            size--;
+        }
+    }
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    /** Budget the chunks were rendered for */
+    private int budget = -1;
+
+    /** Get length of a text encoded in UTF-8
+     * @param text text
+     * @return number of bytes
+     */
+    static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /** Add a member at the end
+     * @param member connId of the member
+     */
+    void add(int member) {
+        if (chunks.isEmpty()) {
+            chunks.add(new Chunk());
+        }
+        Chunk last = chunks.getLast();
+        last.add(member);
+        last.text = null;
+    }
+
+    /** Remove a member
+     * Scans the member ids of the chunks, no names are rendered.
+     * @param member connId of the member
+     */
+    void remove(int member) {
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            int index = chunk.indexOf(member);
+            if (index >= 0) {
+                chunk.removeAt(index);
+                chunk.text = null;
+                if (chunk.size == 0) {
+                    chunks.remove(i);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Mark the name of a member stale, e.g. after a nickname or operator change
+     * @param member connId of the member
+     */
+    void invalidate(int member) {
+        for (Chunk chunk : chunks) {
+            if (chunk.indexOf(member) >= 0) {
+                chunk.text = null;
+                return;
+            }
+        }
+    }
+
+    /** Render a stale chunk
+     * Members which do not fit the budget are moved to a new stale chunk following this one.
+     * @param index index of the chunk
+     * @param users members of the channel with the operator flag
+     * @param renderer renders names of members
+     */
+    private void renderChunk(int index, IntFlagSet users, Renderer renderer) {
+        Chunk chunk = chunks.get(index);
+        StringBuilder text = new StringBuilder();
+        int bytes = 0;
+        for (int i = 0; i < chunk.size; i++) {
+            int member = chunk.members[i];
+            String name = renderer.render(member, users.getFlag(member));
+            int length = utf8Length(name);
+            if (i > 0 && bytes + 1 + length > budget) {
+                Chunk rest = new Chunk();
+                for (int j = i; j < chunk.size; j++) {
+                    rest.add(chunk.members[j]);
+                }
+                chunk.size = i;
+                chunks.add(index + 1, rest);
+                break;
+            }
+            if (i > 0) {
+                text.append(' ');
+                bytes++;
+            }
+            text.append(name);
+            bytes += length;
+        }
+        chunk.text = text.toString();
+        chunk.bytes = bytes;
+    }
+
+    /** Get names of all members split into lines
+     * Renders stale chunks and merges neighbouring chunks which fit together.
+     * @param users members of the channel with the operator flag
+     * @param lineBudget maximum length of the names in one line in UTF-8 bytes
+     * @param renderer renders names of members
+     * @return names separated by spaces, one element per line, never modified afterwards
+     */
+    List<String> render(IntFlagSet users, int lineBudget, Renderer renderer) {
+        if (lineBudget != budget) {
+            budget = lineBudget;
+            for (Chunk chunk : chunks) {
+                chunk.text = null;
+            }
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (chunk.text == null) {
+                renderChunk(i, users, renderer);
+            }
+            if (i > 0) {
+                Chunk previous = chunks.get(i - 1);
+                if (previous.bytes + 1 + chunk.bytes <= budget) {
+                    for (int j = 0; j < chunk.size; j++) {
+                        previous.add(chunk.members[j]);
+                    }
+                    previous.text = previous.text + " " + chunk.text;
+                    previous.bytes += 1 + chunk.bytes;
+                    chunks.remove(i);
+                    i--;
+                }
+            }
+        }
+
+        String[] lines = new String[chunks.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = chunks.get(i).text;
+        }
+        return List.of(lines);
+    }
+}
@@ -0,0 +1,414 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/** Connection serviced by an event loop of the non-blocking transport
+ * Reads are framed into lines on the loop thread. Sent lines are queued and written together by one gathering write at
+ * the end of the current loop tick, or earlier when enough bytes are queued. Whatever the socket does not accept stays
+ * queued until the loop reports the socket writable. The queue is bounded, see {@link ServerConfig.OutboundPolicy}.
+ * When flood control throttles the connection, its read interest is dropped and the lines already read wait in the read
+ * buffer until the delay passes, see {@link FloodControl}. A connection of the TLS listener reads and writes through a
+ * {@link TlsChannel}, the lines queued during the handshake are written once it finishes.
+ */
+public class NioConnection implements Connection {
+    /** Longest accepted line, longer lines are discarded */
+    private static final int maxLineLength = 8192;
+    /** Queued bytes which are written right away instead of waiting for the end of the loop tick */
+    private static final int flushThreshold = 16384;
+    /** Maximum number of buffers passed to one gathering write */
+    private static final int maxGather = 64;
+
+    private final SocketChannel channel;
+    /** TLS layer of the socket or null for plaintext, used with the monitor held */
+    private final TlsChannel tls;
+    private final SelectionKey key;
+    private final int connId;
+    private final IRCServer server;
+    private final NioServer.EventLoop loop;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(maxLineLength);
+    /** Parsed message reused for every received line */
+    private final IRCMessage message = new IRCMessage();
+    private final FloodControl floodControl;
+    /** Output not yet accepted by the socket */
+    private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+    /** Maximum number of queued messages */
+    private final int capacity;
+    /** Number of queued bytes not yet written */
+    private int pendingBytes;
+    /** Set while the connection waits for the loop to flush it */
+    private boolean flushScheduled;
+    /** Set while the socket is full and the loop waits for it to become writable */
+    private boolean awaitingWritable;
+    /** Set while flood control pauses reading */
+    private boolean throttled;
+    /** Task waiting for the queue to drain */
+    private Runnable drainTask;
+    /** Set when the rest of the current line has to be skipped because it was too long */
+    private boolean discarding;
+    private boolean closed;
+
+    /** NioConnection constructor
+     * @param channel non-blocking socket
+     * @param key selection key of the socket
+     * @param connId id of the user's connection
+     * @param server server instance
+     * @param loop event loop servicing the socket
+     * @param tls TLS layer of the socket or null for plaintext
+     */
+    NioConnection(SocketChannel channel, SelectionKey key, int connId, IRCServer server, NioServer.EventLoop loop,
+                  TlsChannel tls) {
+        this.channel = channel;
+        this.tls = tls;
+        this.key = key;
+        this.connId = connId;
+        this.server = server;
+        this.loop = loop;
+        this.capacity = server.getConfig().outboundQueueSize;
+        this.floodControl = new FloodControl(server.getConfig(), server.getMetrics());
+        server.connect(connId);
+    }
+
+    /** Get connection id
+     * @return id of the user's connection
+     */
+    public int getConnId() {
+        return connId;
+    }
+
+    /** Read available bytes and dispatch every complete line
+     * Called on the loop thread
+     */
+    void onReadable() {
+        int read;
+        do {
+            try {
+                read = read();
+            } catch (IOException e) {
+                Log.info("Error! Closing a connection", connId);
+                cleanup();
+                return;
+            }
+            if (read < 0) {
+                Log.info("Disconnected! closing a connection", connId);
+                cleanup();
+                return;
+            }
+            processLines();
+            // decrypted bytes which did not fit the read buffer do not make the socket readable again
+        } while (read > 0 && tls != null && !throttled && !closed && tls.hasBufferedInput());
+    }
+
+    /** Read available bytes to the read buffer
+     * Called on the loop thread
+     * @return number of read bytes, -1 at the end of the stream
+     * @throws IOException if the socket fails
+     */
+    private int read() throws IOException {
+        if (tls == null) {
+            int read = channel.read(readBuffer);
+            if (read > 0) {
+                server.getMetrics().addBytesReceived(read);
+            }
+            return read;
+        }
+        synchronized (this) {
+            int read = tls.read(readBuffer);
+            // the handshake may have left output for the socket or lines waiting for its end
+            if (tls.takeHandshakeFinished() || tls.hasPendingOutput()) {
+                flush();
+            }
+            return read;
+        }
+    }
+
+    /** Dispatch complete lines of the read buffer until flood control throttles the connection
+     * Called on the loop thread
+     */
+    private void processLines() {
+        readBuffer.flip();
+        int lineStart = 0;
+        for (int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') {
+                continue;
+            }
+            long delay = 0;
+            if (!discarding) {
+                int lineLength = i - lineStart;
+                if (lineLength > 0 && readBuffer.get(i - 1) == '\r') {
+                    lineLength--;
+                }
+                String line = new String(readBuffer.array(), lineStart, lineLength, StandardCharsets.UTF_8);
+                try {
+                    delay = floodControl.charge(server.processLine(line, message, connId));
+                } catch (RuntimeException e) {
+                    // a failing command must not stop the loop servicing the other connections
+                    Log.error("Error! Command failed, closing a connection: " + e, connId);
+                    cleanup();
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            discarding = false;
+            lineStart = i + 1;
+            if (delay > 0) {
+                throttle(delay);
+                break;
+            }
+        }
+        readBuffer.position(lineStart);
+        readBuffer.compact();
+
+        // a full buffer of complete lines waiting for the throttle is not a long line
+        if (!throttled && !readBuffer.hasRemaining()) {
+            discarding = true;
+            readBuffer.clear();
+        }
+    }
+
+    /** Stop reading the socket for a while
+     * @param delayNanos how long to pause reading
+     */
+    private void throttle(long delayNanos) {
+        synchronized (this) {
+            throttled = true;
+            updateInterest();
+        }
+        loop.schedule(this::resume, delayNanos);
+    }
+
+    /** Resume reading after a throttle and dispatch the lines which were waiting
+     * Called on the loop thread
+     */
+    private void resume() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            throttled = false;
+            updateInterest();
+        }
+        processLines();
+        if (tls != null && !throttled && tls.hasBufferedInput()) {
+            onReadable();
+        }
+    }
+
+    /** Set interest of the key according to the state of the connection
+     * Called with the monitor held.
+     */
+    private void updateInterest() {
+        int ops = (throttled ? 0 : SelectionKey.OP_READ) | (awaitingWritable ? SelectionKey.OP_WRITE : 0);
+        if (key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    /** Write queued output when the socket becomes writable
+     * Called on the loop thread
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /** Write queued output by gathering writes
+     * Stops when the socket is full, the loop then calls {@link #onWritable()} once it accepts more.
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+        if (closed) {
+            return;
+        }
+        try {
+            boolean full = tls != null && !tls.flush();
+            while (!full && !pending.isEmpty()) {
+                ByteBuffer[] batch = new ByteBuffer[Math.min(pending.size(), maxGather)];
+                Iterator<ByteBuffer> buffers = pending.iterator();
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = buffers.next();
+                }
+                pendingBytes -= (int) (tls != null ? tls.write(batch) : channel.write(batch));
+                while (!pending.isEmpty() && !pending.peekFirst().hasRemaining()) {
+                    pending.removeFirst();
+                }
+                notifyAll();
+                if (batch[batch.length - 1].hasRemaining()) {
+                    // a TLS connection without pending output waits for the end of the handshake, not for the socket
+                    full = tls == null || tls.hasPendingOutput();
+                    if (!full) {
+                        break;
+                    }
+                }
+            }
+            if (full) {
+                if (!awaitingWritable) {
+                    awaitingWritable = true;
+                    updateInterest();
+                    if (!loop.isLoopThread()) {
+                        loop.wakeup();
+                    }
+                }
+                return;
+            }
+            if (awaitingWritable) {
+                awaitingWritable = false;
+                updateInterest();
+            }
+            if (drainTask != null && pending.isEmpty()) {
+                executeDrained(drainTask);
+                drainTask = null;
+            }
+        } catch (IOException e) {
+            // the socket is broken, the loop does the cleanup as the caller may be iterating server state
+            Log.info("Error! Closing a connection", connId);
+            closed = true;
+            loop.execute(this::cleanup);
+        }
+    }
+
+    /** Send an encoded line to socket
+     * Can be called from any thread. The line is queued and written together with other lines queued during the same
+     * loop tick.
+     * @param line bytes of the line including the line terminator, shared with other connections
+     */
+    public synchronized void send(byte[] line) {
+        if (pending.size() >= capacity && !awaitingWritable) {
+            // the queue may only be full of lines waiting for the end of the tick
+            flush();
+        }
+        if (closed || (pending.size() >= capacity && !awaitCapacity())) {
+            return;
+        }
+        // the buffer only tracks the position of this connection, the bytes are shared
+        pending.addLast(ByteBuffer.wrap(line));
+        pendingBytes += line.length;
+        if (awaitingWritable) {
+            return;
+        }
+        if (pendingBytes >= flushThreshold) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /** Run a task on the loop thread once the queue is empty
+     * @param task task to run
+     */
+    public synchronized void whenDrained(Runnable task) {
+        if (closed) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            executeDrained(task);
+        } else if (drainTask == null) {
+            drainTask = task;
+        } else {
+            Runnable previous = drainTask;
+            drainTask = () -> {
+                previous.run();
+                task.run();
+            };
+        }
+    }
+
+    /** Run a drain task on the loop thread unless the connection closes before it runs
+     * @param task task to run
+     */
+    private void executeDrained(Runnable task) {
+        loop.execute(() -> {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            task.run();
+        });
+    }
+
+    /** Apply the outbound policy to a full queue
+     * Called with the monitor held.
+     * @return true if the message can be queued
+     */
+    private boolean awaitCapacity() {
+        ServerConfig config = server.getConfig();
+        switch (config.outboundPolicy) {
+            case DROP -> {
+                return false;
+            }
+            case BLOCK -> {
+                // the own loop drains the queue, it must not wait for itself
+                if (!loop.isLoopThread()) {
+                    long deadline = System.currentTimeMillis() + config.outboundBlockMillis;
+                    long remaining = config.outboundBlockMillis;
+                    try {
+                        while (pending.size() >= capacity && !closed && remaining > 0) {
+                            wait(remaining);
+                            remaining = deadline - System.currentTimeMillis();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    if (closed) {
+                        return false;
+                    }
+                    if (pending.size() < capacity) {
+                        return true;
+                    }
+                }
+            }
+            case DISCONNECT -> { }
+        }
+        Log.warn("Send queue exceeded! Closing a connection", connId);
+        closed = true;
+        loop.execute(this::cleanup);
+        return false;
+    }
+
+    /** Get number of messages waiting to be written to the socket
+     * @return depth of the outbound queue
+     */
+    public synchronized int getQueueDepth() {
+        return pending.size();
+    }
+
+    /** Close the connection from the server side, the loop does the cleanup
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            loop.execute(this::cleanup);
+        }
+    }
+
+    /** Cleanup method
+     * Called on the loop thread
+     */
+    private void cleanup() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            pendingBytes = 0;
+            drainTask = null;
+            notifyAll();
+            if (tls != null && channel.isOpen()) {
+                tls.close();
+            }
+        }
+        if (channel.isOpen()) {
+            key.cancel();
+            NioServer.closeQuietly(channel);
+            server.disconnect(connId);
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+
+/** Non-blocking transport built on a selector
+ * One acceptor hands accepted sockets to a small fixed number of event loops. Each event loop services reads and
+ * pending writes of all its connections, so idle connections cost no thread.
+ * <p>
+ * In the sharded mode every event loop is also a shard owning the channels whose names hash to it. Commands on a
+ * channel are handed to the task queue of the owning shard, so every channel is changed by one thread only and its
+ * locks are never contended. The queues are lock-free and a shard handing over many commands in one tick wakes the
+ * owner up once.
+ * <p>
+ * Besides the plaintext port the server may listen on a TLS port, whose connections are serviced by the same event loops
+ * through an {@link javax.net.ssl.SSLEngine}, see {@link TlsChannel}.
+ */
+public class NioServer implements Runnable {
+    /** Single threaded loop servicing a set of connections
+     */
+    class EventLoop implements Runnable {
+        /** Task due at a time
+         * @param deadline {@link System#nanoTime()} when the task is due
+         * @param task task to run
+         */
+        private record Timer(long deadline, Runnable task) {}
+
+        private final Selector selector;
+        private Thread thread;
+        /** Tasks which have to run on the loop thread, e.g. registering a new connection */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /** Connections with output waiting for the end of the tick */
+        private final Queue<NioConnection> dirty = new ConcurrentLinkedQueue<>();
+        /** Set when the selector was already woken up for connections scheduled by other threads */
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        /** Delayed tasks, used only on the loop thread */
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+        /** Message instance parsing commands handed to this loop as a shard, used only on the loop thread */
+        private final IRCMessage routedMessage = new IRCMessage();
+
+        /** EventLoop constructor
+         * @throws IOException if the selector cannot be opened
+         */
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /** Schedule a task on the loop thread
+         * The selector is woken up only once until the loop notices it, like in {@link #scheduleFlush(NioConnection)}.
+         * @param task task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /** Run a task on the loop thread after a delay
+         * Called on the loop thread
+         * @param task task to run
+         * @param delayNanos delay in nanoseconds
+         */
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        /** Checks if the caller runs on this loop
+         * @return true if called from the loop thread
+         */
+        boolean isLoopThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /** Wake the loop up so it notices changed interest of a key
+         */
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        /** Schedule a flush of a connection at the end of the current tick
+         * Other threads wake the loop up only once until the loop notices it, so a broadcast from another loop costs a
+         * single wakeup.
+         * @param connection connection with queued output
+         */
+        void scheduleFlush(NioConnection connection) {
+            dirty.add(connection);
+            if (!isLoopThread() && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /** Write output of all connections which got some since the last flush
+         */
+        private void flushDirty() {
+            NioConnection connection;
+            while ((connection = dirty.poll()) != null) {
+                connection.flush();
+            }
+        }
+
+        /** Register accepted socket with this loop
+         * @param channel accepted socket
+         * @param tlsContext context of the TLS listener or null for plaintext
+         */
+        private void register(SocketChannel channel, SSLContext tlsContext) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                TlsChannel tls = tlsContext != null
+                        ? new TlsChannel(channel, TlsChannel.createEngine(tlsContext), server.getMetrics()) : null;
+                NioConnection connection = server.createConnection(connId -> new NioConnection(channel, key, connId, server, this, tls));
+                key.attach(connection);
+                Log.info("Servicing a connection", connection.getConnId());
+            } catch (IOException e) {
+                Log.warn("Error! Could not register a connection");
+                closeQuietly(channel);
+            }
+        }
+
+        /** Run all scheduled tasks and the delayed tasks which are due
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runTask(task);
+            }
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline() - now <= 0) {
+                runTask(timers.poll().task());
+            }
+        }
+
+        /** Run a task, a failing task is logged and does not stop the loop
+         * @param task task to run
+         */
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Error! Task of event loop failed: " + e);
+            }
+        }
+
+        /** Get how long the selector may wait
+         * @return milliseconds until the first delayed task is due, 0 to wait without limit
+         */
+        private long selectTimeout() {
+            if (timers.isEmpty()) {
+                return 0;
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(timers.peek().deadline() - System.nanoTime() + 999_999);
+            return Math.max(1, millis);
+        }
+
+        /** Select loop
+         */
+        public void run() {
+            thread = Thread.currentThread();
+            while (!thread.isInterrupted()) {
+                try {
+                    selector.select(selectTimeout());
+                } catch (IOException e) {
+                    Log.error("Error! Selector failed");
+                    return;
+                }
+                wakeupPending.set(false);
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                int serviced = 0;
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection == null || !key.isValid()) {
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    // bounds the latency of output when many connections are ready in one tick
+                    if (++serviced % keysPerFlush == 0) {
+                        flushDirty();
+                    }
+                }
+                flushDirty();
+            }
+        }
+    }
+
+    /** Command of a connection waiting for the commands received before it
+     * @param owner shard owning the channel of the command, null if the command runs on any loop
+     * @param command command to run
+     */
+    private record Routed(EventLoop owner, Consumer<IRCMessage> command) {
+    }
+
+    /** Commands of one connection handed over and not finished yet
+     * Only the loop reading the connection adds commands, so it starts the chain when nothing is in flight. The loop
+     * finishing a command runs the next one when it may, or hands it to its owner.
+     */
+    private static final class Order {
+        final Queue<Routed> queue = new ConcurrentLinkedQueue<>();
+        /** Number of commands in the queue or running */
+        final AtomicInteger pending = new AtomicInteger();
+    }
+
+    /** Channels partitioned among the event loops by the hash of their names
+     * Commands of a connection run in the order they were received, a command handed to a shard holds back the later
+     * commands of its connection until it finished.
+     */
+    class Shards implements IRCServer.ChannelRouter {
+        /** Commands in flight by connection id, only the loop reading a connection adds or removes its entry
+         * A connection gets an entry with its first command handed to another shard, until then its commands run
+         * right away without queueing.
+         */
+        private final IntObjectMap<Order> orders = new IntObjectMap<>();
+
+        @Override
+        public boolean route(int connId, String channel, Consumer<IRCMessage> command) {
+            // names differing only in case belong to the same channel and so to the same shard
+            EventLoop owner = channel != null
+                    ? loops[Math.floorMod(server.getConfig().caseMapping.hash(channel), loops.length)] : null;
+            Order order = orders.get(connId);
+            if (order == null) {
+                if (owner == null || owner.isLoopThread()) {
+                    return false;
+                }
+                order = new Order();
+                orders.put(connId, order);
+            }
+            // the shard may finish the last command in flight at any time, so only the increment tells if the chain
+            // has to be started, a command without an owner then runs right here
+            order.queue.add(new Routed(owner, command));
+            if (order.pending.getAndIncrement() == 0) {
+                runOrdered(order, currentLoop());
+            }
+            return true;
+        }
+
+        @Override
+        public void closed(int connId, Runnable task) {
+            Order order = orders.get(connId);
+            if (order == null) {
+                task.run();
+                return;
+            }
+            orders.remove(connId);
+            order.queue.add(new Routed(null, message -> task.run()));
+            if (order.pending.getAndIncrement() == 0) {
+                runOrdered(order, currentLoop());
+            }
+        }
+
+        /** Run commands of a connection until the next one belongs to another shard
+         * @param order commands of the connection, the first one may run on this loop
+         * @param loop loop running the commands, null if the caller is no event loop
+         */
+        private void runOrdered(Order order, EventLoop loop) {
+            do {
+                Routed next = order.queue.peek();
+                if (next.owner() != null && next.owner() != loop) {
+                    EventLoop owner = next.owner();
+                    owner.execute(() -> runOrdered(order, owner));
+                    return;
+                }
+                order.queue.poll();
+                try {
+                    next.command().accept(loop != null ? loop.routedMessage : null);
+                } catch (RuntimeException e) {
+                    Log.error("Error! Task of event loop failed: " + e);
+                }
+            } while (order.pending.decrementAndGet() > 0);
+        }
+    }
+
+    /** Number of serviced connections after which queued output is flushed even if the tick is not over */
+    private static final int keysPerFlush = 64;
+    /** Length of the queue of accepted connections waiting for the acceptor */
+    private static final int acceptBacklog = 1024;
+
+    private final IRCServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final boolean sharded;
+    /** Port of the TLS listener, negative if there is none */
+    private int tlsPort = -1;
+    private SSLContext tlsContext;
+
+    /** NioServer constructor
+     * @param server server instance whose commands are called
+     * @param port port to listen on
+     * @param loopCount number of event loop threads
+     * @param sharded true if the event loops own the channels as shards
+     * @throws IOException if the selectors cannot be opened
+     */
+    public NioServer(IRCServer server, int port, int loopCount, boolean sharded) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.sharded = sharded;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /** Get the event loop of the calling thread
+     * @return the loop or null if the caller is no event loop
+     */
+    private EventLoop currentLoop() {
+        for (EventLoop loop : loops) {
+            if (loop.isLoopThread()) {
+                return loop;
+            }
+        }
+        return null;
+    }
+
+    /** Run the queued tasks of all loops on the calling thread
+     * Used by tests instead of the loop threads.
+     */
+    void runTasks() {
+        for (EventLoop loop : loops) {
+            loop.runTasks();
+        }
+    }
+
+    /** Close a channel ignoring errors
+     * @param channel channel to close
+     */
+    static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Listen on a TLS port besides the plaintext one, must be called before {@link #run()}
+     * @param port port of the TLS listener
+     * @param context context with the server key and the session cache
+     */
+    public void listenTls(int port, SSLContext context) {
+        this.tlsPort = port;
+        this.tlsContext = context;
+    }
+
+    /** Accept connections and hand them to the event loops in turn
+     * @param acceptor bound server socket
+     * @param context context of the TLS listener or null for plaintext
+     * @throws IOException if accepting fails
+     */
+    private void accept(ServerSocketChannel acceptor, SSLContext context) throws IOException {
+        int next = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            SocketChannel channel = acceptor.accept();
+            EventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.execute(() -> loop.register(channel, context));
+        }
+    }
+
+    /** Start the TLS listener on its own thread
+     */
+    private void startTlsListener() {
+        Thread thread = new Thread(() -> {
+            try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+                acceptor.bind(new InetSocketAddress(tlsPort), acceptBacklog);
+                Log.info("Started TLS server on port " + tlsPort);
+                accept(acceptor, tlsContext);
+            } catch (IOException e) {
+                Log.error("Error could not start TLS server on port " + tlsPort);
+            }
+        }, "irc-tls-acceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Start the event loops and accept connections on the calling thread
+     */
+    public void run() {
+        if (sharded) {
+            server.setChannelRouter(new Shards());
+        }
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "irc-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (tlsContext != null) {
+            startTlsListener();
+        }
+
+        try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+            acceptor.bind(new InetSocketAddress(port), acceptBacklog);
+            Log.info("Started non-blocking server on port " + port);
+            accept(acceptor, null);
+        } catch (IOException e) {
+            Log.error("Error could not start server on port " + port);
+            throw new RuntimeException(e);
+        }
+    }
+}
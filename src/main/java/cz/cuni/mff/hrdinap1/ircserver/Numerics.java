@@ -3,6 +3,11 @@ package cz.cuni.mff.hrdinap1.ircserver;
 /** Class containing all numeric constants for message replies
  */
 public final class Numerics {
+    public static final int RPL_ISUPPORT = 5;
+    public static final int RPL_STATSCOMMANDS = 212;
+    public static final int RPL_ENDOFSTATS = 219;
+    public static final int RPL_STATSUPTIME = 242;
+    public static final int RPL_STATSDEBUG = 249;
     public static final int RPL_LISTSTART = 321;
     public static final int RPL_LIST = 322;
     public static final int RPL_LISTEND = 323;
@@ -14,6 +19,7 @@ public final class Numerics {
     public static final int ERR_UNKNOWNERROR = 400;
     public static final int ERR_NOSUCHNICK = 401;
     public static final int ERR_NOSUCHCHANNEL = 403;
+    public static final int ERR_NOORIGIN = 409;
     public static final int ERR_NORECIPIENT = 411;
     public static final int ERR_NONICKNAMEGIVEN = 431;
     public static final int ERR_ERRONEUSNICKNAME = 432;
@@ -0,0 +1,195 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Startup configuration of the server
+ * Holds defaults which can be overridden by command line arguments
+ */
+public class ServerConfig {
+    /** How connections are serviced */
+    public enum ExecutionMode {
+        /** Blocking read loop per connection in a work stealing pool */
+        POOL,
+        /** Blocking read loop per connection, each on its own virtual thread */
+        VIRTUAL_THREADS,
+        /** Non-blocking transport with event loops */
+        NIO,
+        /** Non-blocking transport with event loops owning the channels as shards */
+        SHARDED
+    }
+
+    /** What happens when the outbound queue of a connection is full */
+    public enum OutboundPolicy {
+        /** The message is dropped for that connection */
+        DROP,
+        /** The connection is closed */
+        DISCONNECT,
+        /** The sender waits for free space, the connection is closed if it does not get any in time */
+        BLOCK
+    }
+
+    public int port = 6667;
+    /** Name of the server, must be unique among linked servers */
+    public String serverName = "mff.testing.cz";
+    /** Description of the server sent to linked servers */
+    public String serverInfo = "IRC server";
+    /** Password of server links, other servers cannot link when null, see {@link LinkManager} */
+    public String linkPassword = null;
+    /** Addresses of servers to link to as <code>host:port</code> */
+    public List<String> links = new ArrayList<>();
+    public ExecutionMode mode = ExecutionMode.POOL;
+    /** Case mapping of nicknames and channel names */
+    public CaseMapping caseMapping = CaseMapping.RFC1459;
+    /** Maximum number of messages waiting to be written to one connection */
+    public int outboundQueueSize = 1024;
+    public OutboundPolicy outboundPolicy = OutboundPolicy.DISCONNECT;
+    /** How long a sender waits for free space with the BLOCK policy */
+    public long outboundBlockMillis = 5000;
+    /** Most detailed level which is logged */
+    public Log.Level logLevel = Log.Level.INFO;
+    /** Log every received line, costly on busy servers */
+    public boolean logTraffic = false;
+    /** Port of the local metrics endpoint, the endpoint is off when negative */
+    public int metricsPort = -1;
+    /** Pause reading of connections which send lines faster than their penalties allow, see {@link FloodControl} */
+    public boolean floodControl = true;
+    /** How far the penalties of a connection may get ahead of the clock before its reading is paused */
+    public long floodBurstMillis = 2000;
+    /** Penalty of a command without its own penalty and of unknown lines */
+    public long floodPenaltyMillis = 200;
+    /** Penalties of single commands by upper case command name */
+    public Map<String, Long> commandPenaltyMillis = new HashMap<>(Map.of("LIST", 600L, "STATS", 600L, "CHATHISTORY", 600L));
+    /** Number of recent events kept per channel for CHATHISTORY, 0 turns the history off */
+    public int historyLength = 100;
+    /** Memory budget of the histories of all channels */
+    public long historyBudgetBytes = 16L << 20;
+    /** Directory of the channel journal, channels are not saved when null, see {@link ChannelJournal} */
+    public String journalDir = null;
+    /** Size of one journal file */
+    public int journalFileSize = 64 << 20;
+    /** Interval of the group commit of the journal, changes of channels in this window may be lost in a crash, at least 1 */
+    public long journalSyncMillis = 10;
+    /** Interval between snapshots of all channels, which let old journal files be deleted */
+    public long journalSnapshotMillis = 300_000;
+    /** Time a connection has to register before it is closed */
+    public long registrationTimeoutMillis = 60_000;
+    /** Time without any received line after which a registered connection gets a PING */
+    public long pingIntervalMillis = 120_000;
+    /** Time to answer a PING before the connection is closed */
+    public long pingTimeoutMillis = 60_000;
+    /** Resolution of the liveness timeouts, see {@link TimingWheel} */
+    public long livenessTickMillis = 1000;
+    /** Port of the TLS listener of the non-blocking transport, TLS is off when negative */
+    public int tlsPort = -1;
+    /** PKCS12 keystore with the key and certificate of the server */
+    public String tlsKeystore = null;
+    /** Password of the keystore and the key */
+    public String tlsPassword = "";
+    /** Maximum number of TLS sessions kept for resumption, 0 for no limit */
+    public int tlsSessionCacheSize = 20_000;
+    /** Lifetime of TLS sessions kept for resumption */
+    public int tlsSessionTimeoutSeconds = 86_400;
+
+    /** Get flood penalty of a command
+     * @param command upper case command name
+     * @return penalty in milliseconds
+     */
+    public long getPenaltyMillis(String command) {
+        return commandPenaltyMillis.getOrDefault(command, floodPenaltyMillis);
+    }
+
+    /** Parse command line arguments
+     * Unknown or malformed arguments are reported and the default is kept.
+     * @param args port number and flags
+     * @return configuration
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            try {
+                if ("--nio".equals(arg)) {
+                    config.mode = ExecutionMode.NIO;
+                } else if ("--sharded".equals(arg)) {
+                    config.mode = ExecutionMode.SHARDED;
+                } else if ("--virtual-threads".equals(arg)) {
+                    config.mode = ExecutionMode.VIRTUAL_THREADS;
+                } else if (arg.startsWith("--outbound-queue=")) {
+                    config.outboundQueueSize = Integer.parseInt(value);
+                } else if (arg.startsWith("--outbound-policy=")) {
+                    config.outboundPolicy = OutboundPolicy.valueOf(value.toUpperCase(Locale.ROOT));
+                } else if (arg.startsWith("--outbound-block-ms=")) {
+                    config.outboundBlockMillis = Long.parseLong(value);
+                } else if (arg.startsWith("--log-level=")) {
+                    config.logLevel = Log.Level.valueOf(value.toUpperCase(Locale.ROOT));
+                } else if (arg.startsWith("--metrics-port=")) {
+                    config.metricsPort = Integer.parseInt(value);
+                } else if (arg.startsWith("--flood-burst-ms=")) {
+                    config.floodBurstMillis = Long.parseLong(value);
+                } else if (arg.startsWith("--flood-penalty-ms=")) {
+                    config.floodPenaltyMillis = Long.parseLong(value);
+                } else if (arg.startsWith("--flood-penalty=")) {
+                    for (String penalty : value.split(",")) {
+                        String[] parts = penalty.split(":", 2);
+                        long millis = Long.parseLong(parts.length == 2 ? parts[1] : "");
+                        config.commandPenaltyMillis.put(parts[0].toUpperCase(Locale.ROOT), millis);
+                    }
+                } else if (arg.startsWith("--history-length=")) {
+                    config.historyLength = Integer.parseInt(value);
+                } else if (arg.startsWith("--history-budget-mb=")) {
+                    config.historyBudgetBytes = Long.parseLong(value) << 20;
+                } else if (arg.startsWith("--journal=")) {
+                    config.journalDir = value;
+                } else if (arg.startsWith("--journal-sync-ms=")) {
+                    long millis = Long.parseLong(value);
+                    if (millis <= 0) {
+                        throw new IllegalArgumentException(value);
+                    }
+                    config.journalSyncMillis = millis;
+                } else if (arg.startsWith("--journal-snapshot-s=")) {
+                    config.journalSnapshotMillis = Long.parseLong(value) * 1000;
+                } else if (arg.startsWith("--registration-timeout-s=")) {
+                    config.registrationTimeoutMillis = Long.parseLong(value) * 1000;
+                } else if (arg.startsWith("--ping-interval-s=")) {
+                    config.pingIntervalMillis = Long.parseLong(value) * 1000;
+                } else if (arg.startsWith("--ping-timeout-s=")) {
+                    config.pingTimeoutMillis = Long.parseLong(value) * 1000;
+                } else if (arg.startsWith("--tls-port=")) {
+                    config.tlsPort = Integer.parseInt(value);
+                } else if (arg.startsWith("--tls-keystore=")) {
+                    config.tlsKeystore = value;
+                } else if (arg.startsWith("--tls-password=")) {
+                    config.tlsPassword = value;
+                } else if (arg.startsWith("--tls-session-cache=")) {
+                    config.tlsSessionCacheSize = Integer.parseInt(value);
+                } else if (arg.startsWith("--tls-session-timeout-s=")) {
+                    config.tlsSessionTimeoutSeconds = Integer.parseInt(value);
+                } else if (arg.startsWith("--casemapping=")) {
+                    config.caseMapping = CaseMapping.valueOf(value.toUpperCase(Locale.ROOT));
+                } else if (arg.startsWith("--name=")) {
+                    config.serverName = value;
+                } else if (arg.startsWith("--link-password=")) {
+                    config.linkPassword = value;
+                } else if (arg.startsWith("--link=")) {
+                    if (!value.contains(":")) {
+                        throw new IllegalArgumentException(value);
+                    }
+                    config.links.add(value);
+                } else if ("--no-flood-control".equals(arg)) {
+                    config.floodControl = false;
+                } else if ("--log-traffic".equals(arg)) {
+                    config.logTraffic = true;
+                } else {
+                    config.port = Integer.parseInt(arg);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.warn("Invalid argument " + arg + ". Using default.");
+            }
+        }
+        return config;
+    }
+}
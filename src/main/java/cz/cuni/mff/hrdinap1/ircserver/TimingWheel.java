@@ -0,0 +1,135 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Hashed timing wheel running the timeouts of all connections on one thread
+ * Time advances in ticks. A timeout due in n ticks goes to the slot n ticks ahead of the current one and every tick
+ * runs the timeouts of one slot, so scheduling costs O(1) and a tick costs only the timeouts which are due, however
+ * many connections wait. There is no cancelling, a task whose connection closed meanwhile does nothing. The wheel is
+ * sized to cover the longest delay, so a slot holds no timeouts of later rounds. Timeouts are scheduled from any thread
+ * through a lock free queue, the slots are touched by the ticking thread only.
+ */
+class TimingWheel {
+    /** Task scheduled on the wheel */
+    private static final class Timeout {
+        private final Runnable task;
+        /** Tick the task runs at */
+        private final long deadline;
+        /** Next timeout of the same slot */
+        private Timeout next;
+
+        /** Timeout constructor
+         * @param task task to run
+         * @param deadline tick the task runs at
+         */
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    /** Timeouts scheduled since the last tick */
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    /** Number of ticks so far */
+    private volatile long tick;
+    private volatile boolean stopped;
+
+    /** TimingWheel constructor
+     * @param tickMillis length of a tick
+     * @param maxDelayTicks longest delay which is scheduled, the number of slots is the next power of two above it
+     */
+    TimingWheel(long tickMillis, long maxDelayTicks) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit((int) Math.max(1, Math.min(maxDelayTicks, 1 << 20))) << 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /** Convert a duration to ticks, rounding up
+     * @param millis duration
+     * @return number of ticks, at least one
+     */
+    long toTicks(long millis) {
+        return Math.max(1, (TimeUnit.MILLISECONDS.toNanos(millis) + tickNanos - 1) / tickNanos);
+    }
+
+    /** Get the current tick
+     * Serves as a coarse clock, reading it is cheaper than reading the system time.
+     * @return number of ticks so far
+     */
+    long getTick() {
+        return tick;
+    }
+
+    /** Schedule a task
+     * @param task task to run on the ticking thread
+     * @param delayTicks number of ticks to wait, at least one
+     */
+    void schedule(Runnable task, long delayTicks) {
+        scheduled.add(new Timeout(task, tick + Math.max(1, delayTicks)));
+    }
+
+    /** Advance the wheel by one tick and run the tasks which are due
+     * Called by the ticking thread, or by tests instead of it.
+     */
+    void tick() {
+        long now = tick + 1;
+        tick = now;
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            // a deadline already passed is run by this tick
+            int slot = (int) (Math.max(timeout.deadline, now) & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+        int slot = (int) (now & mask);
+        Timeout pending = null;
+        for (timeout = slots[slot]; timeout != null; ) {
+            Timeout next = timeout.next;
+            if (timeout.deadline - now <= 0) {
+                timeout.next = null;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Error! Timeout task failed: " + e);
+                }
+            } else {
+                // a delay longer than the wheel, waits for the next round
+                timeout.next = pending;
+                pending = timeout;
+            }
+            timeout = next;
+        }
+        slots[slot] = pending;
+    }
+
+    /** Start the thread ticking the wheel
+     * Ticks are counted from the start, so a late tick does not delay the following ones.
+     */
+    void start() {
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            while (!stopped) {
+                long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                } else {
+                    tick();
+                }
+            }
+        }, "irc-timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the ticking thread, scheduled tasks do not run
+     */
+    void stop() {
+        stopped = true;
+    }
+}
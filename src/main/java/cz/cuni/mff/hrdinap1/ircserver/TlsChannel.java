@@ -0,0 +1,325 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/** TLS layer of a connection of the non-blocking transport
+ * Wraps the socket of a {@link NioConnection} in an {@link SSLEngine}. Reads decrypt the received records into the read
+ * buffer of the connection, writes encrypt the queued lines of one gathering write into records written to the socket,
+ * so a tick of small lines costs few records. Handshake messages are answered as they arrive, delegated tasks run on
+ * the loop thread. Not thread safe, the connection calls it with its monitor held.
+ */
+class TlsChannel {
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Metrics metrics;
+    /** Received records not yet decrypted, in write mode */
+    private ByteBuffer netIn;
+    /** Decrypted bytes not yet moved to the read buffer of the connection, in write mode */
+    private ByteBuffer appIn;
+    /** Encrypted bytes not yet accepted by the socket, in read mode */
+    private ByteBuffer netOut;
+    /** Set when the handshake finished since the last call of {@link #takeHandshakeFinished()} */
+    private boolean handshakeFinished;
+    /** Start of the handshake in {@link System#currentTimeMillis()}, tells resumed sessions from new ones */
+    private final long startMillis = System.currentTimeMillis();
+    private boolean inboundClosed;
+
+    /** TlsChannel constructor
+     * @param channel accepted non-blocking socket
+     * @param engine engine in server mode
+     * @param metrics registry counting the handshakes
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, Metrics metrics) {
+        this.channel = channel;
+        this.engine = engine;
+        this.metrics = metrics;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+    }
+
+    /** Create context of the server side of TLS connections
+     * Sessions are kept in the server session cache and, for TLS 1.3, also handed to clients as encrypted tickets,
+     * so a reconnecting client resumes its session with an abbreviated handshake.
+     * @param keystore PKCS12 keystore with the key and certificate of the server
+     * @param password password of the keystore and the key
+     * @param cacheSize maximum number of cached sessions, 0 for no limit
+     * @param timeoutSeconds lifetime of cached sessions and tickets
+     * @return initialized context
+     * @throws IOException if the keystore cannot be read
+     * @throws GeneralSecurityException if the keystore or the key is not valid
+     */
+    static SSLContext createContext(Path keystore, char[] password, int cacheSize, int timeoutSeconds)
+            throws IOException, GeneralSecurityException {
+        // read when the first context is created, tickets are on by default in recent runtimes
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream input = Files.newInputStream(keystore)) {
+            store.load(input, password);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        context.getServerSessionContext().setSessionCacheSize(cacheSize);
+        context.getServerSessionContext().setSessionTimeout(timeoutSeconds);
+        return context;
+    }
+
+    /** Create engine for an accepted connection
+     * @param context context of the server
+     * @return engine in server mode
+     */
+    static SSLEngine createEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /** Read and decrypt available bytes
+     * Handshake messages received meanwhile are answered.
+     * @param dst read buffer of the connection
+     * @return number of bytes put to the buffer, -1 at the end of the stream
+     * @throws IOException if the socket fails or the peer violates the protocol
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int moved = drainInput(dst);
+        if (!dst.hasRemaining()) {
+            return moved;
+        }
+        int received = channel.read(netIn);
+        if (received < 0) {
+            inboundClosed = true;
+        } else {
+            metrics.addBytesReceived(received);
+        }
+        unwrap();
+        moved += drainInput(dst);
+        return moved == 0 && inboundClosed ? -1 : moved;
+    }
+
+    /** Checks if decrypted or received bytes wait for the read buffer
+     * The socket may not become readable again, so the connection reads until there are none.
+     * @return true if another read may return bytes
+     */
+    boolean hasBufferedInput() {
+        return appIn.position() > 0 || (netIn.position() > 0 && !inboundClosed);
+    }
+
+    /** Move decrypted bytes to the read buffer of the connection
+     * @param dst read buffer
+     * @return number of moved bytes
+     */
+    private int drainInput(ByteBuffer dst) {
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        dst.put(dst.position(), appIn, appIn.position(), count);
+        dst.position(dst.position() + count);
+        appIn.position(appIn.position() + count);
+        appIn.compact();
+        return count;
+    }
+
+    /** Decrypt received records while there is room for the plaintext
+     * @throws IOException if the peer violates the protocol or the socket fails while answering the handshake
+     */
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                handshake(result.getHandshakeStatus());
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW -> {
+                        if (netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+                            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize(), true);
+                        }
+                        return;
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        if (appIn.position() == 0) {
+                            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize(), false);
+                            continue;
+                        }
+                        return;
+                    }
+                    case CLOSED -> {
+                        inboundClosed = true;
+                        return;
+                    }
+                    case OK -> { }
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                    return;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /** Grow a buffer to a size required by the session
+     * @param buffer buffer to grow
+     * @param size required size
+     * @param readMode true if the buffer is in read mode
+     * @return larger buffer with the same content and mode
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size, boolean readMode) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        if (!readMode) {
+            buffer.flip();
+        }
+        larger.put(buffer);
+        if (readMode) {
+            larger.flip();
+        }
+        return larger;
+    }
+
+    /** Advance the handshake after an operation of the engine
+     * Stops when the socket does not accept a handshake message, {@link #flush()} continues.
+     * @param status handshake status returned by the operation
+     * @throws IOException if the socket fails while answering the handshake
+     */
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                case NEED_WRAP -> {
+                    if (!flushOutput()) {
+                        return;
+                    }
+                    status = wrap(new ByteBuffer[0]).getHandshakeStatus();
+                }
+                case FINISHED -> {
+                    finished();
+                    return;
+                }
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Count a finished handshake
+     * A resumed session was created by an earlier handshake.
+     */
+    private void finished() {
+        handshakeFinished = true;
+        metrics.tlsHandshake(engine.getSession().getCreationTime() < startMillis);
+    }
+
+    /** Checks if the handshake finished since the last call
+     * Lines queued during the handshake are then written.
+     * @return true once after the handshake finished
+     */
+    boolean takeHandshakeFinished() {
+        boolean finished = handshakeFinished;
+        handshakeFinished = false;
+        return finished;
+    }
+
+    /** Encrypt bytes into the empty network buffer and write it
+     * @param srcs plaintext buffers
+     * @return result of the engine
+     * @throws IOException if the socket fails or the engine is closed
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs) throws IOException {
+        netOut.clear();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            netOut = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() * 2)).flip();
+        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED && netOut.remaining() == 0) {
+            throw new IOException("TLS connection closed");
+        }
+        flushOutput();
+        return result;
+    }
+
+    /** Write encrypted bytes left by an earlier write and continue the handshake stopped by them
+     * @return true if the network buffer is empty
+     * @throws IOException if the socket fails
+     */
+    boolean flush() throws IOException {
+        if (!flushOutput()) {
+            return false;
+        }
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            handshake(SSLEngineResult.HandshakeStatus.NEED_WRAP);
+        }
+        return !netOut.hasRemaining();
+    }
+
+    /** Write encrypted bytes left by an earlier write
+     * @return true if the network buffer is empty
+     * @throws IOException if the socket fails
+     */
+    private boolean flushOutput() throws IOException {
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        return !netOut.hasRemaining();
+    }
+
+    /** Checks if encrypted bytes wait for the socket to become writable
+     * @return true if the network buffer is not empty
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /** Encrypt and write plaintext by records filling the network buffer
+     * Stops when the socket is full or while the handshake is not finished.
+     * @param srcs plaintext buffers
+     * @return number of plaintext bytes consumed
+     * @throws IOException if the socket fails or the engine is closed
+     */
+    long write(ByteBuffer[] srcs) throws IOException {
+        long consumed = 0;
+        while (flushOutput() && srcs.length > 0 && srcs[srcs.length - 1].hasRemaining()) {
+            SSLEngineResult result = wrap(srcs);
+            handshake(result.getHandshakeStatus());
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0 && result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    /** Send the closing alert if the socket takes it, the socket is closed by the caller
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            if (flushOutput()) {
+                wrap(new ByteBuffer[0]);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,79 +1,122 @@
 package cz.cuni.mff.hrdinap1.ircserver;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** Class responsible for managing users
+ * Lookups are lock free. Updates of a user are guarded by the lock of the stripe of its connId, uniqueness of
+ * nicknames is kept by the nickname map. Nicknames are compared under the configured case mapping.
  */
 public class UserManager {
+    /** Details of a user given at registration
+     * @param nickname nickname
+     * @param username username
+     * @param hostname hostname
+     * @param realname real name of the user
+     */
+    public record UserDetails(String nickname, String username, String hostname, String realname) {}
+
     /** Class representing a user */
     private class User {
-        public int connId;
-        public String nickname;
-        public String username;
-        public String hostname;
-        public String servername;
-        public String realname;
+        public final int connId;
+        public volatile String nickname;
+        public volatile String username;
+        public volatile String hostname;
+        public volatile String servername;
+        public volatile String realname;
 
-        public boolean registered;
+        public volatile boolean registered;
 
         public User(int connId) {
             this.connId = connId;
         }
     }
 
+    /** Number of lock stripes */
+    private static final int lockStripes = 256;
+
     /** Mapping of connIds to users */
-    private final Map<Integer, User> connToUser;
+    private final IntObjectMap<User> connToUser;
     /** Mapping of nicknames to users */
-    private final Map<String, User> nickToUser;
+    private final NameMap<User> nickToUser;
+    private final CaseMapping caseMapping;
+    /** Locks guarding updates of users */
+    private final LockStripes locks;
 
-    /** UserManager constructor
+    /** UserManager constructor with the default configuration
      */
     public UserManager() {
-        this.connToUser = new HashMap<>();
-        this.nickToUser = new HashMap<>();
+        this(new ServerConfig());
+    }
+
+    /** UserManager constructor
+     * @param config configuration with the case mapping of nicknames
+     */
+    public UserManager(ServerConfig config) {
+        this.caseMapping = config.caseMapping;
+        this.connToUser = new IntObjectMap<>();
+        this.nickToUser = new NameMap<>(caseMapping);
+        this.locks = new LockStripes(lockStripes);
+    }
+
+    /** Get lock guarding updates of a user
+     * @param connId id of the user's connection
+     * @return lock of the user's stripe
+     */
+    private ReentrantLock getLock(int connId) {
+        return locks.get(Integer.hashCode(connId));
     }
 
     /** Checks if nickname is used
      * @param nickname nickname
      * @return true if nickname is used
      */
-    public boolean nicknameInUse(String nickname) { return nickToUser.containsKey(nickname) && nickToUser.get(nickname).nickname != null; }
+    public boolean nicknameInUse(String nickname) { return nickToUser.containsKey(nickname); }
 
     /** Checks if user has a nickname set
      * @param connId id of the user's connection
      * @return true if user has a nickname set
      */
     public boolean userHasNickname(int connId) {
-        return connToUser.containsKey(connId) && connToUser.get(connId).nickname != null;
+        User user = connToUser.get(connId);
+        return user != null && user.nickname != null;
     }
 
     /** Checks if user has a username set
      * @param connId id of the user's connection
      * @return true if user has username set
      */
-    public boolean userHasUsername(int connId) { return connToUser.containsKey(connId) && connToUser.get(connId).username != null; }
+    public boolean userHasUsername(int connId) {
+        User user = connToUser.get(connId);
+        return user != null && user.username != null;
+    }
 
     /** Checks if user is registered
      * @param connId id of the user's connection
      * @return true if user is registered
      */
-    public boolean userIsRegistered(int connId) { return connToUser.containsKey(connId) && connToUser.get(connId).registered; }
+    public boolean userIsRegistered(int connId) {
+        User user = connToUser.get(connId);
+        return user != null && user.registered;
+    }
 
     /** Checks if user is registered
      * @param nickname user's nickname
      * @return true if user is registered
      */
-    public boolean userIsRegistered(String nickname) { return nickToUser.containsKey(nickname) && nickToUser.get(nickname).registered; }
+    public boolean userIsRegistered(String nickname) {
+        User user = nickToUser.get(nickname);
+        return user != null && user.registered;
+    }
 
     /** Get connection id bound to nickname
      * @param nickname user's nickname
-     * @return id of the user's connection
+     * @return id of the user's connection or -1 if no user has the nickname
      */
     public int getConnId(String nickname) {
-        return nickToUser.get(nickname).connId;
+        User user = nickToUser.get(nickname);
+        return user != null ? user.connId : -1;
     }
 
     /** Create a user
@@ -87,9 +130,15 @@ public class UserManager {
      * @param connId id of the user's connection
      */
     public void removeUser(int connId) {
-        if (userHasNickname(connId)) {
-            nickToUser.remove(getNickname(connId));
-            connToUser.remove(connId);
+        ReentrantLock lock = getLock(connId);
+        lock.lock();
+        try {
+            User user = connToUser.remove(connId);
+            if (user != null && user.nickname != null) {
+                nickToUser.remove(user.nickname, user);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -98,10 +147,23 @@ public class UserManager {
      * @return user's nickname
      */
     public String getNickname(int connId) {
-        if (!connToUser.containsKey(connId)) {
+        User user = connToUser.get(connId);
+        if (user == null) {
             return null;
         }
-        return connToUser.get(connId).username;
+        return user.nickname;
+    }
+
+    /** Get details of a user
+     * @param connId id of the user's connection
+     * @return details or null if there is no such user
+     */
+    public UserDetails getUserDetails(int connId) {
+        User user = connToUser.get(connId);
+        if (user == null) {
+            return null;
+        }
+        return new UserDetails(user.nickname, user.username, user.hostname, user.realname);
     }
 
     /** Get nicknames bound to connection ids
@@ -117,19 +179,32 @@ public class UserManager {
     }
 
     /** Set or change nickname
+     * The check that the nickname is free and its assignment are atomic.
      * @param connId id of the user's connection
      * @param newNickname new nickname
+     * @return false if the nickname is already in use
      */
-    public void setNickname(int connId, String newNickname) {
-        User user = connToUser.get(connId);
-        if (userHasNickname(connId)) {
-            nickToUser.remove(getNickname(connId));
-        }
-
-        user.nickname = newNickname;
-        nickToUser.put(newNickname, user);
-        if (userHasUsername(connId)) {
-            user.registered = true;
+    public boolean setNickname(int connId, String newNickname) {
+        ReentrantLock lock = getLock(connId);
+        lock.lock();
+        try {
+            User user = connToUser.get(connId);
+            User owner = nickToUser.putIfAbsent(newNickname, user);
+            if (owner != null && owner != user) {
+                return false;
+            }
+            // a change of case only keeps the entry of the nickname
+            if (user.nickname != null && !caseMapping.equal(user.nickname, newNickname)) {
+                nickToUser.remove(user.nickname, user);
+            }
+
+            user.nickname = newNickname;
+            if (user.username != null) {
+                user.registered = true;
+            }
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -141,14 +216,20 @@ public class UserManager {
      * @param realname real name of the user
      */
     public void setUserDetails(int connId, String username, String hostname, String servername, String realname) {
-        User user = connToUser.get(connId);
-        user.username = username;
-        user.hostname = hostname;
-        user.servername = servername;
-        user.realname = realname;
-
-        if (userHasNickname(connId)) {
-            user.registered = true;
+        ReentrantLock lock = getLock(connId);
+        lock.lock();
+        try {
+            User user = connToUser.get(connId);
+            user.username = username;
+            user.hostname = hostname;
+            user.servername = servername;
+            user.realname = realname;
+
+            if (user.nickname != null) {
+                user.registered = true;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
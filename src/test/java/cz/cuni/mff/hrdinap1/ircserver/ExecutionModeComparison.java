@@ -0,0 +1,84 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/** Compares execution modes of a running server
+ * Opens the given number of connections, registers each of them and waits for a reply to NAMES. Prints how many
+ * connections were serviced before the deadline and the reply latency. Start the server in the mode to compare first:
+ * <pre>
+ * java cz.cuni.mff.hrdinap1.ircserver.Main 6667
+ * java cz.cuni.mff.hrdinap1.ircserver.Main --virtual-threads 6667
+ * java cz.cuni.mff.hrdinap1.ircserver.ExecutionModeComparison localhost 6667 10000
+ * </pre>
+ */
+public class ExecutionModeComparison {
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6667;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        long deadlineMillis = args.length > 3 ? Long.parseLong(args[3]) : 30000;
+
+        Selector selector = Selector.open();
+        long[] sentAt = new long[count];
+        long[] latency = new long[count];
+        Arrays.fill(latency, -1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            String login = "NICK cmp" + i + "\r\nUSER cmp" + i + " 0 * :comparison\r\nNAMES #cmp\r\n";
+            sentAt[i] = System.nanoTime();
+            channel.write(ByteBuffer.wrap(login.getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, i);
+        }
+        long connected = System.nanoTime();
+
+        int serviced = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long deadline = connected + deadlineMillis * 1_000_000;
+        while (serviced < count && System.nanoTime() < deadline) {
+            selector.select(Math.max(1, (deadline - System.nanoTime()) / 1_000_000));
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                int i = (Integer) key.attachment();
+                buffer.clear();
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                String reply = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+                if (latency[i] < 0 && reply.contains(" 366 ")) {
+                    latency[i] = System.nanoTime() - sentAt[i];
+                    serviced++;
+                }
+            }
+        }
+        long end = System.nanoTime();
+
+        long[] measured = Arrays.stream(latency).filter(l -> l >= 0).sorted().toArray();
+        System.out.println("connections: " + count);
+        System.out.println("connect time ms: " + (connected - start) / 1_000_000);
+        System.out.println("serviced: " + serviced);
+        System.out.println("total time ms: " + (end - start) / 1_000_000);
+        if (measured.length > 0) {
+            System.out.println("reply latency p50 ms: " + measured[measured.length / 2] / 1_000_000);
+            System.out.println("reply latency p99 ms: " + measured[(int) (measured.length * 0.99)] / 1_000_000);
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,57 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.lang.ref.Reference;
+
+/** Measures heap used by channel memberships and users
+ * Creates the given number of users and channels and joins every user to the given number of channels, then prints
+ * retained heap per membership. Run with a fixed heap, e.g.
+ * <pre>
+ * java -Xmx4g cz.cuni.mff.hrdinap1.ircserver.FootprintMeasurement 100000 10000 10
+ * </pre>
+ */
+public class FootprintMeasurement {
+    /** Get used heap after garbage collection
+     * @return used heap in bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int channels = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int channelsPerUser = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        String[] names = new String[channels];
+        for (int i = 0; i < channels; i++) {
+            names[i] = "#channel" + i;
+        }
+        long baseline = usedHeap();
+
+        ChannelManager channelManager = new ChannelManager();
+        UserManager userManager = new UserManager();
+        ConnectionManager connectionManager = new ConnectionManager();
+        for (int connId = 0; connId < users; connId++) {
+            userManager.addUser(connId);
+            for (int j = 0; j < channelsPerUser; j++) {
+                channelManager.join(connId, names[(connId * 7 + j * 31) % channels], null);
+            }
+        }
+        long used = usedHeap() - baseline;
+
+        long memberships = (long) users * channelsPerUser;
+        System.out.println("users: " + users + ", channels: " + channels + ", memberships: " + memberships);
+        System.out.println("retained heap MB: " + used / (1024 * 1024));
+        System.out.println("bytes per membership (incl. users): " + used / memberships);
+        Reference.reachabilityFence(channelManager);
+        Reference.reachabilityFence(userManager);
+        Reference.reachabilityFence(connectionManager);
+    }
+}
@@ -0,0 +1,389 @@
+package cz.cuni.mff.hrdinap1.ircserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+
+/** Load generator for a running server
+ * Opens the given number of connections on one selector thread, registers every client and joins it to one of the
+ * channels. Then sends channel messages at a fixed total rate and measures the relay latency of every delivered copy,
+ * the send time travels in the message text. Prints a summary and writes a JSON report, e.g.
+ * <pre>
+ * java cz.cuni.mff.hrdinap1.ircserver.Main --nio 6667
+ * java cz.cuni.mff.hrdinap1.ircserver.LoadGenerator --clients=2000 --channels=20 --rate=500 --duration=10 --report=nio.json
+ * </pre>
+ * Options:
+ * <ul>
+ *     <li>--host=, --port= - server address, default localhost:6667</li>
+ *     <li>--clients= - number of connections, default 1000</li>
+ *     <li>--channels= - number of channels, clients are spread evenly, default 10</li>
+ *     <li>--rate= - channel messages per second sent by all clients together, default 1000</li>
+ *     <li>--duration= - seconds of sending, default 10</li>
+ *     <li>--drain= - seconds to wait for outstanding deliveries, default 5</li>
+ *     <li>--report= - file for the JSON report, - for standard output</li>
+ * </ul>
+ * The generator runs on one thread, on a machine shared with the server it competes with it for the processor.
+ */
+public class LoadGenerator {
+    /** Histogram of latencies in microseconds with relative error below 0.2 % */
+    static class Histogram {
+        /** Values below this are counted exactly, larger ones keep this many significant bits */
+        private static final int subBits = 10;
+        private final long[] counts = new long[(64 - subBits + 1) << (subBits - 1)];
+        private long total;
+        private long max;
+
+        /** Bucket of a value
+         * @param value non-negative value
+         * @return index of the bucket
+         */
+        static int index(long value) {
+            if (value < (1L << subBits)) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (subBits - 1);
+            return (shift << (subBits - 1)) + (int) (value >>> shift);
+        }
+
+        /** Lowest value of a bucket
+         * @param index index of the bucket
+         * @return lowest value counted in the bucket
+         */
+        static long lowest(int index) {
+            if (index < (1 << subBits)) {
+                return index;
+            }
+            int shift = (index >>> (subBits - 1)) - 1;
+            return (long) (index - (shift << (subBits - 1))) << shift;
+        }
+
+        /** Count a value
+         * @param value value to count, negative values are counted as zero
+         */
+        void record(long value) {
+            value = Math.max(0, value);
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        /** Get the largest counted value
+         * @return largest value
+         */
+        long max() {
+            return max;
+        }
+
+        /** Get a percentile
+         * @param percentile percentile between 0 and 100
+         * @return value below or equal to which the given percentage of values lies
+         */
+        long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(lowest(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /** One simulated client */
+    private static class Client {
+        final SocketChannel channel;
+        final String channelName;
+        final ByteBuffer in = ByteBuffer.allocate(8192);
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        SelectionKey key;
+        boolean joined;
+
+        Client(SocketChannel channel, String channelName) {
+            this.channel = channel;
+            this.channelName = channelName;
+        }
+
+        /** Queue a line and write as much as the socket accepts
+         * @param line line without the line terminator
+         */
+        void send(String line) throws IOException {
+            byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+            if (out.remaining() < bytes.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(bytes);
+            flush();
+        }
+
+        /** Write queued output, waits for the socket to become writable if it is full
+         */
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (key != null && key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    private static final String messageCommand = " PRIVMSG ";
+
+    private String host = "localhost";
+    private int port = 6667;
+    private int clientCount = 1000;
+    private int channelCount = 10;
+    private int rate = 1000;
+    private int durationSeconds = 10;
+    private int drainSeconds = 5;
+    private String report;
+
+    private final Histogram latency = new Histogram();
+    private Client[] clients;
+    private Selector selector;
+    private int joinedCount;
+    private long sent;
+    private long expected;
+    private long delivered;
+
+    /** Parse options
+     * @param args options of the form --name=value
+     */
+    private void configure(String[] args) {
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                host = value;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--channels=")) {
+                channelCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                durationSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--drain=")) {
+                drainSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--report=")) {
+                report = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    /** Number of members of a channel
+     * @param channelIndex index of the channel
+     * @return number of clients joined to it
+     */
+    private int channelSize(int channelIndex) {
+        return clientCount / channelCount + (channelIndex < clientCount % channelCount ? 1 : 0);
+    }
+
+    /** Open connections, register the clients and join them to their channels
+     */
+    private void connect() throws IOException {
+        selector = Selector.open();
+        clients = new Client[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            Client client = new Client(channel, "#load" + (i % channelCount));
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients[i] = client;
+            client.send("NICK load" + i);
+            client.send("USER load" + i + " 0 * :load generator");
+            client.send("JOIN " + client.channelName);
+            // keep the socket buffers from filling up while connecting
+            poll(0);
+        }
+    }
+
+    /** Service ready sockets
+     * @param timeoutMillis how long to wait, 0 to not wait at all
+     */
+    private void poll(long timeoutMillis) throws IOException {
+        if (timeoutMillis > 0) {
+            selector.select(timeoutMillis);
+        } else {
+            selector.selectNow();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Client client = (Client) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isWritable()) {
+                client.flush();
+            }
+            if (key.isReadable()) {
+                read(client);
+            }
+        }
+    }
+
+    /** Read and process received lines of a client
+     * @param client client with a readable socket
+     */
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.in) < 0) {
+            client.key.cancel();
+            return;
+        }
+        long now = System.nanoTime();
+        ByteBuffer in = client.in;
+        int lineStart = 0;
+        for (int i = 0; i < in.position(); i++) {
+            if (in.get(i) == '\n') {
+                received(client, new String(in.array(), lineStart, i - lineStart, StandardCharsets.UTF_8), now);
+                lineStart = i + 1;
+            }
+        }
+        in.flip();
+        in.position(lineStart);
+        in.compact();
+        if (!in.hasRemaining()) {
+            in.clear();
+        }
+    }
+
+    /** Process one received line
+     * @param client receiving client
+     * @param line line with or without the carriage return
+     * @param now time of the read
+     */
+    private void received(Client client, String line, long now) {
+        int command = line.indexOf(messageCommand);
+        if (command > 0) {
+            int text = line.indexOf(" :", command + messageCommand.length());
+            if (text > 0) {
+                String sentAt = line.substring(text + 2).strip();
+                latency.record((now - Long.parseLong(sentAt)) / 1000);
+                delivered++;
+            }
+        } else if (!client.joined && line.contains(" 366 ")) {
+            client.joined = true;
+            joinedCount++;
+        }
+    }
+
+    /** Send messages at the configured rate for the configured time and wait for their deliveries
+     * @return time of sending in nanoseconds
+     */
+    private long run() throws IOException {
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long now;
+        int next = 0;
+        while ((now = System.nanoTime()) < end) {
+            long due = (now - start) * rate / 1_000_000_000L;
+            while (sent < due) {
+                Client client = clients[next];
+                client.send("PRIVMSG " + client.channelName + " :" + System.nanoTime());
+                expected += channelSize(next % channelCount) - 1;
+                sent++;
+                next = (next + 1) % clients.length;
+            }
+            poll(1);
+        }
+        long sending = System.nanoTime() - start;
+        long drainEnd = System.nanoTime() + drainSeconds * 1_000_000_000L;
+        while (delivered < expected && System.nanoTime() < drainEnd) {
+            poll(10);
+        }
+        return sending;
+    }
+
+    /** Leave the channels and close all connections
+     */
+    private void close() throws IOException {
+        for (Client client : clients) {
+            if (client.key.isValid()) {
+                client.send("PART " + client.channelName);
+            }
+        }
+        poll(100);
+        for (Client client : clients) {
+            client.channel.close();
+        }
+        selector.close();
+    }
+
+    /** Compose the JSON report
+     * @param connectMillis time of connecting and joining
+     * @param sendingNanos time of sending
+     * @return report
+     */
+    private String report(long connectMillis, long sendingNanos) {
+        double seconds = sendingNanos / 1e9;
+        return String.format(Locale.ROOT, """
+                {
+                  "clients": %d,
+                  "channels": %d,
+                  "channelSize": %d,
+                  "rate": %d,
+                  "durationSeconds": %d,
+                  "joined": %d,
+                  "connectMillis": %d,
+                  "sent": %d,
+                  "expectedDeliveries": %d,
+                  "delivered": %d,
+                  "sentPerSecond": %.1f,
+                  "deliveredPerSecond": %.1f,
+                  "latencyMicros": {"p50": %d, "p99": %d, "p999": %d, "max": %d}
+                }
+                """,
+                clientCount, channelCount, clientCount / channelCount, rate, durationSeconds, joinedCount,
+                connectMillis, sent, expected, delivered, sent / seconds, delivered / seconds,
+                latency.percentile(50), latency.percentile(99), latency.percentile(99.9), latency.max());
+    }
+
+    public static void main(String[] args) throws IOException {
+        LoadGenerator generator = new LoadGenerator();
+        generator.configure(args);
+
+        long start = System.nanoTime();
+        generator.connect();
+        long joinDeadline = System.nanoTime() + 60_000_000_000L;
+        while (generator.joinedCount < generator.clientCount && System.nanoTime() < joinDeadline) {
+            generator.poll(10);
+        }
+        long connectMillis = (System.nanoTime() - start) / 1_000_000;
+        long sending = generator.run();
+        generator.close();
+
+        String json = generator.report(connectMillis, sending);
+        if (generator.report == null || "-".equals(generator.report)) {
+            System.out.print(json);
+        } else {
+            Files.writeString(Path.of(generator.report), json);
+            System.out.println("joined " + generator.joinedCount + "/" + generator.clientCount + " in " + connectMillis + " ms");
+            System.out.println("sent " + generator.sent + ", delivered " + generator.delivered + "/" + generator.expected);
+            System.out.println("latency us p50 " + generator.latency.percentile(50) + ", p99 " + generator.latency.percentile(99)
+                    + ", p999 " + generator.latency.percentile(99.9));
+            System.out.println("report written to " + generator.report);
+        }
+    }
+}
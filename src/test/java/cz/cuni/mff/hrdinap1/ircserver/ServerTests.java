@@ -4,17 +4,125 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.security.KeyStore;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 public class ServerTests {
+    /** Connection recording everything sent to it */
+    private static class RecordingConnection implements Connection {
+        final List<byte[]> lines = new ArrayList<>();
+        boolean closed;
+
+        public synchronized void send(byte[] line) {
+            lines.add(line);
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        synchronized List<String> messages() {
+            return lines.stream().map(line -> new String(line, StandardCharsets.UTF_8).stripTrailing()).toList();
+        }
+    }
+
+    /** Server with its managers, for tests of linked servers */
+    private static class TestServer {
+        final ChannelManager channelManager = new ChannelManager();
+        final ConnectionManager connectionManager = new ConnectionManager();
+        final UserManager userManager = new UserManager();
+        final IRCServer server;
+
+        TestServer(String name) {
+            server = new IRCServer(name, channelManager, connectionManager, userManager);
+            server.getConfig().linkPassword = "secret";
+        }
+
+        final Map<String, RecordingConnection> users = new HashMap<>();
+
+        /** Connect and register a local user
+         * @param nickname nickname of the user
+         * @return id of the user's connection
+         */
+        int connectUser(String nickname) {
+            int[] connId = {-1};
+            users.put(nickname, connectionManager.addConnection(id -> {
+                connId[0] = id;
+                return new RecordingConnection();
+            }));
+            server.connect(connId[0]);
+            server.cmdNick(List.of(nickname), connId[0]);
+            server.cmdUser(List.of(nickname, "0", "*", ":Real Name"), connId[0]);
+            return connId[0];
+        }
+    }
+
+    /** Server link delivering lines to the other server when pumped */
+    private static class PipeConnection implements Connection {
+        final List<byte[]> lines = new ArrayList<>();
+        final IRCMessage message = new IRCMessage();
+        IRCServer peer;
+        int peerConnId;
+
+        public synchronized void send(byte[] line) {
+            lines.add(line);
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        /** Deliver the sent lines to the other server
+         * @return true if there were any
+         */
+        boolean pump() {
+            List<byte[]> sent;
+            synchronized (this) {
+                sent = new ArrayList<>(lines);
+                lines.clear();
+            }
+            for (byte[] chunk : sent) {
+                for (String line : new String(chunk, StandardCharsets.UTF_8).split("\r\n")) {
+                    peer.processLine(line, message, peerConnId);
+                }
+            }
+            return !sent.isEmpty();
+        }
+    }
+
     private ChannelManager channelManager;
     private ConnectionManager connectionManager;
     private UserManager userManager;
     private IRCServer server;
+    private ChannelJournal journal;
 
     @BeforeEach
     public void setup() {
@@ -32,6 +140,10 @@ public class ServerTests {
         server.cmdUser(user, connId);
     }
 
+    private RecordingConnection recordConnection() {
+        return connectionManager.addConnection(connId -> new RecordingConnection());
+    }
+
     private void joinChannel(int connId, String channel) {
         List<String> join = Arrays.asList(channel);
         server.cmdJoin(join, connId);
@@ -132,4 +244,952 @@ public class ServerTests {
         assertFalse(userManager.userIsRegistered(0));
         assertFalse(channelManager.channelExists(channel));
     }
+
+    @Test
+    public void testConcurrentChannels() throws InterruptedException {
+        int users = 8;
+        for (int i = 0; i < users; i++) {
+            connectUser(i, "MFF" + i);
+        }
+        Thread[] threads = new Thread[users];
+        for (int i = 0; i < users; i++) {
+            int connId = i;
+            threads[i] = new Thread(() -> {
+                for (int round = 0; round < 200; round++) {
+                    joinChannel(connId, "#shared");
+                    joinChannel(connId, "#own" + connId);
+                    leaveChannel(connId, "#own" + connId);
+                    leaveChannel(connId, "#shared");
+                }
+                joinChannel(connId, "#shared");
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(users, channelManager.getCount("#shared"));
+        for (int i = 0; i < users; i++) {
+            assertFalse(channelManager.channelExists("#own" + i));
+        }
+    }
+
+    @Test
+    public void testOutboundQueuePolicy() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.outboundQueueSize = 4;
+        IRCServer limitedServer = new IRCServer("unit.test.server", config);
+
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket accepted = listener.accept()) {
+            // the handler is not run, so nothing drains its queue
+            ConnectionHandler handler = new ConnectionHandler(accepted, 0, limitedServer);
+            for (int i = 0; i < 4; i++) {
+                handler.sendMessage("message " + i);
+            }
+            assertEquals(4, handler.getQueueDepth());
+            assertFalse(accepted.isClosed());
+
+            handler.sendMessage("overflow");
+            assertTrue(accepted.isClosed());
+        }
+
+        config.outboundPolicy = ServerConfig.OutboundPolicy.DROP;
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket accepted = listener.accept()) {
+            ConnectionHandler handler = new ConnectionHandler(accepted, 1, limitedServer);
+            for (int i = 0; i < 10; i++) {
+                handler.sendMessage("message " + i);
+            }
+            assertEquals(4, handler.getQueueDepth());
+            assertFalse(accepted.isClosed());
+        }
+    }
+
+    @Test
+    public void testBroadcastSharesBytes() {
+        String channel = "#matfyz";
+        List<RecordingConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            connections.add(recordConnection());
+            connectUser(i, "MFF" + i);
+            joinChannel(i, channel);
+        }
+        connections.forEach(connection -> connection.lines.clear());
+
+        server.cmdPrivmsg(Arrays.asList(channel, ":hello"), 0);
+        assertTrue(connections.get(0).lines.isEmpty());
+        assertEquals(List.of(":MFF0 PRIVMSG #matfyz :hello"), connections.get(1).messages());
+        assertSame(connections.get(1).lines.getFirst(), connections.get(2).lines.getFirst());
+    }
+
+    @Test
+    public void testMessageParsing() {
+        IRCMessage message = new IRCMessage();
+        assertTrue(message.parse(":Angel!wings@irc.org PRIVMSG  Wiz,#chan :Are you  receiving this?"));
+        assertEquals("Angel!wings@irc.org", message.getPrefix());
+        assertEquals("PRIVMSG", message.getCommand());
+        assertEquals(List.of("Wiz,#chan", ":Are you  receiving this?"), message.getParameters());
+
+        assertTrue(message.parse("USER guest 0 * :Ronnie Reagan"));
+        assertFalse(message.hasPrefix());
+        assertEquals(List.of("guest", "0", "*", ":Ronnie Reagan"), message.getParameters());
+
+        assertTrue(message.parse("join"));
+        assertEquals("join", message.getCommand());
+        assertTrue(message.getParameters().isEmpty());
+
+        assertFalse(message.parse("   "));
+    }
+
+    @Test
+    public void testCommandRegistration() {
+        List<String> received = new ArrayList<>();
+        server.getDispatcher().register("Ping", (parameters, connId) -> received.add(connId + " " + parameters));
+        server.getDispatcher().processLine("PING :token", 3);
+        server.getDispatcher().processLine("ping other", 4);
+        server.getDispatcher().processLine("PINGS x", 5);
+        assertEquals(List.of("3 [:token]", "4 [other]"), received);
+
+        connectUser(0, "MFF");
+        server.getDispatcher().processLine("join #matfyz", 0);
+        assertTrue(channelManager.isUserInChannel(0, "#matfyz"));
+    }
+
+    @Test
+    public void testIntFlagSet() {
+        IntFlagSet set = new IntFlagSet();
+        Map<Integer, Boolean> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int member = random.nextInt(512);
+            switch (random.nextInt(3)) {
+                case 0 -> assertEquals(expected.putIfAbsent(member, false) == null, set.add(member));
+                case 1 -> assertEquals(expected.remove(member) != null, set.remove(member));
+                default -> {
+                    assertEquals(expected.containsKey(member), set.setFlag(member, true));
+                    expected.replace(member, true);
+                }
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (int member = 0; member < 512; member++) {
+            assertEquals(expected.containsKey(member), set.contains(member));
+            assertEquals(expected.getOrDefault(member, false), set.getFlag(member));
+        }
+        Map<Integer, Boolean> visited = new HashMap<>();
+        set.forEach((int member, boolean flag) -> visited.put(member, flag));
+        assertEquals(expected, visited);
+
+        // members of a large channel spread over the whole table
+        IntFlagSet large = new IntFlagSet();
+        for (int member = 0; member < 150000; member++) {
+            large.add(member);
+        }
+        assertTrue(large.longestProbe() < 100);
+        for (int member = 0; member < 150000; member += 2) {
+            large.remove(member);
+        }
+        assertEquals(75000, large.size());
+        assertTrue(large.contains(149999) && !large.contains(149998));
+    }
+
+    @Test
+    public void testUserChannelIndex() {
+        connectUser(0, "MFF");
+        connectUser(1, "MFF2");
+        joinChannel(0, "#a");
+        joinChannel(0, "#b");
+        joinChannel(1, "#b");
+        joinChannel(1, "#c");
+        assertEquals(2, channelManager.getUserChannels(0).size());
+
+        kickUser(0, "#b", "MFF2");
+        assertEquals(List.of("#c"), channelManager.getUserChannels(1));
+
+        server.disconnect(0);
+        assertTrue(channelManager.getUserChannels(0).isEmpty());
+        assertFalse(channelManager.channelExists("#a"));
+        assertFalse(channelManager.channelExists("#b"));
+        assertTrue(channelManager.channelExists("#c"));
+    }
+
+    @Test
+    public void testConnIdReuse() {
+        for (int i = 0; i < 3; i++) {
+            recordConnection();
+        }
+        connectionManager.removeHandler(1);
+        connectionManager.removeHandler(1);
+        RecordingConnection reused = recordConnection();
+        assertSame(reused, connectionManager.openedConnections.get(1));
+        RecordingConnection fresh = recordConnection();
+        assertSame(fresh, connectionManager.openedConnections.get(3));
+    }
+
+    @Test
+    public void testLogConfiguration() {
+        ServerConfig config = ServerConfig.fromArgs(new String[] {"--log-level=warn", "--log-traffic"});
+        assertEquals(Log.Level.WARN, config.logLevel);
+        assertTrue(config.logTraffic);
+        assertFalse(ServerConfig.fromArgs(new String[0]).logTraffic);
+
+        Log.configure(config.logLevel, config.logTraffic);
+        try {
+            assertTrue(Log.isEnabled(Log.Level.ERROR));
+            assertTrue(Log.isEnabled(Log.Level.WARN));
+            assertFalse(Log.isEnabled(Log.Level.INFO));
+            assertTrue(Log.isTrafficEnabled());
+        } finally {
+            Log.configure(Log.Level.INFO, false);
+        }
+    }
+
+    @Test
+    public void testStats() {
+        RecordingConnection recorder = recordConnection();
+        connectUser(0, "MFF");
+        server.getDispatcher().processLine("JOIN #stats", 0);
+        server.getDispatcher().processLine("FOO", 0);
+        server.getDispatcher().processLine("STATS m", 0);
+        assertTrue(recorder.messages().contains(":unit.test.server 212 MFF JOIN 1"));
+
+        server.getDispatcher().processLine("STATS z", 0);
+        List<String> messages = recorder.messages();
+        assertTrue(messages.contains(":unit.test.server 249 MFF z :irc_channels 1"));
+        assertTrue(messages.contains(":unit.test.server 249 MFF z :irc_memberships 1"));
+        assertTrue(messages.contains(":unit.test.server 249 MFF z :irc_unknown_commands_total 1"));
+        assertTrue(messages.contains(":unit.test.server 249 MFF z :irc_command_seconds_count{command=\"STATS\"} 1"));
+        assertEquals(":unit.test.server 219 MFF z :End of /STATS report", messages.getLast());
+
+        for (long nanos : new long[] {0, 7, 8, 1000, 123456789}) {
+            long limit = Metrics.CommandMetrics.bucketLimit(Metrics.CommandMetrics.bucket(nanos));
+            assertTrue(limit >= nanos && limit <= nanos * 1.25 + 1);
+        }
+    }
+
+    @Test
+    public void testNamesChunks() {
+        String channel = "#names";
+        RecordingConnection recorder = recordConnection();
+        connectUser(0, "requester");
+        joinChannel(0, channel);
+        int users = 300;
+        for (int i = 1; i <= users; i++) {
+            connectUser(i, "member" + i);
+            joinChannel(i, channel);
+        }
+        server.cmdNick(Arrays.asList("renamed7"), 7);
+        leaveChannel(5, channel);
+
+        int before = recorder.lines.size();
+        server.cmdNames(Arrays.asList(channel), 0);
+        List<String> names = new ArrayList<>();
+        for (byte[] line : recorder.lines.subList(before, recorder.lines.size())) {
+            assertTrue(line.length <= 512);
+            String text = new String(line, StandardCharsets.UTF_8).stripTrailing();
+            if (text.contains(" 353 ")) {
+                assertTrue(text.startsWith(":unit.test.server 353 requester = #names :"));
+                names.addAll(Arrays.asList(text.substring(text.indexOf(" :") + 2).split(" ")));
+            }
+        }
+        assertTrue(recorder.messages().getLast().contains(" 366 "));
+        assertEquals(users, names.size());
+        assertEquals("@requester", names.getFirst());
+        assertTrue(names.contains("renamed7"));
+        assertFalse(names.contains("member7"));
+        assertFalse(names.contains("member5"));
+        assertTrue(names.contains("member" + users));
+    }
+
+    @Test
+    public void testListFilters() {
+        RecordingConnection recorder = recordConnection();
+        connectUser(0, "requester");
+        joinChannel(0, "#alpha");
+        joinChannel(0, "#beta");
+        connectUser(1, "other");
+        joinChannel(1, "#alpha");
+        joinChannel(1, "#apple");
+
+        int before = recorder.lines.size();
+        server.cmdList(Arrays.asList(">1"), 0);
+        List<String> lines = recorder.messages().subList(before, recorder.lines.size());
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).contains(" 322 requester #alpha 2 "));
+        assertTrue(lines.get(2).contains(" 323 "));
+
+        before = recorder.lines.size();
+        server.cmdList(Arrays.asList("#A*,!#alpha"), 0);
+        lines = recorder.messages().subList(before, recorder.lines.size());
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).contains(" 322 requester #apple 1 "));
+
+        server.cmdList(Arrays.asList(">x"), 0);
+        assertTrue(recorder.messages().getLast().contains(" 400 "));
+
+        assertTrue(ListFilter.matches("#a?p*", "#APPLE", CaseMapping.ASCII));
+        assertFalse(ListFilter.matches("#a*e", "#alpha", CaseMapping.ASCII));
+
+        // channels created after the listing started are not listed
+        Iterator<ChannelManager.ChannelInfo> listed = channelManager.listChannels();
+        joinChannel(1, "#late");
+        List<String> names = new ArrayList<>();
+        listed.forEachRemaining(info -> names.add(info.name()));
+        assertEquals(3, names.size());
+        assertFalse(names.contains("#late"));
+    }
+
+    @Test
+    public void testListClosedRequester() {
+        List<Runnable> drained = new ArrayList<>();
+        RecordingConnection slow = connectionManager.addConnection(connId -> new RecordingConnection() {
+            public int getQueueDepth() {
+                return server.getConfig().outboundQueueSize;
+            }
+
+            public void whenDrained(Runnable task) {
+                drained.add(task);
+            }
+        });
+        connectUser(0, "slow");
+        joinChannel(0, "#a");
+        server.cmdList(List.of(), 0);
+        assertEquals(1, drained.size());
+
+        // the paused LIST does not continue on a new connection which got the id of the closed one
+        server.disconnect(0);
+        RecordingConnection next = recordConnection();
+        drained.getFirst().run();
+        assertTrue(next.lines.isEmpty());
+        assertTrue(slow.messages().getLast().contains(" 321 "));
+    }
+
+    @Test
+    public void testMembershipSnapshot() {
+        String channel = "#snapshot";
+        for (int i = 0; i < 100; i++) {
+            channelManager.join(i, channel, null);
+        }
+        int[] visited = {0};
+        channelManager.forEachChannelUser(channel, (int member) -> {
+            // membership changes during the fan-out do not affect the visited set
+            channelManager.leave(member, channel);
+            channelManager.join(1000 + member, channel, null);
+            visited[0]++;
+        });
+        assertEquals(100, visited[0]);
+        assertEquals(100, channelManager.getCount(channel));
+        assertFalse(channelManager.isUserInChannel(0, channel));
+        assertTrue(channelManager.isUserInChannel(1000, channel));
+    }
+
+    @Test
+    public void testFloodControl() {
+        ServerConfig config = new ServerConfig();
+        config.floodBurstMillis = 1000;
+        config.floodPenaltyMillis = 200;
+        FloodControl flood = new FloodControl(config, new Metrics());
+        long millis = 1_000_000;
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, flood.charge(-1, now));
+        }
+        assertEquals(200 * millis, flood.charge(-1, now));
+        assertEquals(700 * millis, flood.charge(500, now));
+        // the bucket refills with time
+        assertEquals(0, flood.charge(0, now + 700 * millis));
+        assertEquals(0, flood.charge(-1, now + 10_000 * millis));
+
+        assertEquals(600, config.getPenaltyMillis("LIST"));
+        assertEquals(200, config.getPenaltyMillis("PRIVMSG"));
+        assertEquals(600, server.getDispatcher().processLine("LIST", 0));
+        assertEquals(-1, server.getDispatcher().processLine("UNKNOWN", 0));
+    }
+
+    @Test
+    public void testShardedRouting() {
+        List<String> routed = new ArrayList<>();
+        List<Integer> waiting = new ArrayList<>();
+        List<Runnable> queued = new ArrayList<>();
+        server.setChannelRouter(new IRCServer.ChannelRouter() {
+            public boolean route(int connId, String channel, Consumer<IRCMessage> command) {
+                if ((channel == null || channel.equals("#local")) && !waiting.contains(connId)) {
+                    return false;
+                }
+                routed.add(channel);
+                waiting.add(connId);
+                queued.add(() -> command.accept(new IRCMessage()));
+                return true;
+            }
+
+            public void closed(int connId, Runnable task) {
+                queued.add(task);
+            }
+        });
+        IRCMessage message = new IRCMessage();
+        RecordingConnection connection = recordConnection();
+        connectUser(0, "MFF");
+        connectUser(1, "MFF2");
+
+        assertEquals(200, server.processLine("JOIN #matfyz", message, 0));
+        server.processLine("PRIVMSG #matfyz :hello", message, 0);
+        // later commands of the connection wait behind the routed ones
+        server.processLine("join #local", message, 0);
+        server.processLine("PING :sync", message, 0);
+        server.processLine("JOIN #a,#b", message, 1);
+        assertEquals(Arrays.asList("#matfyz", "#matfyz", "#local", null), routed);
+        assertFalse(channelManager.isUserInChannel(0, "#matfyz"));
+        assertFalse(channelManager.isUserInChannel(0, "#local"));
+        assertTrue(channelManager.isUserInChannel(1, "#b"));
+
+        // commands left at the owning shard run before the cleanup of a disconnected user
+        server.disconnect(0);
+        assertTrue(userManager.userIsRegistered(0));
+        queued.forEach(Runnable::run);
+        assertFalse(channelManager.channelExists("#matfyz"));
+        assertFalse(userManager.userIsRegistered(0));
+        List<String> messages = connection.messages();
+        int names = messages.indexOf(":unit.test.server 353 MFF = #matfyz :@MFF");
+        int local = messages.indexOf(":unit.test.server 353 MFF = #local :@MFF");
+        int pong = messages.indexOf(":unit.test.server PONG unit.test.server :sync");
+        assertTrue(names >= 0 && names < local && local < pong);
+    }
+
+    @Test
+    public void testShardOrder() throws IOException {
+        // the loops do not run, the test thread runs their tasks instead
+        NioServer nio = new NioServer(server, 0, 2, true);
+        IRCServer.ChannelRouter shards = nio.new Shards();
+        List<String> ran = new ArrayList<>();
+
+        assertTrue(shards.route(0, "#matfyz", message -> ran.add("JOIN")));
+        assertTrue(shards.route(0, null, message -> ran.add("NICK")));
+        assertEquals(List.of(), ran);
+        nio.runTasks();
+        assertEquals(List.of("JOIN", "NICK"), ran);
+
+        // the shard finished before the command without a channel was queued, so it runs right away
+        assertTrue(shards.route(0, "#matfyz", message -> ran.add("PART")));
+        nio.runTasks();
+        assertTrue(shards.route(0, null, message -> ran.add("PING")));
+        assertEquals(List.of("JOIN", "NICK", "PART", "PING"), ran);
+        shards.closed(0, () -> ran.add("cleanup"));
+        assertEquals("cleanup", ran.getLast());
+
+        // a connection which never handed a command over runs its commands itself
+        assertFalse(shards.route(1, null, message -> ran.add("PING")));
+    }
+
+    @Test
+    public void testCaseMapping() {
+        assertTrue(CaseMapping.RFC1459.equal("Nick[away]", "nick{AWAY}"));
+        assertFalse(CaseMapping.ASCII.equal("Nick[away]", "nick{AWAY}"));
+        assertEquals(CaseMapping.RFC1459.hash("#Foo\\"), CaseMapping.RFC1459.hash("#fOO|"));
+
+        NameMap<Integer> map = new NameMap<>(CaseMapping.RFC1459);
+        for (int i = 0; i < 100; i++) {
+            map.put("#Chan" + i, i);
+        }
+        assertEquals(Integer.valueOf(42), map.get("#CHAN42"));
+        assertEquals("#Chan42", map.getKey("#chan42"));
+        assertNull(map.remove("#chan42", 7));
+        assertEquals(Integer.valueOf(42), map.remove("#chan42"));
+        assertFalse(map.containsKey("#Chan42"));
+        assertEquals(99, map.size());
+
+        RecordingConnection connection = recordConnection();
+        connectUser(0, "MFF");
+        assertTrue(connection.messages().getFirst().startsWith(":unit.test.server 005 MFF CASEMAPPING=rfc1459 "));
+        recordConnection();
+        connectUser(1, "mff");
+        assertFalse(userManager.userIsRegistered(1));
+        server.cmdNick(List.of("Mff"), 0);
+        assertEquals("Mff", userManager.getNickname(0));
+        assertEquals(0, userManager.getConnId("MFF"));
+
+        joinChannel(0, "#Matfyz");
+        server.cmdNick(List.of("Student"), 1);
+        server.cmdUser(List.of("student", "0", "*", ":Student"), 1);
+        joinChannel(1, "#MATFYZ");
+        assertEquals(1, channelManager.getChannelCount());
+        assertTrue(channelManager.isUserInChannel(1, "#matfyz"));
+        assertEquals(List.of("#Matfyz"), channelManager.getUserChannels(1));
+        assertTrue(connection.messages().contains(":Student JOIN #Matfyz"));
+    }
+
+    /** Create a server whose channels are saved in a journal
+     * @param directory journal directory
+     * @return number of channels restored from the journal
+     */
+    private int attachJournal(Path directory) throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        setup();
+        journal = ChannelJournal.open(directory, 1 << 16, 1, 300_000);
+        return server.attachJournal(journal);
+    }
+
+    @Test
+    public void testChannelJournal() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        assertEquals(0, attachJournal(directory));
+        connectUser(0, "alice");
+        connectUser(1, "bob");
+        joinChannel(0, "#keep");
+        setTopic(0, "#keep", "kept topic");
+        joinChannel(1, "#keep");
+        server.cmdNick(Arrays.asList("carol"), 0);
+        joinChannel(1, "#gone");
+        leaveChannel(1, "#gone");
+        for (int i = 0; i < 5000; i++) {
+            // fills several journal files
+            setTopic(0, "#keep", "topic " + i);
+        }
+        setTopic(0, "#keep", "kept topic");
+
+        // restart
+        assertEquals(1, attachJournal(directory));
+        assertTrue(channelManager.channelExists("#keep"));
+        assertFalse(channelManager.channelExists("#gone"));
+        assertEquals("kept topic", channelManager.getTopic("#keep"));
+        connectUser(0, "bob");
+        connectUser(1, "carol");
+        joinChannel(0, "#keep");
+        joinChannel(1, "#keep");
+        assertFalse(channelManager.isChannelOperator(0, "#keep"));
+        assertTrue(channelManager.isChannelOperator(1, "#keep"));
+
+        // a restored channel without operators is given to the first user joining it
+        journal.close();
+        ChannelJournal orphan = ChannelJournal.open(directory, 1 << 16, 1, 300_000);
+        orphan.writeSnapshot(100, List.of(new ChannelJournal.ChannelState("#orphan", null, List.of())).iterator());
+        orphan.close();
+        journal = null;
+        assertEquals(1, attachJournal(directory));
+        connectUser(0, "dave");
+        joinChannel(0, "#orphan");
+        assertTrue(channelManager.isChannelOperator(0, "#orphan"));
+        journal.close();
+
+        // a zero interval would never force the journal
+        assertEquals(10, ServerConfig.fromArgs(new String[] {"--journal-sync-ms=0"}).journalSyncMillis);
+    }
+
+    /** Link two servers by pipes, the first server initiates the link
+     * @param first initiating server
+     * @param second accepting server
+     * @return pipes of the first and of the second server
+     */
+    private PipeConnection[] link(TestServer first, TestServer second) {
+        PipeConnection[] pipes = {new PipeConnection(), new PipeConnection()};
+        first.connectionManager.addConnection(connId -> {
+            pipes[1].peerConnId = connId;
+            return pipes[0];
+        });
+        second.connectionManager.addConnection(connId -> {
+            pipes[0].peerConnId = connId;
+            return pipes[1];
+        });
+        pipes[0].peer = second.server;
+        pipes[1].peer = first.server;
+        first.server.connect(pipes[1].peerConnId);
+        second.server.connect(pipes[0].peerConnId);
+        first.server.getLinks().initiate(pipes[1].peerConnId, pipes[0]);
+        pump(pipes);
+        return pipes;
+    }
+
+    /** Deliver lines between linked servers until there are none
+     * @param pipes pipes of the servers
+     */
+    private void pump(PipeConnection[] pipes) {
+        while (pipes[0].pump() | pipes[1].pump()) {
+        }
+    }
+
+    @Test
+    public void testServerLinks() {
+        TestServer first = new TestServer("first.test");
+        TestServer second = new TestServer("second.test");
+        int alice = first.connectUser("alice");
+        first.server.cmdJoin(List.of("#fed"), alice);
+        first.server.cmdTopic(List.of("#fed", ":federated"), alice);
+        int bob = second.connectUser("bob");
+        first.connectUser("twin");
+        second.connectUser("twin");
+
+        PipeConnection[] pipes = link(first, second);
+        assertTrue(second.userManager.userIsRegistered("alice"));
+        assertTrue(first.userManager.userIsRegistered("bob"));
+        assertTrue(second.channelManager.isChannelOperator(second.userManager.getConnId("alice"), "#fed"));
+        assertEquals("federated", second.channelManager.getTopic("#fed"));
+        // both users of a colliding nickname are killed
+        assertTrue(first.users.get("twin").closed);
+        assertTrue(second.users.get("twin").closed);
+
+        second.server.cmdJoin(List.of("#fed"), bob);
+        for (String nickname : List.of("carol", "dave")) {
+            second.server.cmdJoin(List.of("#fed"), second.connectUser(nickname));
+        }
+        pump(pipes);
+        assertEquals(4, first.channelManager.getCount("#fed"));
+        assertTrue(first.userManager.userIsRegistered("dave"));
+
+        first.server.cmdPrivmsg(List.of("#fed", ":hello"), alice);
+        // forwarded once for the three members behind the link
+        assertEquals(1, pipes[0].lines.stream().filter(line -> new String(line, StandardCharsets.UTF_8).contains("PRIVMSG")).count());
+        pump(pipes);
+        for (String nickname : List.of("bob", "carol", "dave")) {
+            assertEquals(":alice PRIVMSG #fed :hello", second.users.get(nickname).messages().getLast());
+        }
+        second.server.cmdPrivmsg(List.of("alice", ":hi"), bob);
+        pump(pipes);
+        assertEquals(":bob PRIVMSG alice :hi", first.users.get("alice").messages().getLast());
+
+        // netsplit
+        first.server.disconnect(pipes[1].peerConnId);
+        second.server.disconnect(pipes[0].peerConnId);
+        assertFalse(first.userManager.userIsRegistered("bob"));
+        assertEquals(1, first.channelManager.getCount("#fed"));
+        assertEquals(3, second.channelManager.getCount("#fed"));
+        assertEquals(0, second.server.getLinks().getRemoteUserCount());
+
+        // netjoin
+        pipes = link(first, second);
+        assertEquals(4, first.channelManager.getCount("#fed"));
+        assertEquals(4, second.channelManager.getCount("#fed"));
+        assertEquals(3, first.server.getLinks().getRemoteUserCount());
+    }
+
+    @Test
+    public void testChatHistory() {
+        String channel = "#history";
+        RecordingConnection recorder = recordConnection();
+        connectUser(0, "reader");
+        joinChannel(0, channel);
+        connectUser(1, "writer");
+        joinChannel(1, channel);
+        for (int i = 0; i < 5; i++) {
+            server.cmdPrivmsg(Arrays.asList(channel, ":message" + i), 1);
+        }
+
+        int before = recorder.lines.size();
+        server.cmdChathistory(Arrays.asList("LATEST", channel, "*", "2"), 0);
+        List<String> replay = recorder.messages().subList(before, recorder.lines.size());
+        assertEquals(4, replay.size());
+        assertTrue(replay.get(0).matches(":unit.test.server BATCH \\+(\\w+) chathistory #history"));
+        String batch = replay.get(0).split(" ")[2].substring(1);
+        assertTrue(replay.get(1).matches("@batch=" + batch + ";time=\\d{4}-\\d\\d-\\d\\dT[\\d:.]{12}Z;msgid=\\d+ :writer PRIVMSG #history :message3"));
+        assertTrue(replay.get(2).endsWith(":writer PRIVMSG #history :message4"));
+        assertEquals(":unit.test.server BATCH -" + batch, replay.get(3));
+
+        String newest = replay.get(2).substring(replay.get(2).indexOf("msgid=") + 6, replay.get(2).indexOf(' '));
+        before = recorder.lines.size();
+        server.cmdChathistory(Arrays.asList("BEFORE", channel, "msgid=" + newest, "10"), 0);
+        replay = recorder.messages().subList(before, recorder.lines.size());
+        // both joins and the first four messages
+        assertEquals(8, replay.size());
+        assertTrue(replay.get(1).endsWith(":reader JOIN #history"));
+        assertTrue(replay.get(2).endsWith(":writer JOIN #history"));
+        assertTrue(replay.get(6).endsWith(":message3"));
+
+        server.cmdChathistory(Arrays.asList("LATEST", "#missing", "*", "10"), 0);
+        assertTrue(recorder.messages().getLast().contains("FAIL CHATHISTORY INVALID_TARGET LATEST #missing"));
+
+        HistoryStore store = new HistoryStore(100, 10 * (HistoryStore.eventOverhead + 10));
+        ChannelHistory first = store.create();
+        ChannelHistory second = store.create();
+        for (int i = 0; i < 20; i++) {
+            first.append(i, new byte[10]);
+            second.append(i, new byte[10]);
+        }
+        assertTrue(store.getUsedBytes() <= 10 * (HistoryStore.eventOverhead + 10));
+        assertEquals(10, first.size() + second.size());
+        store.release(first);
+        assertEquals(second.size() * (HistoryStore.eventOverhead + 10L), store.getUsedBytes());
+        // the moved history still takes part in the eviction
+        ChannelHistory third = store.create();
+        store.release(second);
+        store.release(second);
+        for (int i = 0; i < 20; i++) {
+            third.append(i, new byte[10]);
+        }
+        assertEquals(10, third.size());
+
+        assertNull(new HistoryStore(0, 1000).create());
+    }
+
+    /** Connect to a server started on another thread, retrying until it listens
+     * @param port port of the server
+     * @return connected socket
+     */
+    private static Socket connectWhenListening(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (ConnectException e) {
+                // the listener is not bound yet
+                assertTrue(attempt < 50);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /** Read lines until one contains a text
+     * @param input reader of the connection
+     * @param text text to wait for
+     * @return the first line containing the text
+     */
+    private static String readUntil(BufferedReader input, String text) throws IOException {
+        String line;
+        do {
+            line = input.readLine();
+            assertNotNull(line);
+        } while (!line.contains(text));
+        return line;
+    }
+
+    @Test
+    public void testNioRoundTrip() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        IRCServer nioServer = new IRCServer("unit.test.server", new ServerConfig());
+        nioServer.getDispatcher().register("FAIL", (parameters, connId) -> {
+            throw new IllegalStateException("failing handler");
+        });
+        // a single loop services both clients
+        Thread thread = new Thread(new NioServer(nioServer, port, 1, false)::run);
+        thread.setDaemon(true);
+        thread.start();
+
+        try (Socket first = connectWhenListening(port); Socket second = connectWhenListening(port)) {
+            BufferedReader firstInput = new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.UTF_8));
+            BufferedReader secondInput = new BufferedReader(new InputStreamReader(second.getInputStream(), StandardCharsets.UTF_8));
+            first.getOutputStream().write("NICK first\r\nUSER first 0 * :First\r\nJOIN #a,,#b\r\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(readUntil(firstInput, " 366 ").contains(" #a "));
+            assertTrue(readUntil(firstInput, " 366 ").contains(" #b "));
+
+            second.getOutputStream().write("NICK second\r\nUSER second 0 * :Second\r\nFAIL\r\n".getBytes(StandardCharsets.UTF_8));
+            // only the connection of the failing command is closed
+            while (secondInput.readLine() != null) {
+            }
+
+            first.getOutputStream().write("PRIVMSG ,#a :still here\r\nPING :alive\r\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(":unit.test.server PONG unit.test.server :alive", readUntil(firstInput, "PONG"));
+        }
+    }
+
+    @Test
+    public void testNioBurst() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig();
+        config.floodControl = false;
+        config.outboundQueueSize = 10000;
+        // the clients get a loop each, so the broadcast is flushed from a foreign thread
+        Thread thread = new Thread(new NioServer(new IRCServer("unit.test.server", config), port, 2, false)::run);
+        thread.setDaemon(true);
+        thread.start();
+
+        int count = 3000;
+        try (Socket sender = connectWhenListening(port); Socket receiver = connectWhenListening(port)) {
+            BufferedReader senderInput = new BufferedReader(new InputStreamReader(sender.getInputStream(), StandardCharsets.UTF_8));
+            BufferedReader receiverInput = new BufferedReader(new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+            sender.getOutputStream().write("NICK sender\r\nUSER sender 0 * :Sender\r\nJOIN #burst\r\n".getBytes(StandardCharsets.UTF_8));
+            readUntil(senderInput, " 366 ");
+            receiver.getOutputStream().write("NICK receiver\r\nUSER receiver 0 * :Receiver\r\nJOIN #burst\r\n".getBytes(StandardCharsets.UTF_8));
+            readUntil(receiverInput, " 366 ");
+            readUntil(senderInput, ":receiver JOIN");
+
+            // many lines of one read are queued in one tick, far over the size flushed right away
+            StringBuilder burst = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                burst.append("PRIVMSG #burst :line ").append(i).append("\r\n");
+            }
+            for (int i = 0; i < count; i++) {
+                burst.append("PING :").append(i).append("\r\n");
+            }
+            sender.getOutputStream().write(burst.toString().getBytes(StandardCharsets.UTF_8));
+
+            for (int i = 0; i < count; i++) {
+                assertEquals(":sender PRIVMSG #burst :line " + i, receiverInput.readLine());
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals(":unit.test.server PONG unit.test.server :" + i, senderInput.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testBlockingFailedCommand() throws Exception {
+        IRCServer blockingServer = new IRCServer("unit.test.server", new ServerConfig());
+        blockingServer.getDispatcher().register("FAIL", (parameters, connId) -> {
+            throw new IllegalStateException("failing handler");
+        });
+        try (ServerSocket listener = new ServerSocket(0)) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.ofVirtual().start(blockingServer.createHandler(listener.accept()));
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            try (Socket failing = connectWhenListening(listener.getLocalPort())) {
+                BufferedReader input = new BufferedReader(new InputStreamReader(failing.getInputStream(), StandardCharsets.UTF_8));
+                failing.getOutputStream().write("NICK failing\r\nUSER failing 0 * :Failing\r\nFAIL\r\n".getBytes(StandardCharsets.UTF_8));
+                while (input.readLine() != null) {
+                }
+            }
+            // the user was removed, so its nickname is free again
+            try (Socket next = connectWhenListening(listener.getLocalPort())) {
+                BufferedReader input = new BufferedReader(new InputStreamReader(next.getInputStream(), StandardCharsets.UTF_8));
+                next.getOutputStream().write("NICK failing\r\nUSER failing 0 * :Failing\r\n".getBytes(StandardCharsets.UTF_8));
+                assertTrue(input.readLine().contains(" 005 failing "));
+            }
+        }
+    }
+
+    /** Register over a TLS connection and read replies up to RPL_ISUPPORT
+     * @param context client context
+     * @param port TLS port
+     * @param nickname nickname to register
+     */
+    private void registerOverTls(SSLContext context, int port, String nickname) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+                socket.setSoTimeout(5000);
+                OutputStream output = socket.getOutputStream();
+                output.write(("NICK " + nickname + "\r\nUSER " + nickname + " 0 * :TLS\r\n").getBytes(StandardCharsets.UTF_8));
+                output.flush();
+                BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                do {
+                    line = input.readLine();
+                    assertNotNull(line);
+                } while (!line.contains(" 005 "));
+                assertTrue(line.contains("CASEMAPPING=rfc1459"));
+                return;
+            } catch (ConnectException e) {
+                // the listener is not bound yet
+                assertTrue(attempt < 50);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Test
+    public void testTlsResumption() throws Exception {
+        Path directory = Files.createTempDirectory("tls");
+        Path keystore = directory.resolve("server.p12");
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-keystore", keystore.toString(),
+                "-storetype", "PKCS12", "-storepass", "secret", "-keypass", "secret", "-alias", "server",
+                "-keyalg", "EC", "-dname", "CN=localhost", "-validity", "1").start();
+        assertEquals(Integer.valueOf(0), Integer.valueOf(process.waitFor()));
+
+        int port;
+        int tlsPort;
+        try (ServerSocket first = new ServerSocket(0); ServerSocket second = new ServerSocket(0)) {
+            port = first.getLocalPort();
+            tlsPort = second.getLocalPort();
+        }
+        IRCServer tlsServer = new IRCServer("unit.test.server", new ServerConfig());
+        NioServer nioServer = new NioServer(tlsServer, port, 2, false);
+        nioServer.listenTls(tlsPort, TlsChannel.createContext(keystore, "secret".toCharArray(), 100, 60));
+        Thread thread = new Thread(nioServer::run);
+        thread.setDaemon(true);
+        thread.start();
+
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (InputStream input = Files.newInputStream(keystore)) {
+            trusted.load(input, "secret".toCharArray());
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, trust.getTrustManagers(), null);
+
+        registerOverTls(client, tlsPort, "secure");
+        Metrics metrics = tlsServer.getMetrics();
+        assertEquals(Long.valueOf(1), Long.valueOf(metrics.getTlsHandshakes()));
+        assertEquals(Long.valueOf(0), Long.valueOf(metrics.getTlsResumed()));
+
+        // the client offers the ticket of the first session
+        registerOverTls(client, tlsPort, "resumed");
+        assertEquals(Long.valueOf(2), Long.valueOf(metrics.getTlsHandshakes()));
+        assertEquals(Long.valueOf(1), Long.valueOf(metrics.getTlsResumed()));
+
+        Files.delete(keystore);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testLiveness() {
+        RecordingConnection alive = recordConnection();
+        connectUser(0, "alive");
+        RecordingConnection silent = recordConnection();
+        server.connect(1);
+        RecordingConnection idle = recordConnection();
+        connectUser(2, "idle");
+
+        server.cmdPing(List.of(":token"), 0);
+        assertEquals(":unit.test.server PONG unit.test.server :token", alive.messages().getLast());
+
+        TimingWheel wheel = server.getLiveness().getWheel();
+        ServerConfig config = server.getConfig();
+        for (long i = wheel.toTicks(config.registrationTimeoutMillis); i > 0; i--) {
+            wheel.tick();
+        }
+        assertTrue(silent.closed);
+        assertEquals("ERROR :Closing link: Registration timed out", silent.messages().getLast());
+        assertFalse(alive.closed || idle.closed);
+
+        while (wheel.getTick() < wheel.toTicks(config.pingIntervalMillis)) {
+            wheel.tick();
+        }
+        assertEquals("PING :unit.test.server", alive.messages().getLast());
+        assertEquals("PING :unit.test.server", idle.messages().getLast());
+        wheel.tick();
+        server.processLine("PONG :unit.test.server", new IRCMessage(), 0);
+
+        for (long i = wheel.toTicks(config.pingTimeoutMillis); i > 0; i--) {
+            wheel.tick();
+        }
+        assertTrue(idle.closed);
+        assertEquals("ERROR :Closing link: Ping timeout", idle.messages().getLast());
+        assertFalse(alive.closed);
+        List<String> metrics = server.getMetrics().format();
+        assertTrue(metrics.contains("irc_ping_timeouts_total 1"));
+        assertTrue(metrics.contains("irc_registration_timeouts_total 1"));
+    }
+
+    @Test
+    public void testTimingWheel() {
+        TimingWheel wheel = new TimingWheel(1000, 4);
+        int[] runs = {0, 0};
+        wheel.schedule(() -> runs[0]++, 3);
+        // delays longer than the wheel wait for later rounds
+        wheel.schedule(() -> runs[1]++, 20);
+        for (int i = 0; i < 19; i++) {
+            wheel.tick();
+        }
+        assertEquals(1, runs[0]);
+        assertEquals(0, runs[1]);
+        wheel.tick();
+        assertEquals(1, runs[1]);
+    }
 }